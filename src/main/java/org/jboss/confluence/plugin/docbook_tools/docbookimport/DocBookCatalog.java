@@ -0,0 +1,172 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Logger;
+import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * OASIS XML catalog used to resolve DocBook DTDs and entity sets to local copies instead of downloading them from the
+ * internet. Only <code>public</code> and <code>system</code> entries are supported, other entries are ignored. System
+ * identifier is matched first, then public identifier (as for <code>prefer="public"</code>).
+ * <p>
+ * Catalog bundled with plugin is available from {@link #getDefault()}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see JDGEntityResolver
+ */
+public class DocBookCatalog {
+
+  private static final Logger log = Logger.getLogger(DocBookCatalog.class);
+
+  /**
+   * Namespace of OASIS XML catalog elements.
+   */
+  public static final String CATALOG_NAMESPACE = "urn:oasis:names:tc:entity:xmlns:xml:catalog";
+
+  /**
+   * Classpath resource with catalog bundled with plugin.
+   */
+  public static final String DEFAULT_CATALOG_RESOURCE = "catalog/catalog.xml";
+
+  private static DocBookCatalog defaultCatalog;
+
+  private final Map<String, URL> publicEntries = new HashMap<String, URL>();
+
+  private final Map<String, URL> systemEntries = new HashMap<String, URL>();
+
+  /**
+   * Get catalog bundled with plugin. Catalog is loaded at first call.
+   * 
+   * @return default catalog
+   * @throws IllegalStateException if bundled catalog can't be loaded
+   */
+  public static synchronized DocBookCatalog getDefault() {
+    if (defaultCatalog == null) {
+      URL url = DocBookCatalog.class.getResource(DEFAULT_CATALOG_RESOURCE);
+      if (url == null)
+        throw new IllegalStateException("Bundled XML catalog not found: " + DEFAULT_CATALOG_RESOURCE);
+      try {
+        defaultCatalog = new DocBookCatalog(url);
+      } catch (Exception e) {
+        throw new IllegalStateException("Bundled XML catalog can't be loaded due: " + e.getMessage(), e);
+      }
+    }
+    return defaultCatalog;
+  }
+
+  /**
+   * Load catalog. Relative URIs in catalog entries are resolved against catalog URL.
+   * 
+   * @param catalogUrl URL to load catalog from
+   * @throws Exception if catalog can't be loaded
+   */
+  public DocBookCatalog(URL catalogUrl) throws Exception {
+    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    dbf.setNamespaceAware(true);
+    DocumentBuilder db = dbf.newDocumentBuilder();
+    Document doc;
+    InputStream is = catalogUrl.openStream();
+    try {
+      InputSource source = new InputSource(is);
+      source.setSystemId(catalogUrl.toString());
+      doc = db.parse(source);
+    } finally {
+      FileUtils.closeInputStream(is);
+    }
+    readEntries(doc, "public", "publicId", catalogUrl, publicEntries);
+    readEntries(doc, "system", "systemId", catalogUrl, systemEntries);
+    log.debug("XML catalog " + catalogUrl + " loaded with " + publicEntries.size() + " public and "
+        + systemEntries.size() + " system entries");
+  }
+
+  private static void readEntries(Document doc, String elementName, String idAttribute, URL catalogUrl,
+      Map<String, URL> entries) throws IOException {
+    NodeList nl = doc.getElementsByTagNameNS(CATALOG_NAMESPACE, elementName);
+    for (int i = 0; i < nl.getLength(); i++) {
+      Element e = (Element) nl.item(i);
+      String id = e.getAttribute(idAttribute);
+      if ("publicId".equals(idAttribute))
+        id = normalizePublicId(id);
+      entries.put(id, new URL(catalogUrl, e.getAttribute("uri")));
+    }
+  }
+
+  /**
+   * Normalize public identifier by catalog specification, so whitespaces do not affect matching.
+   * 
+   * @param publicId to normalize
+   * @return normalized public identifier
+   */
+  protected static String normalizePublicId(String publicId) {
+    return publicId.trim().replaceAll("\\s+", " ");
+  }
+
+  /**
+   * Resolve external entity to local copy.
+   * 
+   * @param publicId of entity, may be null
+   * @param systemId of entity, may be null
+   * @return URL of local copy or null if entity is not in catalog
+   */
+  public URL resolve(String publicId, String systemId) {
+    URL ret = null;
+    if (systemId != null)
+      ret = systemEntries.get(systemId);
+    if (ret == null && publicId != null)
+      ret = publicEntries.get(normalizePublicId(publicId));
+    return ret;
+  }
+
+  /**
+   * Resolve external entity to stream with its local copy.
+   * 
+   * @param publicId of entity, may be null
+   * @param systemId of entity, may be null
+   * @return input source with local copy or null if entity is not in catalog
+   * @throws IOException if local copy can't be read
+   */
+  public InputSource resolveEntity(String publicId, String systemId) throws IOException {
+    URL url = resolve(publicId, systemId);
+    if (url == null)
+      return null;
+    if (log.isDebugEnabled())
+      log.debug("Entity " + publicId + " " + systemId + " resolved from XML catalog to " + url);
+    InputSource ret = new InputSource(url.openStream());
+    ret.setPublicId(publicId);
+    ret.setSystemId(url.toString());
+    return ret;
+  }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
+import org.w3c.dom.Document;
+
+/**
+ * DocBook xml <code>book</code> used as input for all XSLT transformations of one import. Book may be parsed and
+ * XInclude resolved only once into in-memory DOM tree shared by all transformations (see
+ * {@link DocbookImporter#prepareDocBookSource(DocBookSource)}), or it is reparsed from file or uploaded zip archive
+ * for each transformation.
+ *
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class DocBookSource {
+
+  /**
+   * URL of book file, used to correctly evaluate relative paths.
+   */
+  private final String systemId;
+
+  /**
+   * Book file, null if source is based on stream or archive.
+   */
+  private final File file;
+
+  /**
+   * Archive containing book and all files referenced from it, null if source is not based on archive.
+   */
+  private final DocBookZipArchive archive;
+
+  /**
+   * Name of book entry in {@link #archive}.
+   */
+  private final String archiveEntryName;
+
+  /**
+   * Local entity files resolved during import, shared by all parsings of book.
+   */
+  private final LocalEntityTable localEntityTable = new LocalEntityTable();
+
+  /**
+   * Stream to read book from, null if source is based on file or if stream has been already used.
+   */
+  private InputStream inputStream;
+
+  /**
+   * Parsed and XInclude resolved book, null if book is reparsed for each transformation.
+   */
+  private Document document;
+
+  /**
+   * Create source reparsing book from given file for each transformation.
+   *
+   * @param file with DocBook xml <code>book</code>
+   */
+  public DocBookSource(File file) {
+    this.file = file;
+    this.systemId = file.toURI().toString();
+    this.archive = null;
+    this.archiveEntryName = null;
+  }
+
+  /**
+   * Create source reparsing book from uploaded zip archive entry for each transformation.
+   *
+   * @param archive containing book and all files referenced from it
+   * @param entryName name of entry with DocBook xml <code>book</code> in archive
+   */
+  public DocBookSource(DocBookZipArchive archive, String entryName) {
+    this.file = null;
+    this.archive = archive;
+    this.archiveEntryName = entryName;
+    this.systemId = archive.getSystemId(entryName);
+  }
+
+  /**
+   * Create source reading book from given stream. Such source may be used for one transformation only, unless it is
+   * parsed into memory.
+   *
+   * @param inputStream to read DocBook xml <code>book</code> from
+   * @param systemId URL of book file (may be <code>file://</code> too). We need it to correctly evaluate relative
+   *          paths.
+   */
+  public DocBookSource(InputStream inputStream, String systemId) {
+    this.file = null;
+    this.archive = null;
+    this.archiveEntryName = null;
+    this.inputStream = inputStream;
+    this.systemId = systemId;
+  }
+
+  /**
+   * @return URL of book file
+   */
+  public String getSystemId() {
+    return systemId;
+  }
+
+  /**
+   * @return book file, may be null if source is based on stream or archive
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return archive containing book, null if source is not based on archive
+   */
+  public DocBookZipArchive getArchive() {
+    return archive;
+  }
+
+  /**
+   * @return local entity files resolved during import, shared by all parsings of book
+   */
+  public LocalEntityTable getLocalEntityTable() {
+    return localEntityTable;
+  }
+
+  /**
+   * @return true if book may be read more times by {@link #openInputStream()}, eg. by parallel transformations
+   */
+  public boolean isReopenable() {
+    return file != null || archive != null;
+  }
+
+  /**
+   * Get book parsed into memory. DOM is not thread safe in general, but document is shared by concurrent
+   * transformations, so it is built fully expanded (no deferred node expansion) and set before any transformation
+   * starts, and it must be only read then.
+   *
+   * @return parsed and XInclude resolved book or null if book is reparsed for each transformation
+   */
+  public Document getDocument() {
+    return document;
+  }
+
+  void setDocument(Document document) {
+    this.document = document;
+  }
+
+  /**
+   * @return true if book is parsed into memory and shared by all transformations
+   */
+  public boolean isInMemory() {
+    return document != null;
+  }
+
+  /**
+   * Open stream to read book xml from.
+   *
+   * @return stream with book xml, caller must close it
+   * @throws IOException
+   * @throws IllegalStateException if source is based on stream which has been already read
+   */
+  InputStream openInputStream() throws IOException {
+    if (file != null) {
+      return FileUtils.openFileInputStream(file);
+    }
+    if (archive != null) {
+      return archive.openInputStream(archiveEntryName);
+    }
+    if (inputStream == null) {
+      throw new IllegalStateException("DocBook source stream for " + systemId + " may be read only once");
+    }
+    InputStream ret = inputStream;
+    inputStream = null;
+    return ret;
+  }
+
+  @Override
+  public String toString() {
+    return "DocBookSource [systemId=" + systemId + ", inMemory=" + isInMemory() + "]";
+  }
+
+}
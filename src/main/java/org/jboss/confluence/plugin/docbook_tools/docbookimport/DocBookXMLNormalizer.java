@@ -0,0 +1,596 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
+import org.xml.sax.InputSource;
+
+/**
+ * Single pass streaming normalizer of DocBook xml file content, see
+ * {@link DocbookImporter#normalizeDocBookXMLFileContent(String)} for list of normalizations. Content is read from
+ * {@link Reader} and written into {@link Writer} with bounded lookahead, so whole file is never held in memory. Only
+ * runs of white characters are buffered because we have to see their end to decide about them.
+ * <p>
+ * Result is same as if these regular expressions are applied one by one on whole content:
+ * 
+ * <pre>
+ * \r\n                           -&gt; \n
+ * \r                             -&gt; \n
+ * &lt;para(&gt;| [^\&gt;^/]*&gt;)\s*\n\s*     -&gt; &lt;para&gt;
+ * &lt;/ para&gt;                       -&gt; &lt;/para&gt;
+ * \n\s*&lt;/para&gt;                   -&gt; &lt;/para&gt;
+ * &lt;/ programlisting&gt;             -&gt; &lt;/programlisting&gt;
+ * &lt;/programlisting&gt;\n\s*         -&gt; &lt;/programlisting&gt;
+ * </pre>
+ * 
+ * and the same as for <code>para</code> for <code>entry</code> and <code>term</code> at the end. Only exceptions are
+ * opening tags with attributes longer than {@value #MAX_LOOKAHEAD} characters, which are never normalized, runs of
+ * white characters longer than {@value #MAX_LOOKAHEAD} characters, which are never trimmed, and opening tags
+ * containing another tag in attributes part (not well formed xml), where outer tag always wins.
+ * <p>
+ * Files included by <code>&lt;xi:include parse="text"&gt;</code> are not DocBook xml, so they must not be normalized.
+ * System ids of them may be collected while file is normalized, see
+ * {@link #normalizingInputSource(InputStream, String, Collection)}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class DocBookXMLNormalizer {
+
+  /**
+   * Max number of characters we look ahead to recognize tag.
+   */
+  public static final int MAX_LOOKAHEAD = 4096;
+
+  /**
+   * Max number of bytes read to detect encoding of file from xml declaration.
+   */
+  private static final int DECLARATION_LOOKAHEAD = 1024;
+
+  private static final Pattern ENCODING_PATTERN = Pattern.compile("\\sencoding\\s*=\\s*([\"'])([A-Za-z0-9._\\-]+)\\1");
+
+  private static final Pattern PARSE_TEXT_PATTERN = Pattern.compile("\\sparse\\s*=\\s*([\"'])text\\1");
+
+  private static final Pattern HREF_PATTERN = Pattern.compile("\\shref\\s*=\\s*([\"'])([^\"']*)\\1");
+
+  private static final Pattern SCHEME_PATTERN = Pattern.compile("^[A-Za-z][A-Za-z0-9+.\\-]*:");
+
+  /**
+   * Path segment followed by <code>..</code> segment. Segments with <code>:</code> or <code>!</code> are parts of URL
+   * scheme or of archive URL, so they are never removed.
+   */
+  private static final Pattern PARENT_SEGMENT_PATTERN = Pattern.compile("/(?!\\.\\./)[^/:!]+/\\.\\./");
+
+  /*
+   * Tags handled by normalizer. Index into these arrays is order of regular expression applied for the tag (whitespace
+   * before closing tag and after opening tag are removed in this order), so it is used also as tag identifier.
+   */
+  private static final int TAG_NONE = -1;
+  private static final int TAG_PROGRAMLISTING_CLOSE = 2;
+  private static final String[] TAG_NAMES = { "para", "para", "programlisting", "entry", "entry", "term", "term" };
+  private static final boolean[] TAG_OPENING = { true, false, false, true, false, true, false };
+
+  private final Reader in;
+
+  private final Writer out;
+
+  private final char[] readBuf = new char[MAX_LOOKAHEAD];
+
+  private final char[] buf = new char[2 * MAX_LOOKAHEAD];
+
+  private int pos = 0;
+
+  private int limit = 0;
+
+  private boolean eof = false;
+
+  private boolean lastReadCR = false;
+
+  private int matchedTagLength;
+
+  private final StringBuilder whitespaces = new StringBuilder();
+
+  private int previousTag = TAG_NONE;
+
+  private String pendingOpeningTag = null;
+
+  /**
+   * System id of normalized file, used to resolve text XIncludes.
+   */
+  private final String systemId;
+
+  /**
+   * Collection to add system ids of text XIncludes into, null if they are not collected.
+   */
+  private final Collection<String> textIncludes;
+
+  /**
+   * Normalize DocBook xml content.
+   * 
+   * @param in to read content from. Not closed inside this method.
+   * @param out to write normalized content into. Not closed inside this method, buffered writer should be used for
+   *          better performance.
+   * @throws IOException
+   */
+  public static void normalize(Reader in, Writer out) throws IOException {
+    new DocBookXMLNormalizer(in, out, null, null).normalize();
+  }
+
+  /**
+   * Create reader normalizing DocBook xml content on the fly while it is read, see
+   * {@link #normalize(Reader, Writer)}. Used to normalize content while it is parsed, so files need not be rewritten
+   * before.
+   * 
+   * @param in to read content from. Closed when returned reader is closed.
+   * @return reader with normalized content
+   */
+  public static Reader normalizingReader(Reader in) {
+    return normalizingReader(in, null, null);
+  }
+
+  /**
+   * Create reader normalizing DocBook xml content on the fly while it is read, see {@link #normalizingReader(Reader)}.
+   * 
+   * @param in to read content from. Closed when returned reader is closed.
+   * @param systemId of content, used to resolve text XIncludes. May be null.
+   * @param textIncludes collection to add system ids of files XIncluded by <code>parse="text"</code> into, while
+   *          content is read. May be null.
+   * @return reader with normalized content
+   */
+  public static Reader normalizingReader(Reader in, String systemId, Collection<String> textIncludes) {
+    return new NormalizingReader(in, systemId, textIncludes);
+  }
+
+  /**
+   * Create SAX input source normalizing DocBook xml file on the fly while it is parsed, see
+   * {@link #normalizingReader(Reader)}. File is decoded by encoding from its byte order mark or xml declaration,
+   * {@value FileUtils#CHARSET_UTF_8} is used if none is found.
+   * 
+   * @param in to read file from. Closed when reader of returned source is closed.
+   * @param systemId of file, may be null
+   * @return source with normalized content in character stream
+   * @throws IOException if encoding of file is not supported
+   */
+  public static InputSource normalizingInputSource(InputStream in, String systemId) throws IOException {
+    return normalizingInputSource(in, systemId, null);
+  }
+
+  /**
+   * Create SAX input source normalizing DocBook xml file on the fly while it is parsed, see
+   * {@link #normalizingInputSource(InputStream, String)}. System ids of files XIncluded by <code>parse="text"</code>
+   * are collected while file is read, so resolver may serve them without normalization.
+   * 
+   * @param in to read file from. Closed when reader of returned source is closed.
+   * @param systemId of file, used to resolve text XIncludes. May be null.
+   * @param textIncludes collection to add system ids of text XIncludes into, normalized by
+   *          {@link #normalizeSystemId(String)}. May be null.
+   * @return source with normalized content in character stream
+   * @throws IOException if encoding of file is not supported
+   */
+  public static InputSource normalizingInputSource(InputStream in, String systemId, Collection<String> textIncludes)
+      throws IOException {
+    BufferedInputStream bis = new BufferedInputStream(in);
+    String encoding = detectEncoding(bis);
+    InputSource ret = new InputSource(normalizingReader(new InputStreamReader(bis, encoding), systemId, textIncludes));
+    ret.setSystemId(systemId);
+    return ret;
+  }
+
+  /**
+   * Detect encoding of xml file from its byte order mark or xml declaration. Byte order mark is skipped in stream.
+   * 
+   * @param in to read file from, positioned at start of file
+   * @return name of encoding, {@value FileUtils#CHARSET_UTF_8} if not detected
+   * @throws IOException
+   */
+  protected static String detectEncoding(BufferedInputStream in) throws IOException {
+    in.mark(DECLARATION_LOOKAHEAD);
+    byte[] head = new byte[DECLARATION_LOOKAHEAD];
+    int n = 0;
+    int r;
+    while (n < head.length && (r = in.read(head, n, head.length - n)) != -1) {
+      n += r;
+    }
+    in.reset();
+    if (n >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF) {
+      in.skip(3);
+      return FileUtils.CHARSET_UTF_8;
+    }
+    if (n >= 2 && (head[0] & 0xFF) == 0xFE && (head[1] & 0xFF) == 0xFF) {
+      in.skip(2);
+      return "UTF-16BE";
+    }
+    if (n >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xFE) {
+      in.skip(2);
+      return "UTF-16LE";
+    }
+    if (n >= 4 && head[0] == 0 && head[1] == '<' && head[2] == 0 && head[3] == '?') {
+      return "UTF-16BE";
+    }
+    if (n >= 4 && head[0] == '<' && head[1] == 0 && head[2] == '?' && head[3] == 0) {
+      return "UTF-16LE";
+    }
+    String declaration = new String(head, 0, n, "ISO-8859-1");
+    if (declaration.startsWith("<?xml")) {
+      int end = declaration.indexOf("?>");
+      Matcher m = ENCODING_PATTERN.matcher(end > -1 ? declaration.substring(0, end) : declaration);
+      if (m.find()) {
+        return m.group(2);
+      }
+    }
+    return FileUtils.CHARSET_UTF_8;
+  }
+
+  /**
+   * Resolve href of XInclude against system id of including file.
+   * 
+   * @param base system id of including file, may be null
+   * @param href to resolve
+   * @return resolved system id normalized by {@link #normalizeSystemId(String)}
+   */
+  protected static String resolveSystemId(String base, String href) {
+    if (base == null || SCHEME_PATTERN.matcher(href).find()) {
+      return normalizeSystemId(href);
+    }
+    if (href.startsWith("/")) {
+      // absolute path inside archive (jar: URL) or on filesystem
+      int idx = base.indexOf("!/");
+      return normalizeSystemId((idx > -1 ? base.substring(0, idx + 1) : base.substring(0, base.indexOf(':') + 1))
+          + href);
+    }
+    return normalizeSystemId(base.substring(0, base.lastIndexOf('/') + 1) + href);
+  }
+
+  /**
+   * Normalize system id so different forms of same URL may be compared. <code>.</code> and <code>..</code> path
+   * segments are removed and <code>file:///</code> is replaced by <code>file:/</code>.
+   * 
+   * @param systemId to normalize
+   * @return normalized system id
+   */
+  public static String normalizeSystemId(String systemId) {
+    if (systemId.startsWith("file:///")) {
+      systemId = "file:/" + systemId.substring("file:///".length());
+    }
+    String ret;
+    while (!(ret = systemId.replace("/./", "/")).equals(systemId)) {
+      systemId = ret;
+    }
+    while (!(ret = PARENT_SEGMENT_PATTERN.matcher(systemId).replaceFirst("/")).equals(systemId)) {
+      systemId = ret;
+    }
+    return ret;
+  }
+
+  private DocBookXMLNormalizer(Reader in, Writer out, String systemId, Collection<String> textIncludes) {
+    this.in = in;
+    this.out = out;
+    this.systemId = systemId;
+    this.textIncludes = textIncludes;
+  }
+
+  private void normalize() throws IOException {
+    while (step()) {
+    }
+    out.flush();
+  }
+
+  /**
+   * Normalize next run of white characters, next tag or next character of content.
+   * 
+   * @return false if end of input reached
+   * @throws IOException
+   */
+  private boolean step() throws IOException {
+    int c = peek(0);
+    if (c == -1) {
+      if (pendingOpeningTag != null) {
+        out.write(pendingOpeningTag);
+        pendingOpeningTag = null;
+      }
+      return false;
+    }
+    if (isWhitespace(c)) {
+      whitespaces.setLength(0);
+      while (isWhitespace(c = peek(0))) {
+        if (whitespaces.length() == MAX_LOOKAHEAD) {
+          copyLongWhitespaces();
+          return true;
+        }
+        whitespaces.append((char) c);
+        pos++;
+      }
+      int nextTag = c == '<' ? matchTag() : TAG_NONE;
+      if (nextTag != TAG_NONE && (TAG_OPENING[nextTag] || nextTag == TAG_PROGRAMLISTING_CLOSE)) {
+        // only closing tags with trimmed content may be affected by preceding whitespaces
+        nextTag = TAG_NONE;
+      }
+      if (previousTag != TAG_NONE && previousTag < nextTag) {
+        pendingOpeningTag = trimWhitespaces(previousTag, pendingOpeningTag);
+        trimWhitespaces(nextTag, null);
+      } else {
+        trimWhitespaces(nextTag, null);
+        pendingOpeningTag = trimWhitespaces(previousTag, pendingOpeningTag);
+      }
+      if (pendingOpeningTag != null) {
+        out.write(pendingOpeningTag);
+        pendingOpeningTag = null;
+      }
+      out.append(whitespaces);
+      previousTag = TAG_NONE;
+      return true;
+    }
+
+    if (pendingOpeningTag != null) {
+      out.write(pendingOpeningTag);
+      pendingOpeningTag = null;
+    }
+    int tag = c == '<' ? matchTag() : TAG_NONE;
+    if (tag == TAG_NONE) {
+      if (c == '<' && textIncludes != null) {
+        collectTextInclude();
+      }
+      out.write(c);
+      pos++;
+    } else if (TAG_OPENING[tag]) {
+      // we have to wait for following whitespaces to decide if attributes are removed
+      pendingOpeningTag = new String(buf, pos, matchedTagLength);
+      pos += matchedTagLength;
+    } else {
+      out.write("</");
+      out.write(TAG_NAMES[tag]);
+      out.write('>');
+      pos += matchedTagLength;
+    }
+    // only opening tags and programlisting closing tag may be affected by following whitespaces
+    previousTag = (tag != TAG_NONE && (TAG_OPENING[tag] || tag == TAG_PROGRAMLISTING_CLOSE)) ? tag : TAG_NONE;
+    return true;
+  }
+
+  /**
+   * Write run of white characters longer than {@value #MAX_LOOKAHEAD} characters without normalization, so it is never
+   * buffered whole. Pending opening tag is written as is, buffered {@link #whitespaces} and rest of the run follow.
+   * 
+   * @throws IOException
+   */
+  private void copyLongWhitespaces() throws IOException {
+    if (pendingOpeningTag != null) {
+      out.write(pendingOpeningTag);
+      pendingOpeningTag = null;
+    }
+    out.append(whitespaces);
+    whitespaces.setLength(0);
+    int c;
+    while (isWhitespace(c = peek(0))) {
+      out.write(c);
+      pos++;
+    }
+    previousTag = TAG_NONE;
+  }
+
+  /**
+   * Apply whitespace trimming rule of given tag to {@link #whitespaces}.
+   * 
+   * @param tag to apply rule for, may be {@link #TAG_NONE}
+   * @param pendingOpeningTag text of opening tag preceding whitespaces, if any
+   * @return text of opening tag to be written
+   */
+  private String trimWhitespaces(int tag, String pendingOpeningTag) {
+    if (tag == TAG_NONE) {
+      return pendingOpeningTag;
+    }
+    int eolIdx = whitespaces.indexOf("\n");
+    if (eolIdx < 0) {
+      return pendingOpeningTag;
+    }
+    if (TAG_OPENING[tag]) {
+      whitespaces.setLength(0);
+      return "<" + TAG_NAMES[tag] + ">";
+    } else if (tag == TAG_PROGRAMLISTING_CLOSE) {
+      if (eolIdx == 0)
+        whitespaces.setLength(0);
+    } else {
+      whitespaces.setLength(eolIdx);
+    }
+    return pendingOpeningTag;
+  }
+
+  /**
+   * Match tag handled by normalizer at current position. Closing tag may contain one space after slash, opening tag
+   * may contain attributes but not slash.
+   * 
+   * @return identifier of matched tag or {@link #TAG_NONE}. {@link #matchedTagLength} is set if tag is matched.
+   */
+  private int matchTag() throws IOException {
+    int available = fill(MAX_LOOKAHEAD);
+    for (int tag = 0; tag < TAG_NAMES.length; tag++) {
+      String name = TAG_NAMES[tag];
+      int i = pos + 1;
+      int end = pos + available;
+      if (TAG_OPENING[tag]) {
+        if (!regionMatches(i, end, name))
+          continue;
+        i += name.length();
+        if (i < end && buf[i] == ' ') {
+          while (i < end && buf[i] != '>' && buf[i] != '^' && buf[i] != '/') {
+            i++;
+          }
+        }
+      } else {
+        if (i >= end || buf[i++] != '/')
+          continue;
+        if (i < end && buf[i] == ' ')
+          i++;
+        if (!regionMatches(i, end, name))
+          continue;
+        i += name.length();
+      }
+      if (i < end && buf[i] == '>') {
+        matchedTagLength = i + 1 - pos;
+        return tag;
+      }
+    }
+    return TAG_NONE;
+  }
+
+  /**
+   * Add system id of file to {@link #textIncludes} if <code>include</code> element with <code>parse="text"</code>
+   * starts at current position. Element is looked for in lookahead filled by {@link #matchTag()}.
+   */
+  private void collectTextInclude() {
+    int end = limit;
+    int i = pos + 1;
+    while (i < end && !isWhitespace(buf[i]) && buf[i] != '>' && buf[i] != '/') {
+      i++;
+    }
+    String name = new String(buf, pos + 1, i - pos - 1);
+    if (!"include".equals(name) && !name.endsWith(":include"))
+      return;
+    while (i < end && buf[i] != '>') {
+      i++;
+    }
+    if (i == end)
+      return;
+    String tag = new String(buf, pos, i - pos);
+    Matcher href = HREF_PATTERN.matcher(tag);
+    if (PARSE_TEXT_PATTERN.matcher(tag).find() && href.find()) {
+      textIncludes.add(resolveSystemId(systemId, href.group(2)));
+    }
+  }
+
+  private boolean regionMatches(int i, int end, String s) {
+    if (end - i < s.length())
+      return false;
+    for (int j = 0; j < s.length(); j++) {
+      if (buf[i + j] != s.charAt(j))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean isWhitespace(int c) {
+    return c == ' ' || c == '\n' || c == '\t' || c == '\u000B' || c == '\f';
+  }
+
+  /**
+   * @param offset from current position
+   * @return char at given offset from current position, or -1 if end of input reached before it
+   */
+  private int peek(int offset) throws IOException {
+    if (pos + offset < limit || fill(offset + 1) > offset) {
+      return buf[pos + offset];
+    }
+    return -1;
+  }
+
+  /**
+   * Read content to have at least given number of characters available in buffer from current position. All EOLs are
+   * normalized to <code>\n</code> when read.
+   * 
+   * @param count of characters requested, max {@link #MAX_LOOKAHEAD}
+   * @return number of characters available, lower than requested count only at end of input
+   */
+  private int fill(int count) throws IOException {
+    while (limit - pos < count && !eof) {
+      if (pos > 0) {
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+      }
+      int n = in.read(readBuf, 0, Math.min(readBuf.length, buf.length - limit));
+      if (n < 0) {
+        eof = true;
+      }
+      for (int i = 0; i < n; i++) {
+        char c = readBuf[i];
+        if (c == '\r') {
+          buf[limit++] = '\n';
+          lastReadCR = true;
+        } else {
+          if (c != '\n' || !lastReadCR)
+            buf[limit++] = c;
+          lastReadCR = false;
+        }
+      }
+    }
+    return limit - pos;
+  }
+
+  /**
+   * Reader pulling normalized content from normalizer step by step, so only bounded part of content is held in memory.
+   */
+  private static class NormalizingReader extends Reader {
+
+    private final Reader in;
+
+    private final StringBuffer output;
+
+    private final DocBookXMLNormalizer normalizer;
+
+    private int outputPos = 0;
+
+    private boolean finished = false;
+
+    NormalizingReader(Reader in, String systemId, Collection<String> textIncludes) {
+      this.in = in;
+      StringWriter out = new StringWriter();
+      this.output = out.getBuffer();
+      this.normalizer = new DocBookXMLNormalizer(in, out, systemId, textIncludes);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (output.length() - outputPos < len && !finished) {
+        finished = !normalizer.step();
+      }
+      int n = Math.min(len, output.length() - outputPos);
+      if (n == 0) {
+        return -1;
+      }
+      output.getChars(outputPos, outputPos + n, cbuf, off);
+      outputPos += n;
+      if (outputPos == output.length()) {
+        output.setLength(0);
+        outputPos = 0;
+      }
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,398 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.log4j.Logger;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+/**
+ * Uploaded zip archive with DocBook sources, used to import them without extracting to the disk. Each archive entry
+ * has <code>jar:</code> URL used as system id (see {@link #getSystemId(String)}), so relative paths in XIncludes and
+ * entities are evaluated correctly by parser. This class then serves them as {@link EntityResolver} and
+ * {@link URIResolver} directly from archive entries.
+ * <p>
+ * Number of entries and their total uncompressed size are limited when archive is opened, and no more bytes than
+ * declared size of entry may be read from it, so zip bomb is rejected before it is passed to parser.
+ * <p>
+ * Archive is thread safe, so more transformations may read it concurrently. It must be closed after import.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class DocBookZipArchive implements EntityResolver, URIResolver, Closeable {
+
+  private static final Logger log = Logger.getLogger(DocBookZipArchive.class);
+
+  /**
+   * Default limit of total uncompressed size of all entries in archive.
+   */
+  public static final long DEFAULT_MAX_TOTAL_SIZE = 1024L * 1024L * 1024L;
+
+  /**
+   * Default limit of number of entries in archive.
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  private final ZipFile zipFile;
+
+  /**
+   * System id prefix for all entries of this archive.
+   */
+  private final String baseSystemId;
+
+  /**
+   * Max number of bytes read from entry with unknown size.
+   */
+  private final long maxTotalSize;
+
+  /**
+   * Open archive with default limits, see {@link #DEFAULT_MAX_TOTAL_SIZE} and {@link #DEFAULT_MAX_ENTRIES}.
+   * 
+   * @param file zip file to open
+   * @throws IOException if file can't be opened as zip archive or if some limit is exceeded
+   */
+  public DocBookZipArchive(File file) throws IOException {
+    this(file, DEFAULT_MAX_TOTAL_SIZE, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Open archive.
+   * 
+   * @param file zip file to open
+   * @param maxTotalSize max total uncompressed size of all entries
+   * @param maxEntries max number of entries
+   * @throws IOException if file can't be opened as zip archive or if some limit is exceeded
+   */
+  public DocBookZipArchive(File file, long maxTotalSize, int maxEntries) throws IOException {
+    this.zipFile = new ZipFile(file);
+    this.baseSystemId = "jar:" + file.toURI().toString() + "!";
+    this.maxTotalSize = maxTotalSize;
+    try {
+      if (zipFile.size() > maxEntries) {
+        throw new IOException("Zip file contains " + zipFile.size() + " entries, max " + maxEntries + " allowed");
+      }
+      long totalSize = 0;
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry ze = entries.nextElement();
+        if (ze.getSize() > 0)
+          totalSize += ze.getSize();
+      }
+      if (totalSize > maxTotalSize) {
+        throw new IOException("Zip file content size " + totalSize + " exceeds limit " + maxTotalSize);
+      }
+    } catch (IOException e) {
+      zipFile.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Get system id (<code>jar:</code> URL) of archive entry.
+   * 
+   * @param entryName name of entry in archive, eg. <code>images/img.png</code>
+   * @return system id of entry
+   */
+  public String getSystemId(String entryName) {
+    try {
+      return baseSystemId + new URI(null, null, "/" + entryName, null).getRawPath();
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Bad archive entry name " + entryName, e);
+    }
+  }
+
+  /**
+   * Get name of archive entry from its system id.
+   * 
+   * @param systemId to get entry name for
+   * @return name of entry in archive, or null if system id doesn't point into this archive
+   */
+  public String getEntryName(String systemId) {
+    if (systemId == null || !systemId.startsWith(baseSystemId)) {
+      return null;
+    }
+    return normalizeEntryName(systemId.substring(baseSystemId.length()), true);
+  }
+
+  /**
+   * Normalize path to entry name - remove <code>.</code> and <code>..</code> segments and leading slash.
+   * 
+   * @param path to normalize, may be relative to archive root
+   * @param escaped true if path is URI escaped (part of system id)
+   * @return entry name or null if path points out of archive
+   */
+  protected static String normalizeEntryName(String path, boolean escaped) {
+    while (path.startsWith("/")) {
+      path = path.substring(1);
+    }
+    try {
+      URI uri = escaped ? new URI("zip:/" + path) : new URI("zip", "/" + path, null);
+      String ret = uri.normalize().getPath();
+      if (ret == null || ret.startsWith("/..")) {
+        return null;
+      }
+      return ret.substring(1);
+    } catch (URISyntaxException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get entry of archive.
+   * 
+   * @param path of file in archive, relative to archive root. May contain <code>.</code> and <code>..</code> segments.
+   * @return entry or null if not found (or if it is directory)
+   */
+  protected ZipEntry getEntry(String path) {
+    String name = normalizeEntryName(path, false);
+    if (name == null) {
+      return null;
+    }
+    ZipEntry ze = zipFile.getEntry(name);
+    if (ze == null || ze.isDirectory()) {
+      return null;
+    }
+    return ze;
+  }
+
+  /**
+   * Check if file exists in archive.
+   * 
+   * @param path of file in archive, relative to archive root
+   * @return true if file exists
+   */
+  public boolean exists(String path) {
+    return getEntry(path) != null;
+  }
+
+  /**
+   * Get size of file in archive.
+   * 
+   * @param path of file in archive, relative to archive root
+   * @return uncompressed size of file, -1 if unknown
+   * @throws FileNotFoundException if file doesn't exist in archive
+   */
+  public long getSize(String path) throws FileNotFoundException {
+    ZipEntry ze = getEntry(path);
+    if (ze == null) {
+      throw new FileNotFoundException("File " + path + " not found in uploaded archive");
+    }
+    return ze.getSize();
+  }
+
+  /**
+   * Get CRC-32 checksum of file in archive. May be used as cheap fingerprint of file content together with size.
+   * 
+   * @param path of file in archive, relative to archive root
+   * @return CRC-32 of uncompressed file, -1 if unknown
+   * @throws FileNotFoundException if file doesn't exist in archive
+   */
+  public long getCrc(String path) throws FileNotFoundException {
+    ZipEntry ze = getEntry(path);
+    if (ze == null) {
+      throw new FileNotFoundException("File " + path + " not found in uploaded archive");
+    }
+    return ze.getCrc();
+  }
+
+  /**
+   * Open stream to read file from archive.
+   * 
+   * @param path of file in archive, relative to archive root
+   * @return stream with file content, caller must close it. It throws {@link IOException} if more bytes than declared
+   *         size of file are read.
+   * @throws IOException
+   * @throws FileNotFoundException if file doesn't exist in archive
+   */
+  public InputStream openInputStream(String path) throws IOException {
+    ZipEntry ze = getEntry(path);
+    if (ze == null) {
+      throw new FileNotFoundException("File " + path + " not found in uploaded archive");
+    }
+    return new SizeLimitedInputStream(zipFile.getInputStream(ze), ze.getSize() >= 0 ? ze.getSize() : maxTotalSize,
+        ze.getName());
+  }
+
+  /**
+   * Stream failing when more bytes than limit are read, so entry with false declared size can't be inflated more.
+   */
+  private static class SizeLimitedInputStream extends FilterInputStream {
+
+    private final long limit;
+
+    private final String name;
+
+    private long size = 0;
+
+    SizeLimitedInputStream(InputStream in, long limit, String name) {
+      super(in);
+      this.limit = limit;
+      this.name = name;
+    }
+
+    private void count(long n) throws IOException {
+      size += n;
+      if (size > limit) {
+        throw new IOException("Zip file entry " + name + " is bigger than its declared size " + limit);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      int ret = super.read();
+      if (ret != -1)
+        count(1);
+      return ret;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int ret = super.read(b, off, len);
+      if (ret > 0)
+        count(ret);
+      return ret;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long ret = super.skip(n);
+      if (ret > 0)
+        count(ret);
+      return ret;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  /**
+   * Get names of all files in root folder of archive.
+   * 
+   * @return list of entry names
+   */
+  public List<String> getRootFileNames() {
+    List<String> ret = new ArrayList<String>();
+    Enumeration<? extends ZipEntry> entries = zipFile.entries();
+    while (entries.hasMoreElements()) {
+      ZipEntry ze = entries.nextElement();
+      if (!ze.isDirectory()) {
+        String name = normalizeEntryName(ze.getName(), false);
+        if (name != null && name.indexOf('/') < 0) {
+          ret.add(name);
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Resolve entities and XIncludes pointing into this archive. <code>.ent</code> files not found are searched in
+   * parent folder as {@link JDGEntityResolver} does for files.
+   * 
+   * @return source reading archive entry or null if system id doesn't point into this archive
+   * @see org.xml.sax.EntityResolver#resolveEntity(java.lang.String, java.lang.String)
+   */
+  @Override
+  public InputSource resolveEntity(String publicId, String systemId) throws IOException {
+    String name = getEntryName(systemId);
+    if (name == null) {
+      return null;
+    }
+    if (!exists(name) && name.toLowerCase().endsWith(".ent")) {
+      int idx = name.lastIndexOf('/');
+      if (idx > -1) {
+        String dir = name.substring(0, idx);
+        int pidx = dir.lastIndexOf('/');
+        String newName = (pidx > -1 ? dir.substring(0, pidx + 1) : "") + name.substring(idx + 1);
+        log.debug("Archive entry for .ent resource do not exists (" + name + "), try to load it from parent folder: "
+            + newName);
+        if (exists(newName)) {
+          name = newName;
+        }
+      }
+    }
+    InputSource is = new InputSource(openInputStream(name));
+    is.setSystemId(systemId);
+    return is;
+  }
+
+  /**
+   * Resolve URIs used by XSLT transformation (eg. in <code>document()</code>) pointing into this archive.
+   * 
+   * @return source reading archive entry or null if URI doesn't point into this archive
+   * @see javax.xml.transform.URIResolver#resolve(java.lang.String, java.lang.String)
+   */
+  @Override
+  public Source resolve(String href, String base) throws TransformerException {
+    String systemId = href;
+    try {
+      if (base != null && base.startsWith(baseSystemId)) {
+        String name = getEntryName(base);
+        URI resolved = new URI("zip", "/" + name, null).resolve(new URI(href));
+        if (resolved.isAbsolute() && !"zip".equals(resolved.getScheme())) {
+          return null;
+        }
+        systemId = baseSystemId + resolved.getRawPath();
+      }
+      String name = getEntryName(systemId);
+      if (name == null) {
+        return null;
+      }
+      return new StreamSource(openInputStream(name), systemId);
+    } catch (URISyntaxException e) {
+      return null;
+    } catch (IOException e) {
+      throw new TransformerException(e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    zipFile.close();
+  }
+
+  @Override
+  public String toString() {
+    return "DocBookZipArchive [" + zipFile.getName() + "]";
+  }
+
+}
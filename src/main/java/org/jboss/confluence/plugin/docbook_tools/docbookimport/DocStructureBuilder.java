@@ -0,0 +1,389 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+
+import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * SAX handler building document structure of chapters, appendixes and sections directly from XInclude resolved
+ * DocBook xml <code>book</code>, in one pass and without any intermediate XML. Rules are:
+ * <ul>
+ * <li>root element must be <code>book</code>, its direct <code>chapter</code> and <code>appendix</code> childs are
+ * nodes. Appendixes are placed after all chapters.
+ * <li>first level of sections in chapter or appendix is node, or all levels if <code>allSectionLevels</code> is set.
+ * <li>node title is text of its first <code>title</code> child, book title is taken from <code>bookinfo</code> or
+ * <code>info</code> (and <code>title</code> for DocBook 5).
+ * <li>node id is taken from <code>id</code> attribute (and <code>xml:id</code> for DocBook 5), section label from
+ * <code>remap</code> attribute.
+ * <li><code>fileref</code> attribute of any element inside chapter or appendix is added to the nearest node, content of
+ * such element is not processed.
+ * <li><code>linkend</code> attribute of any element inside chapter or appendix is added to the nearest node as cross
+ * reference target.
+ * <li>hash of content of each node is computed from all elements, attributes and text inside of it, except content of
+ * its child nodes, see {@link DocStructureItem#getContentHash()}.
+ * </ul>
+ * One instance may be used to process one book only.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class DocStructureBuilder extends DefaultHandler {
+
+  protected static final String DOCBOOK_5_NAMESPACE = "http://docbook.org/ns/docbook";
+
+  private static final String ATTR_ID = "id";
+  private static final String ATTR_FILEREF = "fileref";
+  private static final String ATTR_REMAP = "remap";
+  private static final String ATTR_LINKEND = "linkend";
+  private static final String ELEMENT_TITLE = "title";
+
+  /**
+   * How element content is processed.
+   */
+  private static enum Mode {
+    /** root <code>book</code> element */
+    BOOK,
+    /** <code>bookinfo</code> or <code>info</code> element of book */
+    BOOK_INFO,
+    /** element inside of chapter or appendix */
+    NODE_CONTENT,
+    /** element content is not processed */
+    IGNORED
+  }
+
+  /**
+   * Info about open element.
+   */
+  private static class OpenElement {
+    /** local name of element if it is from DocBook namespace, null otherwise */
+    final String docbookName;
+    final Mode mode;
+    /** nearest structure node element belongs to */
+    final DocStructureItem node;
+    /** type of chapter or appendix element belongs to */
+    final String topLevelType;
+    /** true if element starts structure node */
+    final boolean nodeStart;
+    boolean titleFound = false;
+    /** digest of node content element belongs to, null if element is out of nodes */
+    MessageDigest digest;
+
+    OpenElement(String docbookName, Mode mode) {
+      this(docbookName, mode, null, null, false);
+    }
+
+    OpenElement(String docbookName, Mode mode, DocStructureItem node, String topLevelType, boolean nodeStart) {
+      this.docbookName = docbookName;
+      this.mode = mode;
+      this.node = node;
+      this.topLevelType = topLevelType;
+      this.nodeStart = nodeStart;
+    }
+  }
+
+  private final DocBookVersion docbookVersion;
+
+  private final String docbookNamespace;
+
+  private final boolean allSectionLevels;
+
+  private final LinkedList<OpenElement> openElements = new LinkedList<OpenElement>();
+
+  private DocStructureItem book;
+
+  private final List<DocStructureItem> appendixes = new ArrayList<DocStructureItem>();
+
+  private String bookInfoTitle;
+  private String infoTitle;
+  private String bookTitle;
+
+  /**
+   * Title text being collected, null if no title is collected now.
+   */
+  private StringBuilder titleText;
+
+  /**
+   * Number of elements open inside of collected title.
+   */
+  private int titleDepth;
+
+  /**
+   * Element owning collected title, one of {@link DocStructureItem} or name of book title source element.
+   */
+  private Object titleOwner;
+
+  /**
+   * Pool of filerefs and labels used in book, so each distinct value is held only once in document structure.
+   */
+  private final Map<String, String> stringPool = new HashMap<String, String>();
+
+  /**
+   * Constructor.
+   * 
+   * @param docbookVersion version of DocBook to process
+   * @param allSectionLevels if true then all section levels are in structure. If false then only first section level.
+   */
+  public DocStructureBuilder(DocBookVersion docbookVersion, boolean allSectionLevels) {
+    this.docbookVersion = docbookVersion;
+    this.docbookNamespace = docbookVersion == DocBookVersion.DOCBOOK_5_0 ? DOCBOOK_5_NAMESPACE : "";
+    this.allSectionLevels = allSectionLevels;
+  }
+
+  /**
+   * Get built document structure. Call it after document is processed.
+   * 
+   * @return structure of titles
+   * @throws IllegalStateException if processed document is not DocBook book of given version
+   */
+  public DocStructureItem getDocStructure() {
+    if (book == null) {
+      throw new IllegalStateException("Root element of DocBook xml file is not 'book' of DocBook version "
+          + docbookVersion);
+    }
+    return book;
+  }
+
+  @Override
+  public void startDocument() throws SAXException {
+    if (book != null || !openElements.isEmpty()) {
+      throw new IllegalStateException("DocStructureBuilder may be used for one document only");
+    }
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+    String docbookName = docbookNamespace.equals(uri == null ? "" : uri) ? localName : null;
+    if (titleText != null) {
+      titleDepth++;
+    }
+
+    OpenElement parent = openElements.peek();
+    OpenElement element;
+    if (parent == null) {
+      if ("book".equals(docbookName)) {
+        book = new DocStructureItem(DocStructureItem.TYPE_BOOK);
+        element = new OpenElement(docbookName, Mode.BOOK, book, null, true);
+      } else {
+        element = new OpenElement(docbookName, Mode.IGNORED);
+      }
+    } else if (parent.mode == Mode.BOOK) {
+      element = startBookChild(docbookName, attributes);
+    } else if (parent.mode == Mode.BOOK_INFO) {
+      if (ELEMENT_TITLE.equals(docbookName)) {
+        startTitle(parent.docbookName);
+      }
+      element = new OpenElement(docbookName, Mode.IGNORED);
+    } else if (parent.mode == Mode.NODE_CONTENT) {
+      element = startNodeContent(parent, docbookName, attributes);
+    } else {
+      element = new OpenElement(docbookName, Mode.IGNORED);
+    }
+    if (element.nodeStart) {
+      element.digest = ImportManifest.newDigest();
+    } else if (parent != null) {
+      element.digest = parent.digest;
+    }
+    if (element.digest != null) {
+      updateDigest(element.digest, "<");
+      updateDigest(element.digest, uri);
+      updateDigest(element.digest, localName);
+      for (int i = 0; i < attributes.getLength(); i++) {
+        updateDigest(element.digest, attributes.getURI(i));
+        updateDigest(element.digest, attributes.getLocalName(i));
+        updateDigest(element.digest, attributes.getValue(i));
+      }
+      updateDigest(element.digest, ">");
+    }
+    openElements.push(element);
+  }
+
+  private void updateDigest(MessageDigest digest, String value) {
+    if (value != null) {
+      try {
+        digest.update(value.getBytes(FileUtils.CHARSET_UTF_8));
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    digest.update((byte) 0);
+  }
+
+  private OpenElement startBookChild(String docbookName, Attributes attributes) {
+    if (DocStructureItem.TYPE_CHAPTER.equals(docbookName) || DocStructureItem.TYPE_APPENDIX.equals(docbookName)) {
+      if (attributes.getValue("", ATTR_FILEREF) != null) {
+        return new OpenElement(docbookName, Mode.IGNORED);
+      }
+      DocStructureItem node = createNode(docbookName, attributes);
+      if (DocStructureItem.TYPE_CHAPTER.equals(docbookName)) {
+        book.addChild(node);
+      } else {
+        appendixes.add(node);
+      }
+      return new OpenElement(docbookName, Mode.NODE_CONTENT, node, docbookName, true);
+    } else if ("bookinfo".equals(docbookName) || "info".equals(docbookName)) {
+      return new OpenElement(docbookName, Mode.BOOK_INFO);
+    } else if (ELEMENT_TITLE.equals(docbookName)) {
+      startTitle("book");
+    }
+    return new OpenElement(docbookName, Mode.IGNORED);
+  }
+
+  private OpenElement startNodeContent(OpenElement parent, String docbookName, Attributes attributes) {
+    String fileref = attributes.getValue("", ATTR_FILEREF);
+    if (fileref != null) {
+      parent.node.addFileref(intern(fileref.trim()));
+      return new OpenElement(docbookName, Mode.IGNORED);
+    }
+    if (DocStructureItem.TYPE_SECTION.equals(docbookName)
+        && (allSectionLevels || parent.topLevelType.equals(parent.docbookName))) {
+      DocStructureItem node = createNode(docbookName, attributes);
+      node.addLabel(intern(attributes.getValue("", ATTR_REMAP)));
+      parent.node.addChild(node);
+      return new OpenElement(docbookName, Mode.NODE_CONTENT, node, parent.topLevelType, true);
+    }
+    parent.node.addLinkend(intern(attributes.getValue("", ATTR_LINKEND)));
+    if (ELEMENT_TITLE.equals(docbookName) && parent.nodeStart && !parent.titleFound) {
+      parent.titleFound = true;
+      startTitle(parent.node);
+    }
+    return new OpenElement(docbookName, Mode.NODE_CONTENT, parent.node, parent.topLevelType, false);
+  }
+
+  private String intern(String value) {
+    if (value == null)
+      return null;
+    String ret = stringPool.get(value);
+    if (ret == null) {
+      stringPool.put(value, value);
+      ret = value;
+    }
+    return ret;
+  }
+
+  private DocStructureItem createNode(String type, Attributes attributes) {
+    DocStructureItem node = new DocStructureItem(type);
+    node.setId(attributes.getValue("", ATTR_ID));
+    if (docbookVersion == DocBookVersion.DOCBOOK_5_0) {
+      String xmlId = attributes.getValue(XMLConstants.XML_NS_URI, ATTR_ID);
+      if (xmlId != null) {
+        node.setId(xmlId);
+      }
+    }
+    return node;
+  }
+
+  private void startTitle(Object owner) {
+    if (titleText == null) {
+      titleText = new StringBuilder();
+      titleDepth = 0;
+      titleOwner = owner;
+    }
+  }
+
+  @Override
+  public void characters(char[] ch, int start, int length) throws SAXException {
+    if (titleText != null) {
+      titleText.append(ch, start, length);
+    }
+    OpenElement element = openElements.peek();
+    if (element != null && element.digest != null) {
+      // text may be split into more calls differently, so it is not delimited
+      byte[] bytes = new byte[length * 2];
+      for (int i = 0; i < length; i++) {
+        char c = ch[start + i];
+        bytes[i * 2] = (byte) (c >> 8);
+        bytes[i * 2 + 1] = (byte) c;
+      }
+      element.digest.update(bytes);
+    }
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName) throws SAXException {
+    OpenElement element = openElements.pop();
+    if (element.digest != null) {
+      updateDigest(element.digest, "</");
+      if (element.nodeStart) {
+        element.node.setContentHash(ImportManifest.toHex(element.digest.digest()));
+      }
+    }
+    if (titleText != null) {
+      if (titleDepth == 0) {
+        endTitle(titleText.toString());
+        titleText = null;
+        titleOwner = null;
+      } else {
+        titleDepth--;
+      }
+    }
+  }
+
+  private void endTitle(String title) {
+    if (titleOwner instanceof DocStructureItem) {
+      ((DocStructureItem) titleOwner).setTitle(title.trim());
+    } else if ("bookinfo".equals(titleOwner)) {
+      if (bookInfoTitle == null)
+        bookInfoTitle = title;
+    } else if ("info".equals(titleOwner)) {
+      if (infoTitle == null)
+        infoTitle = title;
+    } else if ("book".equals(titleOwner)) {
+      if (bookTitle == null)
+        bookTitle = title;
+    }
+  }
+
+  @Override
+  public void endDocument() throws SAXException {
+    if (book == null) {
+      return;
+    }
+    for (DocStructureItem appendix : appendixes) {
+      book.addChild(appendix);
+    }
+    if (docbookVersion == DocBookVersion.DOCBOOK_5_0) {
+      setBookTitle(bookInfoTitle);
+      setBookTitle(infoTitle);
+      setBookTitle(bookTitle);
+    } else {
+      setBookTitle((bookInfoTitle != null ? bookInfoTitle : "") + (infoTitle != null ? infoTitle : ""));
+    }
+  }
+
+  private void setBookTitle(String title) {
+    if (title != null) {
+      book.setTitle(title.trim());
+    }
+  }
+
+}
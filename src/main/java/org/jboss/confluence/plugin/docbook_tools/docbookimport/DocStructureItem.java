@@ -21,8 +21,13 @@
 package org.jboss.confluence.plugin.docbook_tools.docbookimport;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
@@ -108,19 +113,61 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 	private List<DocStructureItem> childs = new ArrayList<DocStructureItem>();
 
 	/**
-	 * List of external file refs (http:// etc) in this node
+	 * List of external file refs (http:// etc) in this node, null until first one is added.
 	 */
-	private List<String> filerefsExternal = new ArrayList<String>();
+	private List<String> filerefsExternal;
 
 	/**
-	 * List of local file refs (go to file in export zip) in this node (so filerefs to disk)
+	 * List of local file refs (go to file in export zip) in this node (so filerefs to disk), null until first one is
+	 * added.
 	 */
-	private List<String> filerefsLocal = new ArrayList<String>();
+	private List<String> filerefsLocal;
 
 	/**
-	 * Set of labels for this node - used as labels for confluence page created from this node
+	 * Set of labels for this node - used as labels for confluence page created from this node, null until first one is
+	 * added.
 	 */
-	private Set<String> labels = new HashSet<String>();
+	private Set<String> labels;
+
+	/**
+	 * List of DocBook ids this node links to (cross references), null until first one is added.
+	 */
+	private List<String> linkends;
+
+	/**
+	 * Hash of DocBook content of this node, without content of child nodes. Null if not computed.
+	 */
+	private String contentHash;
+
+	/**
+	 * True if tree structure can't be changed anymore, see {@link #freeze()}.
+	 */
+	private boolean frozen;
+
+	/**
+	 * XPath without xmlns prefix (used to identify nodes), precomputed by {@link #freeze()}.
+	 */
+	private String docBookXPath;
+
+	/**
+	 * Position of this node in document order of whole tree, precomputed by {@link #freeze()}.
+	 */
+	private int ordinal = -1;
+
+	/**
+	 * Ordinal of first node following subtree of this node in document order, precomputed by {@link #freeze()}.
+	 */
+	private int subtreeEnd = -1;
+
+	/**
+	 * All nodes of tree in document order, indexed by {@link #ordinal}. Set on root node only by {@link #freeze()}.
+	 */
+	private DocStructureItem[] documentOrder;
+
+	/**
+	 * {@link #ordinal} of first node with given id in document order, by id. Set on root node only by {@link #freeze()}.
+	 */
+	private Map<String, Integer> idOrdinals;
 
 	/**
 	 * @return the title
@@ -170,6 +217,7 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 	 * @param child the child to add.
 	 */
 	public void addChild(DocStructureItem child) {
+		checkNotFrozen();
 		if (child.getType() == null) {
 			throw new IllegalArgumentException("type must be set in child node");
 		}
@@ -181,6 +229,8 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 	 * @return the filerefs
 	 */
 	public List<String> getFilerefsExternal() {
+		if (filerefsExternal == null)
+			return Collections.emptyList();
 		return filerefsExternal;
 	}
 
@@ -188,6 +238,8 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 	 * @return the filerefs
 	 */
 	public List<String> getFilerefsLocal() {
+		if (filerefsLocal == null)
+			return Collections.emptyList();
 		return filerefsLocal;
 	}
 
@@ -195,6 +247,8 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 	 * @return the labels
 	 */
 	public Set<String> getLabels() {
+		if (labels == null)
+			return Collections.emptySet();
 		return labels;
 	}
 
@@ -207,8 +261,10 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 
 	/**
 	 * @param id the id to set
+	 * @throws IllegalStateException if tree is frozen, see {@link #freeze()}
 	 */
 	public void setId(String id) {
+		checkNotFrozen();
 		this.id = StringUtils.trimToNull(id);
 	}
 
@@ -229,6 +285,7 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 	 * @param type the type to set
 	 */
 	public void setType(String type) {
+		checkNotFrozen();
 		this.type = type;
 	}
 
@@ -247,10 +304,10 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 	 * @return root node of tree hierarchy.
 	 */
 	public DocStructureItem getRoot() {
-		if (parent == null)
-			return this;
-		else
-			return parent.getRoot();
+		DocStructureItem ret = this;
+		while (ret.parent != null)
+			ret = ret.parent;
+		return ret;
 	}
 
 	/**
@@ -266,8 +323,12 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 		}
 		int ind = fileref.indexOf("://");
 		if (ind > 0 && ind < 10) {
+			if (filerefsExternal == null)
+				filerefsExternal = new ArrayList<String>(2);
 			filerefsExternal.add(fileref);
 		} else {
+			if (filerefsLocal == null)
+				filerefsLocal = new ArrayList<String>(2);
 			filerefsLocal.add(fileref);
 		}
 	}
@@ -275,10 +336,119 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 	public void addLabel(String label) {
 		label = StringUtils.trimToNull(label);
 		if (label != null) {
+			if (labels == null)
+				labels = new HashSet<String>(4);
 			labels.add(label);
 		}
 	}
 
+	/**
+	 * Get DocBook ids of cross reference targets used in this part of DocBook content. Link is rendered with page title
+	 * of target node, so content of this node depends on it.
+	 * 
+	 * @return the linkends, each one once
+	 */
+	public List<String> getLinkends() {
+		if (linkends == null)
+			return Collections.emptyList();
+		return linkends;
+	}
+
+	/**
+	 * Add DocBook id of cross reference target used in this part of DocBook content.
+	 * 
+	 * @param linkend to add, ignored if blank or already added
+	 * @see #getLinkends()
+	 */
+	public void addLinkend(String linkend) {
+		if (StringUtils.isBlank(linkend))
+			return;
+		if (linkends == null)
+			linkends = new ArrayList<String>(2);
+		if (!linkends.contains(linkend))
+			linkends.add(linkend);
+	}
+
+	/**
+	 * Get this node and all its descendants in document order (node is always before its childs, childs are in
+	 * document order). Returned list is a view backed by array precomputed by {@link #freeze()} if tree is frozen, so
+	 * whole tree may be processed in one linear pass without recursion.
+	 * 
+	 * @return unmodifiable list starting with this node
+	 */
+	public List<DocStructureItem> getSubtree() {
+		if (frozen)
+			return Collections.unmodifiableList(Arrays.asList(getRoot().documentOrder).subList(ordinal, subtreeEnd));
+		List<DocStructureItem> ret = new ArrayList<DocStructureItem>();
+		LinkedList<DocStructureItem> stack = new LinkedList<DocStructureItem>();
+		stack.push(this);
+		while (!stack.isEmpty()) {
+			DocStructureItem node = stack.pop();
+			ret.add(node);
+			for (int i = node.childs.size() - 1; i >= 0; i--) {
+				stack.push(node.childs.get(i));
+			}
+		}
+		return Collections.unmodifiableList(ret);
+	}
+
+	/**
+	 * Get node with given id from subtree of this node (this node included). Id index precomputed by {@link #freeze()}
+	 * is used if tree is frozen, so whole tree is not traversed.
+	 * 
+	 * @param id to look for
+	 * @return first node with given id in document order, null if not found
+	 */
+	public DocStructureItem getNodeById(String id) {
+		if (id == null)
+			return null;
+		if (frozen) {
+			DocStructureItem r = getRoot();
+			Integer first = r.idOrdinals.get(id);
+			if (first == null || first >= subtreeEnd)
+				return null;
+			if (first >= ordinal)
+				return r.documentOrder[first];
+			// first node with this id is before this subtree, so id is not unique and subtree has to be searched
+		}
+		for (DocStructureItem node : getSubtree()) {
+			if (id.equals(node.id))
+				return node;
+		}
+		return null;
+	}
+
+	/**
+	 * Get all ids used in frozen tree this node is in.
+	 * 
+	 * @return unmodifiable set of ids, in no particular order
+	 * @throws IllegalStateException if tree is not frozen
+	 */
+	Set<String> getTreeIds() {
+		if (!frozen) {
+			throw new IllegalStateException("DocStructureItem tree is not frozen, ids are not indexed");
+		}
+		return Collections.unmodifiableSet(getRoot().idOrdinals.keySet());
+	}
+
+	/**
+	 * Get hash of DocBook content of this node. Content of child nodes is not included, they have own hash.
+	 * 
+	 * @return hex encoded hash, null if not computed
+	 * @see DocStructureBuilder
+	 */
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * @param contentHash the contentHash to set
+	 * @see #getContentHash()
+	 */
+	public void setContentHash(String contentHash) {
+		this.contentHash = contentHash;
+	}
+
 	/**
 	 * Get index of given child in me counted for same types.
 	 * 
@@ -307,6 +477,9 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 		if (xmlnsPrefix == null) {
 			xmlnsPrefix = "";
 		}
+		if (docBookXPath != null && xmlnsPrefix.isEmpty()) {
+			return docBookXPath;
+		}
 		if (parent == null) {
 			return xmlnsPrefix + type;
 		} else {
@@ -316,6 +489,64 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 		}
 	}
 
+	/**
+	 * Freeze structure of tree this node is root of, so it can't be changed anymore (see
+	 * {@link #addChild(DocStructureItem)} and {@link #setType(String)}). XPaths without xmlns prefix are precomputed for
+	 * all nodes of tree, so {@link #getDocBookXPath(String)} is cheap then for <code>null</code> prefix. Nodes are
+	 * numbered in document order, {@link #getSubtree()} is backed by flat array and {@link #getNodeById(String)} uses id
+	 * index then. Ids can't be changed anymore, title and other informations of nodes may be changed yet.
+	 * 
+	 * @throws IllegalStateException if called on non root node
+	 */
+	public void freeze() {
+		if (parent != null) {
+			throw new IllegalStateException("Only root node can be frozen");
+		}
+		if (frozen)
+			return;
+		List<DocStructureItem> order = getSubtree();
+		DocStructureItem[] nodes = order.toArray(new DocStructureItem[order.size()]);
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		Map<String, Integer> typeCounts = new HashMap<String, Integer>();
+		docBookXPath = type;
+		// parent is always before its childs in document order, so its XPath is known already
+		for (int i = 0; i < nodes.length; i++) {
+			DocStructureItem node = nodes[i];
+			node.ordinal = i;
+			if (node.id != null && !ids.containsKey(node.id))
+				ids.put(node.id, i);
+			typeCounts.clear();
+			for (DocStructureItem child : node.childs) {
+				Integer idx = typeCounts.get(child.type);
+				idx = idx == null ? 1 : idx + 1;
+				typeCounts.put(child.type, idx);
+				child.docBookXPath = node.docBookXPath + "/" + child.type + "[" + idx + "]";
+			}
+			node.childs = Collections.unmodifiableList(node.childs);
+			node.frozen = true;
+		}
+		// subtree of node ends where subtree of its last child ends, so go from the end
+		for (int i = nodes.length - 1; i >= 0; i--) {
+			DocStructureItem node = nodes[i];
+			node.subtreeEnd = node.childs.isEmpty() ? i + 1 : node.childs.get(node.childs.size() - 1).subtreeEnd;
+		}
+		documentOrder = nodes;
+		idOrdinals = ids;
+	}
+
+	/**
+	 * @return true if tree structure can't be changed anymore, see {@link #freeze()}
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	private void checkNotFrozen() {
+		if (frozen) {
+			throw new IllegalStateException("DocStructureItem tree is frozen, structure can't be changed");
+		}
+	}
+
 	@Override
 	public String toString() {
 		return toString(true);
@@ -324,8 +555,8 @@ public class DocStructureItem implements ConfluencePageTitleUniqEnabled {
 	public String toString(boolean printChilds) {
 		StringBuilder sb = new StringBuilder();
 		sb.append("<DocStructureItem id='").append(id).append("' type='").append(type).append("' title='").append(title)
-				.append("' labels='").append(labels).append("' filerefsLocal='").append(filerefsLocal)
-				.append("' filerefsExternal='").append(filerefsExternal);
+				.append("' labels='").append(getLabels()).append("' filerefsLocal='").append(getFilerefsLocal())
+				.append("' filerefsExternal='").append(getFilerefsExternal());
 		if (printChilds && !childs.isEmpty()) {
 			sb.append("'>\n");
 			for (DocStructureItem i : childs) {
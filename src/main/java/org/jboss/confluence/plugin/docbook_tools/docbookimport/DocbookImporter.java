@@ -20,31 +20,72 @@
  */
 package org.jboss.confluence.plugin.docbook_tools.docbookimport;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.FilterOutputStream;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
 
-import org.apache.commons.digester.Digester;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
-import org.jboss.confluence.plugin.docbook_tools.utils.RegExpUtils;
 import org.jboss.confluence.plugin.docbook_tools.utils.SAXErrorHandler;
+import org.jboss.confluence.plugin.docbook_tools.utils.WorkerThreadFactory;
 import org.jboss.confluence.plugin.docbook_tools.utils.XSLTErrorListener;
+import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.ParserAdapter;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 /**
  * Class used to import DocBook files with "JBoss Documentation Guide" structure to Confluence.
@@ -68,13 +109,142 @@ public class DocbookImporter {
     // do not validate saxParserFactory.setValidating(true);
   }
 
+  // DOM factory creating in-memory book shared by concurrent transformations, see prepareDocBookSource()
+  protected static final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+  static {
+    documentBuilderFactory.setNamespaceAware(true);
+    try {
+      // deferred DOM expands nodes when they are read first time, which is not thread safe
+      documentBuilderFactory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+    } catch (ParserConfigurationException e) {
+      log.warn("Deferred node expansion can't be disabled for " + documentBuilderFactory.getClass().getName());
+    }
+  }
+
+  // StAX factory to read root element of xml files only, external DTD and entities are never loaded
+  protected static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+  static {
+    xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    xmlInputFactory.setXMLResolver(new XMLResolver() {
+
+      @Override
+      public Object resolveEntity(String publicID, String systemID, String baseURI, String namespace) {
+        return new ByteArrayInputStream(new byte[0]);
+      }
+    });
+  }
+
   // XSLT engine
   protected static final javax.xml.transform.TransformerFactory transformerFact = javax.xml.transform.TransformerFactory
       .newInstance();
   static {
     printClassInfo(transformerFact.getClass(), "XSLT TransformerFactory implementation from JAXP");
+    // our XSLT templates import other templates from resources
+    transformerFact.setURIResolver(new URIResolver() {
+
+      @Override
+      public Source resolve(String href, String base) throws TransformerException {
+        InputStream is = DocbookImporter.class.getResourceAsStream(href);
+        if (is == null) {
+          return null;
+        }
+        return new StreamSource(is, href);
+      }
+    });
+  }
+
+  /**
+   * Name of XSLT template used to prepare WIKI content of one node, see
+   * {@link #getXsltTemplates(String, DocBookVersion)}.
+   */
+  protected static final String XSLT_NODE_WIKI_CONTENT = "prepareChapterWIKIContent";
+
+  /**
+   * Name of XSLT template used to prepare WIKI content of all nodes in one pass, see
+   * {@link #getXsltTemplates(String, DocBookVersion)}.
+   */
+  protected static final String XSLT_BOOK_WIKI_CONTENT = "prepareBookWIKIContent";
+
+  /**
+   * Character used to delimit records with content of distinct nodes in {@link #XSLT_BOOK_WIKI_CONTENT} output.
+   */
+  private static final char BOOK_WIKI_CONTENT_RECORD_DELIMITER = '\uE000';
+
+  /**
+   * Nodes are rendered one by one in
+   * {@link #prepareNodesWIKIContent(DocBookSource, DocStructureItem, Collection, DocBookVersion, boolean)} only if
+   * their count is at most this percentage of all nodes, whole book is transformed otherwise.
+   */
+  protected static final int SEPARATE_RENDERING_MAX_PERCENT = 10;
+
+  /**
+   * Cache of compiled XSLT templates. Key is XSLT template name with DocBook version filename postfix. Compiled
+   * {@link Templates} are thread safe so may be shared by all imports.
+   */
+  private static final ConcurrentMap<String, Templates> xsltTemplatesCache = new ConcurrentHashMap<String, Templates>();
+
+  /**
+   * Default value for {@link #getMaxInMemoryBookSize()}.
+   */
+  public static final long DEFAULT_MAX_IN_MEMORY_BOOK_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * Estimated size of one element in parsed DocBook book, used to count book size against
+   * {@link #getMaxInMemoryBookSize()}.
+   */
+  private static final int IN_MEMORY_ELEMENT_SIZE = 64;
+
+  private long maxInMemoryBookSize = DEFAULT_MAX_IN_MEMORY_BOOK_SIZE;
+
+  /**
+   * Number of threads in {@link #xsltExecutor}.
+   */
+  protected static final int XSLT_POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Max number of tasks waiting in queue of {@link #xsltExecutor}.
+   */
+  protected static final int XSLT_QUEUE_SIZE = XSLT_POOL_SIZE;
+
+  /**
+   * Pool of threads running XSLT transformations, shared by all imports. Threads have plugin classloader as context
+   * classloader, which is necessary for JAXP to work correctly. Idle threads are released after one minute. Queue of
+   * waiting tasks is bounded, task submitted into full queue is run by submitting thread (with plugin classloader as
+   * context classloader too), so busy pool slows down imports instead of piling tasks up.
+   */
+  private static final WorkerThreadFactory xsltThreadFactory = new WorkerThreadFactory(
+      "DocbookImporter XSLT transformation thread", DocbookImporter.class.getClassLoader());
+
+  private static final ThreadPoolExecutor xsltExecutor = new ThreadPoolExecutor(XSLT_POOL_SIZE, XSLT_POOL_SIZE, 60,
+      TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(XSLT_QUEUE_SIZE), xsltThreadFactory,
+      new ThreadPoolExecutor.CallerRunsPolicy() {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+          Thread th = Thread.currentThread();
+          ClassLoader cl = th.getContextClassLoader();
+          th.setContextClassLoader(DocbookImporter.class.getClassLoader());
+          try {
+            super.rejectedExecution(r, e);
+          } finally {
+            th.setContextClassLoader(cl);
+          }
+        }
+      });
+  static {
+    xsltExecutor.allowCoreThreadTimeOut(true);
   }
 
+  /**
+   * Default value for {@link #getXsltTimeout()}.
+   */
+  public static final long DEFAULT_XSLT_TIMEOUT = 30 * 60 * 1000;
+
+  private long xsltTimeout = DEFAULT_XSLT_TIMEOUT;
+
+  private int conversionParallelism = XSLT_POOL_SIZE;
+
   /**
    * Constructor with some checks for necessary infrastructure.
    */
@@ -99,6 +269,64 @@ public class DocbookImporter {
     }
   }
 
+  /**
+   * Get max size of DocBook book (number of characters of text and attributes plus estimated size of elements) which
+   * is parsed into memory by {@link #prepareDocBookSource(File)}. Bigger books are reparsed for each transformation.
+   * 
+   * @return max size of book kept in memory, 0 or less means book is never kept in memory
+   */
+  public long getMaxInMemoryBookSize() {
+    return maxInMemoryBookSize;
+  }
+
+  /**
+   * Set max size of DocBook book kept in memory, see {@link #getMaxInMemoryBookSize()}.
+   * 
+   * @param maxInMemoryBookSize the maxInMemoryBookSize to set
+   */
+  public void setMaxInMemoryBookSize(long maxInMemoryBookSize) {
+    this.maxInMemoryBookSize = maxInMemoryBookSize;
+  }
+
+  /**
+   * Get max time one XSLT transformation may run. Transformation running longer is cancelled and error is thrown. Time
+   * is measured from submission of transformation into thread pool, so time spent waiting in its queue is included.
+   * 
+   * @return timeout in milliseconds, 0 or less means no timeout
+   */
+  public long getXsltTimeout() {
+    return xsltTimeout;
+  }
+
+  /**
+   * Set max time one XSLT transformation may run, see {@link #getXsltTimeout()}.
+   * 
+   * @param xsltTimeout the xsltTimeout to set in milliseconds
+   */
+  public void setXsltTimeout(long xsltTimeout) {
+    this.xsltTimeout = xsltTimeout;
+  }
+
+  /**
+   * Get max number of parts converted concurrently by
+   * {@link #prepareAllNodesWIKIContent(DocBookSource, DocStructureItem, DocBookVersion, boolean)}. Parts are processed
+   * by shared XSLT thread pool of {@link #XSLT_POOL_SIZE} threads.
+   * 
+   * @return max number of concurrently converted parts, 1 or less means book is converted in one part
+   */
+  public int getConversionParallelism() {
+    return conversionParallelism;
+  }
+
+  /**
+   * Set max number of parts converted concurrently, see {@link #getConversionParallelism()}.
+   * 
+   * @param conversionParallelism the conversionParallelism to set
+   */
+  public void setConversionParallelism(int conversionParallelism) {
+    this.conversionParallelism = conversionParallelism;
+  }
+
   protected static final void printClassInfo(Class<?> clazz, String msg) {
     Package pack = clazz.getPackage();
     StringBuilder sb = new StringBuilder();
@@ -109,7 +337,8 @@ public class DocbookImporter {
   }
 
   /**
-   * Search for main DocBook <code>book</code> file in folder.
+   * Search for main DocBook <code>book</code> file in folder. Only root element of each xml file is read, see
+   * {@link #getDocBookBookVersion(File)}.
    * 
    * @param folder to search main DocBook <code>book</code> file in.
    * @return main file or null
@@ -119,9 +348,7 @@ public class DocbookImporter {
     File[] files = folder.listFiles(FileUtils.FILTER_FILE_XML);
     if (files != null) {
       for (File f : files) {
-        String content = FileUtils.readFileAsString(new FileInputStream(f));
-        content = content.trim();
-        if (content.indexOf("<book") > -1 && (content.endsWith("</book>") || content.endsWith("</ book>"))) {
+        if (getDocBookBookVersion(f) != null) {
           return f;
         }
       }
@@ -129,6 +356,89 @@ public class DocbookImporter {
     return null;
   }
 
+  /**
+   * Search for main DocBook <code>book</code> file in root folder of uploaded archive. Only root element of each xml
+   * file is read, see {@link #getDocBookBookVersion(DocBookZipArchive, String)}.
+   * 
+   * @param archive to search main DocBook <code>book</code> file in.
+   * @return name of main file entry or null
+   * @throws Exception
+   */
+  public String findMainDocBookBookFile(DocBookZipArchive archive) throws Exception {
+    for (String name : archive.getRootFileNames()) {
+      if (name.toLowerCase().endsWith(".xml") && getDocBookBookVersion(archive, name) != null) {
+        return name;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get version of DocBook <code>book</code> stored in file. See {@link #sniffDocBookBookVersion(InputStream, String)}.
+   * 
+   * @param file to check
+   * @return DocBook version or null if file doesn't contain DocBook <code>book</code>
+   * @throws IOException if file can't be read
+   */
+  public DocBookVersion getDocBookBookVersion(File file) throws IOException {
+    return sniffDocBookBookVersion(FileUtils.openFileInputStream(file), file.toURI().toString());
+  }
+
+  /**
+   * Get version of DocBook <code>book</code> stored in uploaded archive. See
+   * {@link #sniffDocBookBookVersion(InputStream, String)}.
+   * 
+   * @param archive to read file from
+   * @param name of file in archive
+   * @return DocBook version or null if file doesn't contain DocBook <code>book</code>
+   * @throws IOException if file can't be read
+   */
+  public DocBookVersion getDocBookBookVersion(DocBookZipArchive archive, String name) throws IOException {
+    return sniffDocBookBookVersion(archive.openInputStream(name), archive.getSystemId(name));
+  }
+
+  /**
+   * Get version of DocBook <code>book</code> by reading root element of xml only. DocBook 5 root is
+   * <code>book</code> in DocBook namespace, DocBook 4 root is <code>book</code> without namespace, with or without
+   * DocBook DTD declared in DOCTYPE.
+   * 
+   * @param is stream to read xml from, closed inside this method
+   * @param systemId of xml used in log messages
+   * @return DocBook version or null if xml doesn't contain DocBook <code>book</code> or is not xml at all
+   */
+  protected DocBookVersion sniffDocBookBookVersion(InputStream is, String systemId) {
+    XMLStreamReader reader = null;
+    try {
+      reader = xmlInputFactory.createXMLStreamReader(systemId, is);
+      while (reader.hasNext()) {
+        if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+          if (!"book".equals(reader.getLocalName())) {
+            return null;
+          }
+          String ns = reader.getNamespaceURI();
+          if (DocStructureBuilder.DOCBOOK_5_NAMESPACE.equals(ns)) {
+            return DocBookVersion.DOCBOOK_5_0;
+          } else if (ns == null || ns.isEmpty()) {
+            return DocBookVersion.DOCBOOK_4_3;
+          }
+          return null;
+        }
+      }
+    } catch (XMLStreamException e) {
+      log.debug("Root element can't be read from " + systemId + " due " + e.getMessage());
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException e) {
+          // nothing to do
+        }
+      }
+      FileUtils.closeInputStream(is);
+    }
+    return null;
+  }
+
   /**
    * Validate all images present in DocBook document structure are also present in input folder.
    * 
@@ -137,10 +447,9 @@ public class DocbookImporter {
    * @param messagesStore error message is added to this store for image not present in folder
    */
   public void validateImageFilesExists(DocStructureItem docToImport, File directory, List<String> messagesStore) {
-    log.debug("Go to evaluate image file for title: " + docToImport.getTitle());
-    List<String> files = docToImport.getFilerefsLocal();
-    if (files != null && !files.isEmpty()) {
-      for (String filename : files) {
+    for (DocStructureItem node : docToImport.getSubtree()) {
+      log.debug("Go to evaluate image file for title: " + node.getTitle());
+      for (String filename : node.getFilerefsLocal()) {
         log.debug("Go to evaluate image file: " + filename);
         File f = new File(directory, filename);
         if (!f.exists()) {
@@ -149,11 +458,23 @@ public class DocbookImporter {
         }
       }
     }
+  }
 
-    List<DocStructureItem> childs = docToImport.getChilds();
-    if (childs != null && !childs.isEmpty()) {
-      for (DocStructureItem child : childs) {
-        validateImageFilesExists(child, directory, messagesStore);
+  /**
+   * Validate all images present in DocBook document structure are also present in uploaded archive.
+   * 
+   * @param docToImport info about imported document. Local file references are taken from it
+   * @param archive to search images in, relative to its root folder
+   * @param messagesStore error message is added to this store for image not present in archive
+   */
+  public void validateImageFilesExists(DocStructureItem docToImport, DocBookZipArchive archive,
+      List<String> messagesStore) {
+    for (DocStructureItem node : docToImport.getSubtree()) {
+      for (String filename : node.getFilerefsLocal()) {
+        if (!archive.exists(filename)) {
+          messagesStore.add("Missing image file: " + filename);
+          log.debug("Missing image file: " + filename);
+        }
       }
     }
   }
@@ -171,106 +492,74 @@ public class DocbookImporter {
    */
   public DocStructureItem getDocStructure(InputStream xmlToTransform, String xmlToTransformURL,
       DocBookVersion docbookVersion, boolean allSectionLevels) throws Exception {
-
-    String xslt = FileUtils.readFileAsString(getFileFromResources("getStructure" + docbookVersion.getFilenamePostfix()
-        + ".xslt"));
-
-    // customize XSLT template for this run
-    if (allSectionLevels) {
-      xslt = xslt.replaceAll("\\$\\{1\\}", "/");
-    } else {
-      xslt = xslt.replaceAll("\\$\\{1\\}", "");
-    }
-
-    // perform XSLT transformation
-    InputStream xsltTemplate = new ByteArrayInputStream(xslt.getBytes(FileUtils.CHARSET_UTF_8));
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    processXslt(xsltTemplate, xmlToTransform, xmlToTransformURL, out);
-
-    if (log.isDebugEnabled())
-      log.debug("DocStructureXML: " + out.toString("UTF-8"));
-
-    try {
-
-      DocStructureItem ret = parseDocStructureXML(new ByteArrayInputStream(out.toByteArray()));
-
-      if (log.isDebugEnabled())
-        log.debug("DocStructureObjectTree: " + ret);
-
-      validateDocStructure(ret);
-      return ret;
-    } catch (Exception e) {
-      log.error(e.getMessage() + " in DocStructureXML file content: " + out.toString("UTF-8"));
-      throw e;
-    }
+    return getDocStructure(new DocBookSource(xmlToTransform, xmlToTransformURL), docbookVersion, allSectionLevels);
   }
 
   /**
-   * Parse document structure XML into java objects.
+   * Get document structure of chapters and sections from DocBook xml file to be used for further processing.
    * 
-   * @param docStructureXML input stream with document structure XML
-   * @return document structure in Object representation
-   * @throws IOException
-   * @throws SAXException
+   * @param xmlToTransform DocBook xml <code>book</code> to process, see {@link #prepareDocBookSource(File)}
+   * @param docbookVersion version of docbook to process
+   * @allSectionLevels if set to true then all section levels are in structure. If false then only first section level.
+   * @return structure of titles, frozen (see {@link DocStructureItem#freeze()})
+   * @throws Exception
    */
-  protected DocStructureItem parseDocStructureXML(InputStream docStructureXML) throws IOException, SAXException {
-    // parse XML to object structure
-    Digester dig = new Digester();
-    dig.setClassLoader(DocbookImporter.class.getClassLoader());
-    dig.setValidating(false);
+  public DocStructureItem getDocStructure(DocBookSource xmlToTransform, DocBookVersion docbookVersion,
+      boolean allSectionLevels) throws Exception {
 
-    // book info
-    dig.addObjectCreate("node", DocStructureItem.class);
-    dig.addCallMethod("node/title", "setTitle", 1);
-    dig.addCallParam("node/title", 0);
-    dig.addCallMethod("node/type", "setType", 1);
-    dig.addCallParam("node/type", 0);
+    DocStructureBuilder builder = new DocStructureBuilder(docbookVersion, allSectionLevels);
+    SAXErrorHandler eh = new SAXErrorHandler();
+    InputStream xmlStream = null;
+    ClassLoader ccl = Thread.currentThread().getContextClassLoader();
+    try {
+      Thread.currentThread().setContextClassLoader(DocbookImporter.class.getClassLoader());
+      if (xmlToTransform.isInMemory()) {
+        javax.xml.transform.Transformer trans;
+        // TransformerFactory is not thread safe
+        synchronized (transformerFact) {
+          trans = transformerFact.newTransformer();
+        }
+        trans.transform(new DOMSource(xmlToTransform.getDocument(), xmlToTransform.getSystemId()), new SAXResult(
+            builder));
+      } else {
+        xmlStream = xmlToTransform.openInputStream();
+        SAXSource xmlSource = prepareXIncludeAwareSource(xmlStream, xmlToTransform, eh);
+        XMLReader xmlReader = xmlSource.getXMLReader();
+        xmlReader.setContentHandler(builder);
+        xmlReader.parse(xmlSource.getInputSource());
+      }
+    } catch (SAXException e) {
+      if (eh.getException() != null) {
+        throw eh.getException();
+      }
+      throw e;
+    } finally {
+      Thread.currentThread().setContextClassLoader(ccl);
+      FileUtils.closeInputStream(xmlStream);
+    }
+    if (eh.getException() != null) {
+      throw eh.getException();
+    }
 
-    // chapter or appendix info
-    dig.addObjectCreate("node/node", DocStructureItem.class);
-    dig.addSetNext("node/node", "addChild");
-    dig.addCallMethod("node/node/title", "setTitle", 1);
-    dig.addCallParam("node/node/title", 0);
-    dig.addCallMethod("node/node/id", "setId", 1);
-    dig.addCallParam("node/node/id", 0);
-    dig.addCallMethod("node/node/type", "setType", 1);
-    dig.addCallParam("node/node/type", 0);
-    dig.addCallMethod("node/node/fileref", "addFileref", 1);
-    dig.addCallParam("node/node/fileref", 0);
+    DocStructureItem ret = builder.getDocStructure();
+    ret.freeze();
 
-    // all levels of sections info
-    dig.addObjectCreate("*/sectnode", DocStructureItem.class);
-    dig.addSetNext("*/sectnode", "addChild");
-    dig.addCallMethod("*/sectnode/title", "setTitle", 1);
-    dig.addCallParam("*/sectnode/title", 0);
-    dig.addCallMethod("*/sectnode/id", "setId", 1);
-    dig.addCallParam("*/sectnode/id", 0);
-    dig.addCallMethod("*/sectnode/type", "setType", 1);
-    dig.addCallParam("*/sectnode/type", 0);
-    dig.addCallMethod("*/sectnode/fileref", "addFileref", 1);
-    dig.addCallParam("*/sectnode/fileref", 0);
-    dig.addCallMethod("*/sectnode/label", "addLabel", 1);
-    dig.addCallParam("*/sectnode/label", 0);
+    if (log.isDebugEnabled())
+      log.debug("DocStructureObjectTree: " + ret);
 
-    return (DocStructureItem) dig.parse(docStructureXML);
+    validateDocStructure(ret);
+    return ret;
   }
 
   /**
    * Validate document structure data. Check for mandatory fields (Title is mandatory).
    * 
-   * @param item to validate
+   * @param item to validate, whole subtree is validated
    */
   protected void validateDocStructure(DocStructureItem item) {
-
-    if (!DocStructureItem.TYPE_BOOK.equals(item.getType())) {
-      if (StringUtils.isBlank(item.getTitle())) {
-        throw new IllegalArgumentException("Item without title: " + item.getDocBookXPath(null));
-      }
-    }
-    List<DocStructureItem> chl = item.getChilds();
-    if (chl != null) {
-      for (DocStructureItem ch : chl) {
-        validateDocStructure(ch);
+    for (DocStructureItem node : item.getSubtree()) {
+      if (!DocStructureItem.TYPE_BOOK.equals(node.getType()) && StringUtils.isBlank(node.getTitle())) {
+        throw new IllegalArgumentException("Item without title: " + node.getDocBookXPath(null));
       }
     }
   }
@@ -289,17 +578,105 @@ public class DocbookImporter {
    * @throws Exception
    */
   public String patchWIKIContentReferences(String content, DocStructureItem nodeStructure) throws Exception {
+    return patchWIKIContentReferences(content, nodeStructure, prepareIdToTitleIndex(nodeStructure.getRoot()));
+  }
+
+  /**
+   * Patch references in generated WIKI content, see {@link #patchWIKIContentReferences(String, DocStructureItem)}.
+   * 
+   * @param content to be patched
+   * @param nodeStructure node structure to use {@link DocStructureItem#getFilerefsLocal()} from.
+   * @param idToTitleIndex Confluence page titles by DocBook xml id's, see
+   *          {@link #prepareIdToTitleIndex(DocStructureItem)}
+   * @return patched content
+   * @throws Exception
+   */
+  public String patchWIKIContentReferences(String content, DocStructureItem nodeStructure,
+      Map<String, String> idToTitleIndex) throws Exception {
+    content = patchWIKIContentImageReferences(content, prepareFilerefToFilenameIndex(nodeStructure));
+
+    content = patchWIKIContentInternalCrossReferences(content, idToTitleIndex);
+
+    return content;
+  }
+
+  /**
+   * Prepare index of attachment filenames by local file references for
+   * {@link #patchWIKIContentImageReferences(String, Map)}.
+   * 
+   * @param nodeStructure node structure to use {@link DocStructureItem#getFilerefsLocal()} from
+   * @return index with attachment filename for each local fileref of node
+   */
+  protected Map<String, String> prepareFilerefToFilenameIndex(DocStructureItem nodeStructure) {
+    Map<String, String> ret = new HashMap<String, String>();
     List<String> frl = nodeStructure.getFilerefsLocal();
-    if (frl != null && !frl.isEmpty()) {
+    if (frl != null) {
       for (String fileref : frl) {
-        content = content.replaceAll("\\!" + RegExpUtils.escapeTextForRegexp(fileref) + "(\\|.*)?\\!", "!"
-            + getFilenameFromFilerefLocal(fileref) + "$1!");
+        ret.put(fileref, getFilenameFromFilerefLocal(fileref));
       }
     }
+    return ret;
+  }
 
-    content = patchWIKIContentInternalCrossReferences(nodeStructure.getRoot(), content);
+  /**
+   * Patch image references in generated WIKI content by one scan over it. Path in <code>!path!</code> and
+   * <code>!path|params!</code> image is changed to attachment filename if it is known local fileref.
+   * 
+   * @param content to patch
+   * @param filerefToFilenameIndex attachment filenames by local filerefs, see
+   *          {@link #prepareFilerefToFilenameIndex(DocStructureItem)}
+   * @return patched content
+   */
+  protected static String patchWIKIContentImageReferences(String content, Map<String, String> filerefToFilenameIndex) {
+    if (content == null || filerefToFilenameIndex.isEmpty()) {
+      return content;
+    }
+    StringBuilder sb = null;
+    int copied = 0;
+    int len = content.length();
+    // end of line image is on, and last '!' on it, so params may be checked for terminating '!'
+    int lineEnd = -1;
+    int lineLastBang = -1;
+    int i = content.indexOf('!');
+    while (i > -1) {
+      int pathEnd = i + 1;
+      while (pathEnd < len && !isImagePathTerminator(content.charAt(pathEnd))) {
+        pathEnd++;
+      }
+      if (pathEnd == len) {
+        break;
+      }
+      char terminator = content.charAt(pathEnd);
+      if (terminator == '|' && pathEnd > lineEnd) {
+        lineEnd = pathEnd;
+        lineLastBang = -1;
+        while (lineEnd < len && !isLineTerminator(content.charAt(lineEnd))) {
+          if (content.charAt(lineEnd) == '!')
+            lineLastBang = lineEnd;
+          lineEnd++;
+        }
+      }
+      if (terminator == '!' || (terminator == '|' && lineLastBang > pathEnd)) {
+        String filename = filerefToFilenameIndex.get(content.substring(i + 1, pathEnd));
+        if (filename != null) {
+          if (sb == null)
+            sb = new StringBuilder(len);
+          sb.append(content, copied, i + 1).append(filename);
+          copied = pathEnd;
+        }
+      }
+      // closing '!' of one image may start another one
+      i = terminator == '!' ? pathEnd : content.indexOf('!', pathEnd + 1);
+    }
+    if (sb == null) {
+      return content;
+    }
+    sb.append(content, copied, len);
+    return sb.toString();
+  }
 
-    return content;
+  private static boolean isImagePathTerminator(char c) {
+    return c == '!' || c == '|' || isLineTerminator(c);
   }
 
   /**
@@ -310,14 +687,119 @@ public class DocbookImporter {
    * @return patched content
    */
   protected String patchWIKIContentInternalCrossReferences(DocStructureItem parent, String content) {
-    for (DocStructureItem ch : parent.getChilds()) {
-      if (StringUtils.isNotBlank(ch.getId())) {
-        content = content.replaceAll("\\[(.*\\|)?" + RegExpUtils.escapeTextForRegexp(ch.getId()) + "\\]",
-            "[$1" + ch.getConfluencePageTitle() + "]");
+    return patchWIKIContentInternalCrossReferences(content, prepareIdToTitleIndex(parent));
+  }
+
+  /**
+   * Prepare index of Confluence page titles by DocBook xml id's for
+   * {@link #patchWIKIContentReferences(String, DocStructureItem, Map)}. Prepare it once per import, after page titles
+   * are final.
+   * 
+   * @param parent of hierarchy to prepare index for - whole subtree traversed, parent itself is not included. Only
+   *          nodes with id are visited if tree is frozen, see {@link DocStructureItem#getNodeById(String)}.
+   * @return index with Confluence page title for each id, first node wins if id is not unique
+   */
+  public static Map<String, String> prepareIdToTitleIndex(DocStructureItem parent) {
+    Map<String, String> ret = new HashMap<String, String>();
+    if (parent.isFrozen()) {
+      for (String id : parent.getTreeIds()) {
+        DocStructureItem node = parent.getNodeById(id);
+        if (node != null && node != parent) {
+          ret.put(id, node.getConfluencePageTitle());
+        }
       }
-      content = patchWIKIContentInternalCrossReferences(ch, content);
+      return ret;
     }
-    return content;
+    List<DocStructureItem> subtree = parent.getSubtree();
+    for (int i = 1; i < subtree.size(); i++) {
+      DocStructureItem node = subtree.get(i);
+      if (StringUtils.isNotBlank(node.getId()) && !ret.containsKey(node.getId())) {
+        ret.put(node.getId(), node.getConfluencePageTitle());
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Patch internal cross references in generated WIKI content by one scan over it. Links <code>[id]</code> and
+   * <code>[label|id]</code> are changed to point to Confluence page title. Same rules as former per id regexp
+   * <code>\[(.*\|)?id\]</code> replacement are kept, eg. only last <code>[label|id]</code> link to given id is
+   * patched on one line.
+   * 
+   * @param content to patch
+   * @param idToTitleIndex Confluence page titles by DocBook xml id's, see
+   *          {@link #prepareIdToTitleIndex(DocStructureItem)}
+   * @return patched content
+   */
+  protected static String patchWIKIContentInternalCrossReferences(String content, Map<String, String> idToTitleIndex) {
+    if (content == null || idToTitleIndex.isEmpty() || content.indexOf(']') < 0) {
+      return content;
+    }
+    StringBuilder sb = null;
+    int copied = 0;
+    int len = content.length();
+    int lineStart = 0;
+    List<int[]> links = new ArrayList<int[]>();
+    while (lineStart < len) {
+      // collect links to known id's on line, as [start of id, end of id] positions
+      links.clear();
+      int firstBracket = -1;
+      int lastDelimiter = -1;
+      int i = lineStart;
+      for (; i < len; i++) {
+        char c = content.charAt(i);
+        if (isLineTerminator(c)) {
+          break;
+        } else if (c == '[' || c == '|') {
+          if (c == '[' && firstBracket < 0)
+            firstBracket = i;
+          lastDelimiter = i;
+        } else if (c == ']' && lastDelimiter > -1) {
+          if (idToTitleIndex.containsKey(content.substring(lastDelimiter + 1, i)))
+            links.add(new int[] { lastDelimiter + 1, i });
+        }
+      }
+      lineStart = i + 1;
+      if (links.isEmpty())
+        continue;
+
+      // regexp matches first '[' on line with last '|id]' greedily, so other '|id]' for same id before are not patched
+      Map<String, Integer> lastLabeledLinkStart = new HashMap<String, Integer>();
+      for (int[] link : links) {
+        if (content.charAt(link[0] - 1) == '|' && firstBracket > -1 && firstBracket < link[0] - 1) {
+          lastLabeledLinkStart.put(content.substring(link[0], link[1]), link[0]);
+        }
+      }
+      for (int[] link : links) {
+        String id = content.substring(link[0], link[1]);
+        Integer labeled = lastLabeledLinkStart.get(id);
+        boolean patch;
+        if (labeled != null) {
+          patch = link[0] == labeled || (link[0] > labeled && content.charAt(link[0] - 1) == '[');
+        } else {
+          patch = content.charAt(link[0] - 1) == '[';
+        }
+        if (patch) {
+          if (sb == null)
+            sb = new StringBuilder(len + 64);
+          sb.append(content, copied, link[0]).append(idToTitleIndex.get(id));
+          copied = link[1];
+        }
+      }
+    }
+    if (sb == null) {
+      return content;
+    }
+    sb.append(content, copied, len);
+    return sb.toString();
+  }
+
+  /**
+   * @param c character to check
+   * @return true if character terminates line for regexp <code>.</code>
+   */
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
   }
 
   /**
@@ -349,10 +831,24 @@ public class DocbookImporter {
    */
   public String prepareNodeWIKIContent(File xmlToTransform, DocStructureItem nodeStructureInfo,
       DocBookVersion docbookVersion) throws Exception {
+    return prepareNodeWIKIContent(new DocBookSource(xmlToTransform), nodeStructureInfo, docbookVersion);
+  }
+
+  /**
+   * Prepare WIKI content for defined node (chapter, appendix or section) from DocBook xml. If info about processed node
+   * contains some children then only given node is rendered without subsections content.
+   * 
+   * @param xmlToTransform DocBook xml <code>book</code> to process, see {@link #prepareDocBookSource(File)}
+   * @param nodeStructureInfo chapter structure
+   * @param docbookVersion version of docbook to process
+   * @return chapter WIKI content
+   * @throws Exception
+   */
+  public String prepareNodeWIKIContent(DocBookSource xmlToTransform, DocStructureItem nodeStructureInfo,
+      DocBookVersion docbookVersion) throws Exception {
     try {
-      return patchWIKIContentReferences(
-          prepareNodeWIKIContent(new BufferedInputStream(new FileInputStream(xmlToTransform)), xmlToTransform.toURI()
-              .toString(), nodeStructureInfo, docbookVersion), nodeStructureInfo);
+      return patchWIKIContentReferences(prepareNodeWIKIContentRaw(xmlToTransform, nodeStructureInfo, docbookVersion),
+          nodeStructureInfo);
     } catch (Exception e) {
       log.error("Error during WIKI content obtaining for " + nodeStructureInfo + ": " + e.getMessage());
       throw e;
@@ -373,63 +869,295 @@ public class DocbookImporter {
    */
   protected String prepareNodeWIKIContent(InputStream xmlToTransform, String xmlToTransformURL,
       DocStructureItem nodeStructureInfo, DocBookVersion docbookVersion) throws Exception {
-    String xslt = FileUtils.readFileAsString(getFileFromResources("prepareChapterWIKIContent"
-        + docbookVersion.getFilenamePostfix() + ".xslt"));
+    return prepareNodeWIKIContentRaw(new DocBookSource(xmlToTransform, xmlToTransformURL), nodeStructureInfo,
+        docbookVersion);
+  }
+
+  /**
+   * Prepare WIKI content for defined node without references patching, see
+   * {@link #prepareNodeWIKIContent(DocBookSource, DocStructureItem, DocBookVersion)}.
+   * 
+   * @param xmlToTransform DocBook xml <code>book</code> to process
+   * @param nodeStructureInfo info about processed node
+   * @param docbookVersion version of docbook to process
+   * @return chapter WIKI content
+   * @throws Exception
+   */
+  protected String prepareNodeWIKIContentRaw(DocBookSource xmlToTransform, DocStructureItem nodeStructureInfo,
+      DocBookVersion docbookVersion) throws Exception {
 
     // customize XSLT template for this run
-    xslt = xslt.replaceAll("\\$\\{1\\}", nodeStructureInfo.getDocBookXPath(docbookVersion.getXmlnsPrefix()));
+    Map<String, String> xsltParams = new HashMap<String, String>();
+    xsltParams.put("nodePath", nodeStructureInfo.getDocBookXPath(null));
+    xsltParams.put("nodeSectionDepth", Integer.toString(getSectionDepth(nodeStructureInfo)));
+    // we will render subsections later as subpages, so remove them from content now
+    xsltParams.put("skipSubsections", Boolean.toString(!nodeStructureInfo.getChilds().isEmpty()));
 
-    if (!nodeStructureInfo.getChilds().isEmpty()) {
-      // we will render subsections later as subpages, so remove them from content now
-      xslt = xslt.replace("${2}",
-          "<xsl:template match=\"" + nodeStructureInfo.getDocBookXPath(docbookVersion.getXmlnsPrefix()) + "/"
-              + docbookVersion.getXmlnsPrefix() + "section\" />");
+    // perform XSLT transformation
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    processXslt(XSLT_NODE_WIKI_CONTENT, docbookVersion, xsltParams, xmlToTransform, bos);
+    return bos.toString(FileUtils.CHARSET_UTF_8);
+  }
+
+  /**
+   * Prepare WIKI content for all nodes (chapters, appendixes and sections) in given document structure by XSLT
+   * transformation over whole book. Content of each node is same as from
+   * {@link #prepareNodeWIKIContent(DocBookSource, DocStructureItem, DocBookVersion)}, but book is not transformed once
+   * per node. Chapters and appendixes are distributed into {@link #getConversionParallelism()} parts, which are
+   * transformed and patched concurrently in XSLT thread pool.
+   * 
+   * @param xmlToTransform DocBook xml <code>book</code> to process, see {@link #prepareDocBookSource(File)}
+   * @param docStructure document structure obtained from
+   *          {@link #getDocStructure(DocBookSource, DocBookVersion, boolean)}
+   * @param docbookVersion version of docbook to process
+   * @param allSectionLevels must be same as used to obtain <code>docStructure</code>
+   * @return map with WIKI content for each node in <code>docStructure</code> except root one
+   * @throws Exception
+   */
+  public Map<DocStructureItem, String> prepareAllNodesWIKIContent(final DocBookSource xmlToTransform,
+      DocStructureItem docStructure, final DocBookVersion docbookVersion, final boolean allSectionLevels)
+      throws Exception {
+
+    final Map<String, DocStructureItem> nodesByPath = new HashMap<String, DocStructureItem>();
+    collectNodesByPath(docStructure, nodesByPath);
+    final Map<String, String> idToTitleIndex = prepareIdToTitleIndex(docStructure);
+
+    Map<DocStructureItem, String> ret = new HashMap<DocStructureItem, String>();
+    final int partsCount = Math.max(1, Math.min(conversionParallelism, docStructure.getChilds().size()));
+    // parsed book is shared by parts only if it is in memory, otherwise each part has to read book file
+    if (partsCount == 1 || (!xmlToTransform.isInMemory() && !xmlToTransform.isReopenable())) {
+      ret.putAll(prepareNodesWIKIContentPart(xmlToTransform, nodesByPath, idToTitleIndex, docbookVersion,
+          allSectionLevels, 0, 1));
     } else {
-      xslt = xslt.replace("${2}", "");
+      long deadline = System.currentTimeMillis() + xsltTimeout;
+      List<Future<Map<DocStructureItem, String>>> parts = new ArrayList<Future<Map<DocStructureItem, String>>>();
+      try {
+        for (int i = 0; i < partsCount; i++) {
+          final int partIndex = i;
+          parts.add(xsltExecutor.submit(new Callable<Map<DocStructureItem, String>>() {
+
+            @Override
+            public Map<DocStructureItem, String> call() throws Exception {
+              return prepareNodesWIKIContentPart(xmlToTransform, nodesByPath, idToTitleIndex, docbookVersion,
+                  allSectionLevels, partIndex, partsCount);
+            }
+          }));
+        }
+        for (Future<Map<DocStructureItem, String>> part : parts) {
+          ret.putAll(waitForTask(part, xsltTimeout > 0 ? Math.max(1, deadline - System.currentTimeMillis()) : 0,
+              "WIKI content conversion of " + xmlToTransform.getSystemId()));
+        }
+      } finally {
+        // stop other parts if one failed
+        for (Future<Map<DocStructureItem, String>> part : parts) {
+          part.cancel(true);
+        }
+      }
     }
 
-    // perform XSLT transformation
-    InputStream xis = new ByteArrayInputStream(xslt.getBytes(FileUtils.CHARSET_UTF_8));
+    // nodes with unusual placement in book, render them one by one
+    for (DocStructureItem node : nodesByPath.values()) {
+      if (!ret.containsKey(node)) {
+        log.debug("Node content not found in book WIKI content, go to render it separately: " + node.toString(false));
+        ret.put(node, prepareNodeWIKIContent(xmlToTransform, node, docbookVersion));
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Prepare WIKI content for given nodes of document structure only, used when only some nodes of book are imported
+   * again. Nodes are rendered one by one if there is only small part of them (see
+   * {@link #SEPARATE_RENDERING_MAX_PERCENT}), otherwise whole book is transformed by
+   * {@link #prepareAllNodesWIKIContent(DocBookSource, DocStructureItem, DocBookVersion, boolean)}.
+   * 
+   * @param xmlToTransform DocBook xml <code>book</code> to process, see {@link #prepareDocBookSource(File)}
+   * @param docStructure whole document structure obtained from
+   *          {@link #getDocStructure(DocBookSource, DocBookVersion, boolean)}
+   * @param nodes from <code>docStructure</code> to prepare content for
+   * @param docbookVersion version of docbook to process
+   * @param allSectionLevels must be same as used to obtain <code>docStructure</code>
+   * @return map with WIKI content for given nodes
+   * @throws Exception
+   */
+  public Map<DocStructureItem, String> prepareNodesWIKIContent(DocBookSource xmlToTransform,
+      DocStructureItem docStructure, Collection<DocStructureItem> nodes, DocBookVersion docbookVersion,
+      boolean allSectionLevels) throws Exception {
+    int allNodesCount = docStructure.getSubtree().size() - 1;
+    if ((!xmlToTransform.isInMemory() && !xmlToTransform.isReopenable() && nodes.size() > 1)
+        || nodes.size() * 100 > allNodesCount * SEPARATE_RENDERING_MAX_PERCENT) {
+      Map<DocStructureItem, String> ret = prepareAllNodesWIKIContent(xmlToTransform, docStructure, docbookVersion,
+          allSectionLevels);
+      ret.keySet().retainAll(new HashSet<DocStructureItem>(nodes));
+      return ret;
+    }
+
+    Map<String, String> idToTitleIndex = prepareIdToTitleIndex(docStructure);
+    Map<DocStructureItem, String> ret = new HashMap<DocStructureItem, String>();
+    for (DocStructureItem node : nodes) {
+      ret.put(node, patchWIKIContentReferences(prepareNodeWIKIContentRaw(xmlToTransform, node, docbookVersion), node,
+          idToTitleIndex));
+    }
+    return ret;
+  }
+
+  /**
+   * Prepare WIKI content for one part of book, see
+   * {@link #prepareAllNodesWIKIContent(DocBookSource, DocStructureItem, DocBookVersion, boolean)}. May be called
+   * concurrently, structure and in-memory book are only read.
+   * 
+   * @param xmlToTransform DocBook xml <code>book</code> to process
+   * @param nodesByPath all nodes from document structure by their path in book
+   * @param idToTitleIndex index of Confluence page titles used to patch references, see
+   *          {@link #prepareIdToTitleIndex(DocStructureItem)}
+   * @param docbookVersion version of docbook to process
+   * @param allSectionLevels flag used to obtain document structure
+   * @param partIndex index of part to prepare, from 0 to <code>partsCount - 1</code>
+   * @param partsCount number of parts book is distributed into
+   * @return map with patched WIKI content for nodes from given part
+   * @throws Exception
+   */
+  protected Map<DocStructureItem, String> prepareNodesWIKIContentPart(DocBookSource xmlToTransform,
+      Map<String, DocStructureItem> nodesByPath, Map<String, String> idToTitleIndex, DocBookVersion docbookVersion,
+      boolean allSectionLevels, int partIndex, int partsCount) throws Exception {
+    Map<String, String> xsltParams = new HashMap<String, String>();
+    xsltParams.put("allSectionLevels", Boolean.toString(allSectionLevels));
+    xsltParams.put("partIndex", Integer.toString(partIndex));
+    xsltParams.put("partsCount", Integer.toString(partsCount));
+
     ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    processXslt(xis, xmlToTransform, xmlToTransformURL, bos);
-    return bos.toString(FileUtils.CHARSET_UTF_8);
+    processXslt(XSLT_BOOK_WIKI_CONTENT, docbookVersion, xsltParams, xmlToTransform, bos);
+    String out = bos.toString(FileUtils.CHARSET_UTF_8);
+
+    Map<DocStructureItem, String> ret = new HashMap<DocStructureItem, String>();
+    // records are "<delimiter>path<delimiter>content"
+    int start = out.indexOf(BOOK_WIKI_CONTENT_RECORD_DELIMITER);
+    while (start > -1) {
+      int pathEnd = out.indexOf(BOOK_WIKI_CONTENT_RECORD_DELIMITER, start + 1);
+      if (pathEnd < 0) {
+        throw new IllegalStateException("Malformed book WIKI content, page path not terminated");
+      }
+      int contentEnd = out.indexOf(BOOK_WIKI_CONTENT_RECORD_DELIMITER, pathEnd + 1);
+      String path = out.substring(start + 1, pathEnd);
+      DocStructureItem node = nodesByPath.get(path);
+      if (node != null) {
+        String content = out.substring(pathEnd + 1, contentEnd > -1 ? contentEnd : out.length());
+        ret.put(node, patchWIKIContentReferences(content, node, idToTitleIndex));
+      } else {
+        log.debug("No node in document structure for book WIKI content with path " + path);
+      }
+      start = contentEnd;
+    }
+    return ret;
+  }
+
+  private void collectNodesByPath(DocStructureItem parent, Map<String, DocStructureItem> nodesByPath) {
+    List<DocStructureItem> subtree = parent.getSubtree();
+    for (int i = 1; i < subtree.size(); i++) {
+      DocStructureItem node = subtree.get(i);
+      nodesByPath.put(node.getDocBookXPath(null), node);
+    }
   }
 
   /**
-   * Process XSLT transformation.
+   * Get number of sections given node is nested in, node itself included. Used to start section headers from
+   * <code>h1.</code> in rendered node content.
    * 
-   * @param xsltTemplate input stream with XSLT template file used to transform (closed inside this method)
-   * @param xmlToTransform input stream with XML file to transform (closed inside this method)
-   * @param xmlToTransformURL URL of <code>xmlToTransform</code> file (may be <code>file://</code> too). We need it to
-   *          correctly evaluate relative paths.
+   * @param node to count depth for
+   * @return number of nodes of {@link DocStructureItem#TYPE_SECTION} type on path from root to node
+   */
+  protected static int getSectionDepth(DocStructureItem node) {
+    int depth = 0;
+    for (DocStructureItem i = node; i != null; i = i.getParent()) {
+      if (DocStructureItem.TYPE_SECTION.equals(i.getType())) {
+        depth++;
+      }
+    }
+    return depth;
+  }
+
+  /**
+   * Get compiled XSLT template from cache. Template is loaded from resources and compiled on first use. Must be called
+   * with {@link DocbookImporter} class loader as thread context class loader, because Xalan extension functions are
+   * resolved during compilation.
+   * 
+   * @param xsltName name of XSLT template, see <code>XSLT_xxx</code> constants
+   * @param docbookVersion version of docbook to get template for
+   * @return compiled XSLT template
+   * @throws Exception
+   */
+  protected Templates getXsltTemplates(String xsltName, DocBookVersion docbookVersion) throws Exception {
+    String key = xsltName + docbookVersion.getFilenamePostfix();
+    Templates templates = xsltTemplatesCache.get(key);
+    if (templates == null) {
+      InputStream xsltTemplate = getFileFromResources(key + ".xslt");
+      try {
+        // TransformerFactory is not thread safe
+        synchronized (transformerFact) {
+          templates = transformerFact.newTemplates(new StreamSource(xsltTemplate, key + ".xslt"));
+        }
+      } finally {
+        FileUtils.closeInputStream(xsltTemplate);
+      }
+      Templates prev = xsltTemplatesCache.putIfAbsent(key, templates);
+      if (prev != null) {
+        templates = prev;
+      } else {
+        log.debug("XSLT template compiled and cached: " + key);
+      }
+    }
+    return templates;
+  }
+
+  /**
+   * Process XSLT transformation. It runs in thread from shared pool with plugin classloader as context classloader,
+   * and it is cancelled if it takes longer than {@link #getXsltTimeout()} or if calling thread is interrupted. Timeout
+   * is checked also by transformation itself, so it stops even if it is run by calling thread because pool is full.
+   * 
+   * @param xsltName name of XSLT template used to transform, see <code>XSLT_xxx</code> constants
+   * @param docbookVersion version of docbook to process, used to select XSLT template
+   * @param xsltParams parameters passed into XSLT template, may be null
+   * @param xmlToTransform DocBook XML to transform
    * @param output stream to write transformed output to
    * @throws javax.xml.transform.TransformerException
    */
-  protected void processXslt(final InputStream xsltTemplate, final InputStream xmlToTransform,
-      final String xmlToTransformURL, final OutputStream output) throws Exception {
+  protected void processXslt(final String xsltName, final DocBookVersion docbookVersion,
+      final Map<String, String> xsltParams, final DocBookSource xmlToTransform, final OutputStream output)
+      throws Exception {
 
     final XSLTErrorListener errorListener = new XSLTErrorListener();
     final SAXErrorHandler eh = new SAXErrorHandler();
+    final String taskDescription = "XSLT transformation " + xsltName + " of " + xmlToTransform.getSystemId();
+    final long deadline = xsltTimeout > 0 ? System.currentTimeMillis() + xsltTimeout : 0;
 
-    Thread th = new Thread(new Runnable() {
+    Runnable transformation = new Runnable() {
 
       public void run() {
+        InputStream xmlStream = null;
         try {
-          org.xml.sax.InputSource xmlSource = new org.xml.sax.InputSource(xmlToTransform);
-          xmlSource.setSystemId(xmlToTransformURL);
-          javax.xml.transform.Source xsltSource = new javax.xml.transform.stream.StreamSource(xsltTemplate);
-          javax.xml.transform.Result result = new javax.xml.transform.stream.StreamResult(output);
-
-          // prepare XInclude aware parser which resolves necessary entities correctly
-          ParserAdapter xmlReader = new ParserAdapter(saxParserFactory.newSAXParser().getParser());
-          xmlReader.setEntityResolver(new JDGEntityResolver(xmlReader.getEntityResolver()));
-          xmlReader.setErrorHandler(eh);
-          SAXSource xmlSAXSource = new SAXSource(xmlReader, xmlSource);
+          javax.xml.transform.Source xmlSource;
+          if (xmlToTransform.isInMemory()) {
+            xmlSource = new DOMSource(xmlToTransform.getDocument(), xmlToTransform.getSystemId());
+          } else {
+            xmlStream = xmlToTransform.openInputStream();
+            xmlSource = prepareXIncludeAwareSource(xmlStream, xmlToTransform, eh);
+          }
+          javax.xml.transform.Result result = new javax.xml.transform.stream.StreamResult(
+              new InterruptibleOutputStream(output, deadline, taskDescription + " cancelled as it takes longer than "
+                  + xsltTimeout + "ms"));
 
-          javax.xml.transform.Transformer trans = transformerFact.newTransformer(xsltSource);
+          javax.xml.transform.Transformer trans = getXsltTemplates(xsltName, docbookVersion).newTransformer();
+          if (xsltParams != null) {
+            for (Map.Entry<String, String> param : xsltParams.entrySet()) {
+              trans.setParameter(param.getKey(), param.getValue());
+            }
+          }
 
           trans.setErrorListener(errorListener);
-          trans.transform(xmlSAXSource, result);
+          if (xmlToTransform.getArchive() != null) {
+            trans.setURIResolver(xmlToTransform.getArchive());
+          }
+          trans.transform(xmlSource, result);
 
         } catch (Exception e) {
           if (e instanceof TransformerException) {
@@ -438,16 +1166,16 @@ public class DocbookImporter {
             errorListener.setException(new TransformerException(e));
           }
         } finally {
-          FileUtils.closeInputStream(xmlToTransform);
-          FileUtils.closeInputStream(xsltTemplate);
+          FileUtils.closeInputStream(xmlStream);
         }
       }
-    });
-    th.setName("DocbookImporter XSLT transformation thread");
-    th.setDaemon(true);
-    th.setContextClassLoader(DocbookImporter.class.getClassLoader());
-    th.start();
-    th.join();
+    };
+    if (xsltThreadFactory.isOwnThread(Thread.currentThread())) {
+      // called from task already running in pool, which may be full
+      transformation.run();
+    } else {
+      waitForTask(xsltExecutor.submit(transformation), xsltTimeout, taskDescription);
+    }
 
     if (eh.getException() != null) {
       throw eh.getException();
@@ -459,6 +1187,254 @@ public class DocbookImporter {
 
   }
 
+  /**
+   * Wait for task submitted into {@link #xsltExecutor}. Task is cancelled if it takes too long or if waiting thread is
+   * interrupted.
+   * 
+   * @param task to wait for
+   * @param timeout in milliseconds, 0 or less means no timeout
+   * @param taskDescription used in error message
+   * @return result of task
+   * @throws Exception thrown by task or if it is cancelled
+   */
+  private static <T> T waitForTask(Future<T> task, long timeout, String taskDescription) throws Exception {
+    try {
+      if (timeout > 0) {
+        return task.get(timeout, TimeUnit.MILLISECONDS);
+      } else {
+        return task.get();
+      }
+    } catch (TimeoutException e) {
+      task.cancel(true);
+      throw new Exception(taskDescription + " cancelled as it takes longer than " + timeout + "ms");
+    } catch (InterruptedException e) {
+      task.cancel(true);
+      throw e;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw new Exception(taskDescription + " failed: " + e.getCause().getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Output stream which stops XSLT transformation once thread running it is interrupted or given deadline passes, used
+   * to cancel transformations running in {@link DocbookImporter#xsltExecutor} or run by submitting thread.
+   */
+  private static class InterruptibleOutputStream extends FilterOutputStream {
+
+    private final long deadline;
+
+    private final String timeoutMessage;
+
+    /**
+     * @param out stream to write to
+     * @param deadline time in milliseconds transformation must be finished until, 0 means no deadline
+     * @param timeoutMessage message of exception thrown once deadline passes
+     */
+    InterruptibleOutputStream(OutputStream out, long deadline, String timeoutMessage) {
+      super(out);
+      this.deadline = deadline;
+      this.timeoutMessage = timeoutMessage;
+    }
+
+    private void checkInterrupted() throws InterruptedIOException {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("XSLT transformation cancelled");
+      }
+      if (deadline > 0 && System.currentTimeMillis() > deadline) {
+        throw new InterruptedIOException(timeoutMessage);
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      checkInterrupted();
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      checkInterrupted();
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      checkInterrupted();
+      out.flush();
+    }
+  }
+
+  /**
+   * Prepare SAX source which parses XML by XInclude aware parser resolving necessary entities correctly. XML and all
+   * XIncluded <code>.xml</code> files (except of ones XIncluded as text) are normalized by {@link DocBookXMLNormalizer}
+   * while read, so source files need not be normalized before. See {@link JDGEntityResolver}.
+   * 
+   * @param xmlStream to read XML from
+   * @param systemId URL of XML file (may be <code>file://</code> too). We need it to correctly evaluate relative paths.
+   * @param eh error handler for parser
+   * @return source to be used for XSLT transformation
+   * @throws Exception
+   */
+  protected SAXSource prepareXIncludeAwareSource(InputStream xmlStream, String systemId, SAXErrorHandler eh)
+      throws Exception {
+    return prepareXIncludeAwareSource(xmlStream, systemId, null, new LocalEntityTable(), eh);
+  }
+
+  /**
+   * Prepare SAX source which parses DocBook book by XInclude aware parser resolving necessary entities correctly.
+   * XIncludes and entities are read from uploaded archive if book is from it. Local entity files are resolved only
+   * once per import, see {@link DocBookSource#getLocalEntityTable()}. See
+   * {@link #prepareXIncludeAwareSource(InputStream, String, SAXErrorHandler)}.
+   * 
+   * @param xmlStream to read XML from, opened from <code>book</code>
+   * @param book source of book
+   * @param eh error handler for parser
+   * @return source to be used for XSLT transformation
+   * @throws Exception
+   */
+  protected SAXSource prepareXIncludeAwareSource(InputStream xmlStream, DocBookSource book, SAXErrorHandler eh)
+      throws Exception {
+    return prepareXIncludeAwareSource(xmlStream, book.getSystemId(), book.getArchive(), book.getLocalEntityTable(),
+        eh);
+  }
+
+  private SAXSource prepareXIncludeAwareSource(InputStream xmlStream, String systemId, DocBookZipArchive archive,
+      LocalEntityTable localEntityTable, SAXErrorHandler eh) throws Exception {
+    ParserAdapter xmlReader = new ParserAdapter(saxParserFactory.newSAXParser().getParser());
+    JDGEntityResolver resolver = new JDGEntityResolver(archive != null ? archive : xmlReader.getEntityResolver(),
+        localEntityTable);
+    xmlReader.setEntityResolver(resolver);
+    xmlReader.setErrorHandler(eh);
+    return new SAXSource(xmlReader, resolver.normalizingInputSource(xmlStream, systemId));
+  }
+
+  /**
+   * Prepare DocBook xml <code>book</code> source for all transformations of one import. Book is parsed and XInclude
+   * resolved only once into memory so all transformations share it. If book is bigger than
+   * {@link #getMaxInMemoryBookSize()} then returned source reparses book file for each transformation.
+   * 
+   * @param xmlToTransform file with DocBook xml <code>book</code>
+   * @return source to be used for {@link #getDocStructure(DocBookSource, DocBookVersion, boolean)} and
+   *         {@link #prepareNodeWIKIContent(DocBookSource, DocStructureItem, DocBookVersion)}
+   * @throws Exception if book can't be parsed
+   */
+  public DocBookSource prepareDocBookSource(File xmlToTransform) throws Exception {
+    return prepareDocBookSource(new DocBookSource(xmlToTransform));
+  }
+
+  /**
+   * Prepare DocBook xml <code>book</code> source for all transformations of one import, see
+   * {@link #prepareDocBookSource(File)}. Used for book from uploaded archive.
+   * 
+   * @param ret reopenable source to prepare, see {@link DocBookSource#isReopenable()}
+   * @return source to be used for {@link #getDocStructure(DocBookSource, DocBookVersion, boolean)} and
+   *         {@link #prepareNodeWIKIContent(DocBookSource, DocStructureItem, DocBookVersion)}
+   * @throws Exception if book can't be parsed
+   */
+  public DocBookSource prepareDocBookSource(DocBookSource ret) throws Exception {
+    if (!ret.isReopenable()) {
+      throw new IllegalArgumentException("DocBook source must be reopenable: " + ret);
+    }
+    if (maxInMemoryBookSize <= 0) {
+      return ret;
+    }
+
+    SAXErrorHandler eh = new SAXErrorHandler();
+    InputStream xmlStream = ret.openInputStream();
+    ClassLoader ccl = Thread.currentThread().getContextClassLoader();
+    SizeLimitFilter sizeLimitFilter = null;
+    try {
+      Thread.currentThread().setContextClassLoader(DocbookImporter.class.getClassLoader());
+      SAXSource xmlSource = prepareXIncludeAwareSource(xmlStream, ret, eh);
+      sizeLimitFilter = new SizeLimitFilter(xmlSource.getXMLReader(), maxInMemoryBookSize);
+      xmlSource.setXMLReader(sizeLimitFilter);
+
+      // book is built into fully expanded document, see DocBookSource#getDocument()
+      Document document;
+      // DocumentBuilderFactory is not thread safe
+      synchronized (documentBuilderFactory) {
+        document = documentBuilderFactory.newDocumentBuilder().newDocument();
+      }
+      javax.xml.transform.Transformer trans;
+      // TransformerFactory is not thread safe
+      synchronized (transformerFact) {
+        trans = transformerFact.newTransformer();
+      }
+      trans.transform(xmlSource, new DOMResult(document));
+      if (eh.getException() != null) {
+        throw eh.getException();
+      }
+      ret.setDocument(document);
+      log.debug("DocBook book parsed into memory, size " + sizeLimitFilter.getSize() + ": " + ret.getSystemId());
+    } catch (Exception e) {
+      if (sizeLimitFilter == null || !sizeLimitFilter.isExceeded()) {
+        throw e;
+      }
+      log.info("DocBook book is bigger than " + maxInMemoryBookSize
+          + " so it will be reparsed for each transformation: " + ret.getSystemId());
+    } finally {
+      Thread.currentThread().setContextClassLoader(ccl);
+      FileUtils.closeInputStream(xmlStream);
+    }
+    return ret;
+  }
+
+  /**
+   * SAX filter counting size of parsed XML and stopping parsing when limit is exceeded.
+   */
+  private static class SizeLimitFilter extends XMLFilterImpl {
+
+    private final long limit;
+
+    private long size = 0;
+
+    private boolean exceeded = false;
+
+    SizeLimitFilter(XMLReader parent, long limit) {
+      super(parent);
+      this.limit = limit;
+      // filter registers itself into parent before parsing, so we must keep parent's handlers
+      setEntityResolver(parent.getEntityResolver());
+      setErrorHandler(parent.getErrorHandler());
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public boolean isExceeded() {
+      return exceeded;
+    }
+
+    private void count(long s) throws SAXException {
+      size += s;
+      if (size > limit) {
+        exceeded = true;
+        throw new SAXException("Parsed XML size limit " + limit + " exceeded");
+      }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+      long s = IN_MEMORY_ELEMENT_SIZE;
+      for (int i = 0; i < atts.getLength(); i++) {
+        s += atts.getValue(i).length();
+      }
+      count(s);
+      super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+      count(length);
+      super.characters(ch, start, length);
+    }
+
+  }
+
   /**
    * Normalizes DocBook xml file content for better processing. These normalizations are done:
    * <ul>
@@ -479,53 +1455,35 @@ public class DocbookImporter {
    * @throws Exception
    */
   protected String normalizeDocBookXMLFileContent(String content) throws Exception {
-    content = content.replaceAll("\\r\\n", "\n");
-    content = content.replaceAll("\\r", "\n");
-    content = content.replaceAll("<para(>| [^\\>^/]*>)\\s*\\n\\s*", "<para>");
-    content = content.replaceAll("</ para>", "</para>");
-    content = content.replaceAll("\\n\\s*</para>", "</para>");
-    content = content.replaceAll("</ programlisting>", "</programlisting>");
-    content = content.replaceAll("</programlisting>\\n\\s*", "</programlisting>");
-    content = content.replaceAll("<entry(>| [^\\>^/]*>)\\s*\\n\\s*", "<entry>");
-    content = content.replaceAll("</ entry>", "</entry>");
-    content = content.replaceAll("\\n\\s*</entry>", "</entry>");
-    content = content.replaceAll("<term(>| [^\\>^/]*>)\\s*\\n\\s*", "<term>");
-    content = content.replaceAll("</ term>", "</term>");
-    content = content.replaceAll("\\n\\s*</term>", "</term>");
-    return content;
+    StringWriter out = new StringWriter(content.length());
+    DocBookXMLNormalizer.normalize(new StringReader(content), out);
+    return out.toString();
   }
 
   /**
    * Normalizes DocBook xml file content for better processing. See {@link #normalizeDocBookXMLFileContent(String)}.
+   * Content is streamed into temporary file which then replaces original one, so whole file is never held in memory.
    * 
    * @param file to normalize content inside
    * @throws Exception
    */
   public void normalizeDocBookXMLFileContent(File file) throws Exception {
-    String content = FileUtils.readFileAsString(new BufferedInputStream(new FileInputStream(file)));
-    content = normalizeDocBookXMLFileContent(content);
-    FileUtils.writeStringContentToFile(file, content);
-  }
-
-  /**
-   * Normalizes all DocBook xml file content for better processing in given folder and all subfolders. See
-   * {@link #normalizeDocBookXMLFileContent(String)}.
-   * 
-   * @param folder to normalize content inside
-   * @throws Exception
-   */
-  public void normalizeAllDocBookXMLFilesContent(File folder) throws Exception {
-    File[] files = folder.listFiles(FileUtils.FILTER_FILE_XML);
-    if (files != null) {
-      for (File file : files) {
-        normalizeDocBookXMLFileContent(file);
-      }
-    }
-    File[] subfolders = folder.listFiles(FileUtils.FILTER_DIRECTORY);
-    if (subfolders != null) {
-      for (File subfolder : subfolders) {
-        normalizeAllDocBookXMLFilesContent(subfolder);
+    File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+    try {
+      Reader in = new InputStreamReader(FileUtils.openFileInputStream(file), FileUtils.CHARSET_UTF_8);
+      try {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), FileUtils.CHARSET_UTF_8));
+        try {
+          DocBookXMLNormalizer.normalize(in, out);
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
       }
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tmpFile.delete();
     }
   }
 
@@ -0,0 +1,520 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
+
+/**
+ * Filesystem cache of external entities (DTDs, entity files etc.) downloaded from the internet, shared by concurrently
+ * running imports and by all JVMs using same cache directory.
+ * <p>
+ * Each entity is stored in two files named by SHA-256 hash of its system id - content file and metadata file with
+ * system id, content hash and HTTP validators used for revalidation. Files are written into temporary file first and
+ * then atomically renamed, so readers never see partially written file. Content is checked against hash stored in
+ * metadata when read, so entity replaced by other JVM in the meantime is treated as not cached.
+ * <p>
+ * In-memory index of cached files is used to keep total size of content under limit. Least recently used entries are
+ * evicted, last access time is stored as last modification time of content file so it is shared by all JVMs.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see JDGEntityResolver#getFsCache()
+ */
+public class EntityFsCache {
+
+  private static final Logger log = Logger.getLogger(EntityFsCache.class);
+
+  /**
+   * Default value for {@link #getMaxBytes()}.
+   */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  protected static final String CONTENT_SUFFIX = ".content";
+
+  protected static final String META_SUFFIX = ".meta";
+
+  protected static final String TMP_SUFFIX = ".tmp";
+
+  /**
+   * Temporary files older than this are left by crashed writes, so they are deleted when index is loaded.
+   */
+  private static final long TMP_FILE_MAX_AGE = 60 * 60 * 1000;
+
+  /**
+   * Eviction frees cache to this percentage of {@link #getMaxBytes()}, so cache directory is not listed again by next
+   * few puts.
+   */
+  private static final int EVICTION_TARGET_PERCENT = 90;
+
+  /**
+   * Name of cache directory used by older versions, it is placed next to directory of this cache. Its content is never
+   * read anymore, so it is deleted when cache is created.
+   */
+  protected static final String OBSOLETE_DIR_NAME = "JDGEntityResolverCache";
+
+  private static final String META_SYSTEM_ID = "systemId";
+  private static final String META_CONTENT_HASH = "contentHash";
+  private static final String META_ETAG = "etag";
+  private static final String META_LAST_MODIFIED = "lastModified";
+  private static final String META_VALIDATED = "validated";
+
+  private final File dir;
+
+  private volatile long maxBytes;
+
+  /**
+   * Index of cached files, key is hash of system id
+   */
+  private final ConcurrentMap<String, IndexEntry> index = new ConcurrentHashMap<String, IndexEntry>();
+
+  private final AtomicLong totalBytes = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  private final Object evictionLock = new Object();
+
+  /**
+   * Create cache in given directory. Directory is created if not exists, index of files already cached in it is
+   * loaded. Obsolete cache directory of older versions is deleted, see {@link #OBSOLETE_DIR_NAME}.
+   * 
+   * @param dir directory to store cached entities in
+   * @param maxBytes see {@link #setMaxBytes(long)}
+   */
+  public EntityFsCache(File dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    dir.mkdirs();
+    deleteObsoleteDir();
+    loadIndex();
+  }
+
+  /**
+   * Get cached entity.
+   * 
+   * @param systemId of entity
+   * @return cached entity or null if not cached
+   */
+  public Entry get(String systemId) {
+    String key = generateKey(systemId);
+    File contentFile = new File(dir, key + CONTENT_SUFFIX);
+    try {
+      Properties meta = readMeta(key);
+      if (meta != null && systemId.equals(meta.getProperty(META_SYSTEM_ID))) {
+        byte[] content = Files.readAllBytes(contentFile.toPath());
+        if (hash(content).equals(meta.getProperty(META_CONTENT_HASH))) {
+          long now = System.currentTimeMillis();
+          contentFile.setLastModified(now);
+          IndexEntry ie = index.get(key);
+          if (ie != null)
+            ie.lastAccess = now;
+          else
+            addToIndex(key, content.length, now);
+          hits.incrementAndGet();
+          return new Entry(content, meta.getProperty(META_ETAG), meta.getProperty(META_LAST_MODIFIED),
+              Long.parseLong(meta.getProperty(META_VALIDATED, "0")));
+        }
+        log.debug("FsCache content doesn't match its metadata, probably replaced in the meantime: " + systemId);
+      }
+    } catch (NoSuchFileException e) {
+      // evicted in the meantime
+    } catch (Exception e) {
+      log.warn("Error reading external resource " + systemId + " from FsCache: " + e.getMessage());
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Put entity into cache. Content bigger than {@link #getMaxBytes()} is not cached at all. Least recently used
+   * entries are evicted if limit is exceeded after put. Errors are only logged, as cache is not necessary for import.
+   * 
+   * @param systemId of entity
+   * @param content of entity
+   * @param etag HTTP <code>ETag</code> header returned with content, may be null
+   * @param lastModified HTTP <code>Last-Modified</code> header returned with content, may be null
+   */
+  public void put(String systemId, byte[] content, String etag, String lastModified) {
+    if (maxBytes <= 0 || content.length > maxBytes)
+      return;
+    String key = generateKey(systemId);
+    try {
+      writeAtomically(key + CONTENT_SUFFIX, content);
+      writeMeta(key, systemId, hash(content), etag, lastModified, System.currentTimeMillis());
+      addToIndex(key, content.length, System.currentTimeMillis());
+    } catch (Exception e) {
+      log.warn("Error writing external resource " + systemId + " to FsCache: " + e.getMessage());
+    }
+    if (totalBytes.get() > maxBytes)
+      evict();
+  }
+
+  /**
+   * Mark cached entity as validated against its origin now, used when origin confirms that cached content is still
+   * valid.
+   * 
+   * @param systemId of entity
+   * @param entry cached entity returned from {@link #get(String)}
+   */
+  public void markValidated(String systemId, Entry entry) {
+    String key = generateKey(systemId);
+    try {
+      writeMeta(key, systemId, hash(entry.getContent()), entry.getEtag(), entry.getLastModified(),
+          System.currentTimeMillis());
+    } catch (Exception e) {
+      log.warn("Error writing external resource " + systemId + " metadata to FsCache: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Remove all entries from cache.
+   */
+  public void clear() {
+    synchronized (evictionLock) {
+      for (String key : new ArrayList<String>(index.keySet())) {
+        removeEntry(key);
+      }
+    }
+  }
+
+  /**
+   * Add entry into index. Done under eviction lock, so entry put concurrently with {@link #loadIndex()} is never lost
+   * or counted twice in {@link #getTotalBytes()}.
+   */
+  private void addToIndex(String key, long size, long lastAccess) {
+    synchronized (evictionLock) {
+      IndexEntry old = index.put(key, new IndexEntry(size, lastAccess));
+      totalBytes.addAndGet(size - (old != null ? old.size : 0));
+    }
+  }
+
+  private boolean removeEntry(String key) {
+    IndexEntry ie = index.remove(key);
+    if (ie != null)
+      totalBytes.addAndGet(-ie.size);
+    boolean deleted = new File(dir, key + META_SUFFIX).delete();
+    deleted = new File(dir, key + CONTENT_SUFFIX).delete() || deleted;
+    return deleted;
+  }
+
+  /**
+   * Load index of cached files from cache directory. Last access times written by other JVMs are loaded too.
+   */
+  protected void loadIndex() {
+    synchronized (evictionLock) {
+      index.clear();
+      totalBytes.set(0);
+      File[] files = dir.listFiles();
+      if (files == null)
+        return;
+      long now = System.currentTimeMillis();
+      for (File f : files) {
+        String name = f.getName();
+        if (name.endsWith(CONTENT_SUFFIX)) {
+          addToIndex(name.substring(0, name.length() - CONTENT_SUFFIX.length()), f.length(), f.lastModified());
+        } else if (name.endsWith(TMP_SUFFIX) && f.lastModified() < now - TMP_FILE_MAX_AGE) {
+          f.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Delete cache directory used by older versions if exists, see {@link #OBSOLETE_DIR_NAME}.
+   */
+  private void deleteObsoleteDir() {
+    File obsoleteDir = new File(dir.getAbsoluteFile().getParentFile(), OBSOLETE_DIR_NAME);
+    if (obsoleteDir.isDirectory()) {
+      log.info("Deleting obsolete cache directory " + obsoleteDir.getAbsolutePath());
+      FileUtils.deleteDirectoryRecursively(obsoleteDir);
+    }
+  }
+
+  /**
+   * Evict least recently used entries until cache fits into {@value #EVICTION_TARGET_PERCENT}% of limit. Index is
+   * reloaded from directory first, so entries written and accessed by other JVMs are taken into account. Thanks to
+   * eviction target lower than limit directory is listed only once per bigger amount of put content, not by each put
+   * over limit.
+   */
+  private void evict() {
+    synchronized (evictionLock) {
+      if (totalBytes.get() <= maxBytes)
+        return;
+      loadIndex();
+      if (totalBytes.get() <= maxBytes)
+        return;
+      long target = maxBytes * EVICTION_TARGET_PERCENT / 100;
+      List<Map.Entry<String, IndexEntry>> entries = new ArrayList<Map.Entry<String, IndexEntry>>(index.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, IndexEntry>>() {
+
+        @Override
+        public int compare(Map.Entry<String, IndexEntry> o1, Map.Entry<String, IndexEntry> o2) {
+          long a1 = o1.getValue().lastAccess;
+          long a2 = o2.getValue().lastAccess;
+          return a1 < a2 ? -1 : (a1 == a2 ? 0 : 1);
+        }
+      });
+      for (Map.Entry<String, IndexEntry> me : entries) {
+        if (totalBytes.get() <= target)
+          break;
+        if (removeEntry(me.getKey()))
+          evictions.incrementAndGet();
+      }
+    }
+  }
+
+  private Properties readMeta(String key) throws IOException {
+    File f = new File(dir, key + META_SUFFIX);
+    if (!f.exists())
+      return null;
+    Properties meta = new Properties();
+    InputStream is = FileUtils.openFileInputStream(f);
+    try {
+      meta.load(is);
+    } finally {
+      FileUtils.closeInputStream(is);
+    }
+    return meta;
+  }
+
+  private void writeMeta(String key, String systemId, String contentHash, String etag, String lastModified,
+      long validated) throws IOException {
+    Properties meta = new Properties();
+    meta.setProperty(META_SYSTEM_ID, systemId);
+    meta.setProperty(META_CONTENT_HASH, contentHash);
+    if (etag != null)
+      meta.setProperty(META_ETAG, etag);
+    if (lastModified != null)
+      meta.setProperty(META_LAST_MODIFIED, lastModified);
+    meta.setProperty(META_VALIDATED, Long.toString(validated));
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    meta.store(bos, null);
+    writeAtomically(key + META_SUFFIX, bos.toByteArray());
+  }
+
+  /**
+   * Write file into temporary file in cache directory first, then rename it to target name atomically.
+   * 
+   * @param name of target file in cache directory
+   * @param content to write
+   * @throws IOException
+   */
+  private void writeAtomically(String name, byte[] content) throws IOException {
+    Path tmp = Files.createTempFile(dir.toPath(), name, TMP_SUFFIX);
+    try {
+      OutputStream os = Files.newOutputStream(tmp);
+      try {
+        os.write(content);
+      } finally {
+        os.close();
+      }
+      Path target = new File(dir, name).toPath();
+      try {
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Generate name of cache files for system id.
+   * 
+   * @param systemId to generate key for
+   * @return key
+   */
+  protected static String generateKey(String systemId) {
+    try {
+      return hash(systemId.getBytes(FileUtils.CHARSET_UTF_8));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param data to hash
+   * @return hex encoded SHA-256 hash of data
+   */
+  protected static String hash(byte[] data) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return directory with cached files
+   */
+  public File getDir() {
+    return dir;
+  }
+
+  /**
+   * @return max total size of cached content in bytes
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Set max total size of cached content, see {@link #getMaxBytes()}. Cache is disabled if 0 or less.
+   * 
+   * @param maxBytes the maxBytes to set
+   */
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+    if (totalBytes.get() > maxBytes)
+      evict();
+  }
+
+  /**
+   * @return number of cached entries known to this JVM
+   */
+  public int getSize() {
+    return index.size();
+  }
+
+  /**
+   * @return total size of cached content known to this JVM in bytes
+   */
+  public long getTotalBytes() {
+    return totalBytes.get();
+  }
+
+  /**
+   * @return number of {@link #get(String)} calls which found content in cache
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of {@link #get(String)} calls which didn't find content in cache
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of entries evicted from cache due limit
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "EntityFsCache [dir=" + dir + ", size=" + getSize() + ", totalBytes=" + getTotalBytes() + ", hits="
+        + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+  }
+
+  private static final class IndexEntry {
+
+    final long size;
+
+    volatile long lastAccess;
+
+    IndexEntry(long size, long lastAccess) {
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+  }
+
+  /**
+   * Entity read from cache.
+   */
+  public static final class Entry {
+
+    private final byte[] content;
+    private final String etag;
+    private final String lastModified;
+    private final long validated;
+
+    Entry(byte[] content, String etag, String lastModified, long validated) {
+      this.content = content;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.validated = validated;
+    }
+
+    /**
+     * @return content of entity
+     */
+    public byte[] getContent() {
+      return content;
+    }
+
+    /**
+     * @return HTTP <code>ETag</code> header returned with content, may be null
+     */
+    public String getEtag() {
+      return etag;
+    }
+
+    /**
+     * @return HTTP <code>Last-Modified</code> header returned with content, may be null
+     */
+    public String getLastModified() {
+      return lastModified;
+    }
+
+    /**
+     * @return time when content was validated against its origin last time, in milliseconds
+     */
+    public long getValidated() {
+      return validated;
+    }
+  }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of resolved entities (DTDs, entity files etc.) content, shared by concurrently running imports.
+ * Reads are lock free. Cache is limited by total size of cached content in bytes and by number of entries, least
+ * recently used entries are evicted when one of limits is exceeded.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see JDGEntityResolver#getMemCache()
+ */
+public class EntityMemCache {
+
+  /**
+   * Default value for {@link #getMaxBytes()}.
+   */
+  public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+  /**
+   * Default value for {@link #getMaxEntries()}.
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 100;
+
+  private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+  private final AtomicLong totalBytes = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  private final Object evictionLock = new Object();
+
+  private volatile long maxBytes;
+
+  private volatile int maxEntries;
+
+  /**
+   * Create cache with default limits.
+   */
+  public EntityMemCache() {
+    this(DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Create cache with given limits.
+   * 
+   * @param maxBytes see {@link #setMaxBytes(long)}
+   * @param maxEntries see {@link #setMaxEntries(int)}
+   */
+  public EntityMemCache(long maxBytes, int maxEntries) {
+    this.maxBytes = maxBytes;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Get cached content.
+   * 
+   * @param key to get content for
+   * @return content or null if not cached. Returned array is shared so must not be modified!
+   */
+  public byte[] get(String key) {
+    Entry e = cache.get(key);
+    if (e == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    e.lastAccess = System.nanoTime();
+    hits.incrementAndGet();
+    return e.content;
+  }
+
+  /**
+   * Put content into cache. Content bigger than {@link #getMaxBytes()} is not cached at all. Least recently used
+   * entries are evicted if limits are exceeded after put.
+   * 
+   * @param key to store content for
+   * @param content to store. Array is shared so must not be modified after put!
+   */
+  public void put(String key, byte[] content) {
+    if (!isEnabled() || content == null || content.length > maxBytes)
+      return;
+    Entry e = new Entry(content);
+    Entry old = cache.put(key, e);
+    totalBytes.addAndGet(content.length - (old != null ? old.content.length : 0));
+    if (isOverLimit())
+      evict();
+  }
+
+  /**
+   * Remove all entries from cache. Statistic counters are not reset.
+   */
+  public void clear() {
+    synchronized (evictionLock) {
+      for (String key : cache.keySet()) {
+        Entry e = cache.remove(key);
+        if (e != null)
+          totalBytes.addAndGet(-e.content.length);
+      }
+    }
+  }
+
+  private boolean isOverLimit() {
+    return totalBytes.get() > maxBytes || cache.size() > maxEntries;
+  }
+
+  /**
+   * Evict least recently used entries until cache fits into limits.
+   */
+  private void evict() {
+    synchronized (evictionLock) {
+      if (!isOverLimit())
+        return;
+      List<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(cache.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+
+        @Override
+        public int compare(Map.Entry<String, Entry> o1, Map.Entry<String, Entry> o2) {
+          long a1 = o1.getValue().lastAccess;
+          long a2 = o2.getValue().lastAccess;
+          return a1 < a2 ? -1 : (a1 == a2 ? 0 : 1);
+        }
+      });
+      for (Map.Entry<String, Entry> me : entries) {
+        if (!isOverLimit())
+          break;
+        // entry replaced in the meantime is not removed
+        if (cache.remove(me.getKey(), me.getValue())) {
+          totalBytes.addAndGet(-me.getValue().content.length);
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if cache stores something, false if one of limits is 0 or less
+   */
+  public boolean isEnabled() {
+    return maxBytes > 0 && maxEntries > 0;
+  }
+
+  /**
+   * @return max total size of cached content in bytes
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Set max total size of cached content, see {@link #getMaxBytes()}. Cache is disabled if 0 or less.
+   * 
+   * @param maxBytes the maxBytes to set
+   */
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+    if (isOverLimit())
+      evict();
+  }
+
+  /**
+   * @return max number of cached entries
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * Set max number of cached entries, see {@link #getMaxEntries()}. Cache is disabled if 0 or less.
+   * 
+   * @param maxEntries the maxEntries to set
+   */
+  public void setMaxEntries(int maxEntries) {
+    this.maxEntries = maxEntries;
+    if (isOverLimit())
+      evict();
+  }
+
+  /**
+   * @return number of cached entries
+   */
+  public int getSize() {
+    return cache.size();
+  }
+
+  /**
+   * @return total size of cached content in bytes
+   */
+  public long getTotalBytes() {
+    return totalBytes.get();
+  }
+
+  /**
+   * @return number of {@link #get(String)} calls which found content in cache
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of {@link #get(String)} calls which didn't find content in cache
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of entries evicted from cache due limits
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "EntityMemCache [size=" + getSize() + ", totalBytes=" + getTotalBytes() + ", hits=" + getHitCount()
+        + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+  }
+
+  private static final class Entry {
+
+    final byte[] content;
+
+    volatile long lastAccess;
+
+    Entry(byte[] content) {
+      this.content = content;
+      this.lastAccess = System.nanoTime();
+    }
+  }
+
+}
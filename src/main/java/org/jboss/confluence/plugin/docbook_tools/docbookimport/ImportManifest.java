@@ -0,0 +1,420 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
+
+/**
+ * Manifest of imported book used for incremental re-import. It holds hash of each node of document structure together
+ * with id of Confluence page the node is imported into, and hash of import settings. Node hash covers everything page
+ * content of node depends on: DocBook content of node (see {@link DocStructureItem#getContentHash()}), its page title,
+ * section depth and presence of child nodes, page titles of nodes it links to (see
+ * {@link DocStructureItem#getLinkends()}) and content of local files it references. So only pages of nodes with
+ * changed hash have to be rendered again if import settings are the same, even if other nodes are added, removed or
+ * renamed.
+ * <p>
+ * Manifest also holds DocBook id of nodes, so pages of previous import may be found for nodes even if document
+ * structure changed, see {@link #mapPageIds(DocStructureItem)}. DocBook title of nodes is held for the same purpose.
+ * <p>
+ * Manifest is stored with imported book root page as text in {@link Properties} format, see {@link #store()} and
+ * {@link #load(String)}.
+ *
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class ImportManifest {
+
+  protected static final String FORMAT_VERSION = "1";
+
+  private static final String KEY_VERSION = "version";
+  private static final String KEY_BOOK_TITLE = "bookTitle";
+  private static final String KEY_SETTINGS_HASH = "settingsHash";
+  private static final String KEY_NODE_PREFIX = "node.";
+  private static final String KEY_FILE_PREFIX = "file.";
+  private static final String KEY_ID_PREFIX = "id.";
+  private static final String KEY_TITLE_PREFIX = "title.";
+
+  /**
+   * Hash of node which doesn't equal to any computed hash.
+   */
+  private static final String UNKNOWN_NODE_HASH = "-";
+
+  /**
+   * Title of imported book, used to find previous import of same book.
+   */
+  private final String bookTitle;
+
+  private final String settingsHash;
+
+  /**
+   * Hash of node by its path in book.
+   */
+  private final Map<String, String> nodeHashes = new HashMap<String, String>();
+
+  /**
+   * Id of Confluence page by path of node in book.
+   */
+  private final Map<String, Long> pageIds = new HashMap<String, Long>();
+
+  /**
+   * Fingerprint of referenced local file by fileref.
+   */
+  private final Map<String, String> fileHashes = new HashMap<String, String>();
+
+  /**
+   * Path of node in book by its DocBook id, first node wins if id is not unique.
+   */
+  private final Map<String, String> idPaths = new HashMap<String, String>();
+
+  /**
+   * DocBook title of node by its path in book.
+   */
+  private final Map<String, String> nodeTitles = new HashMap<String, String>();
+
+  /**
+   * Constructor of empty manifest.
+   *
+   * @param bookTitle title of imported book
+   * @param settingsHash hash of import settings
+   */
+  public ImportManifest(String bookTitle, String settingsHash) {
+    this.bookTitle = bookTitle;
+    this.settingsHash = settingsHash;
+  }
+
+  /**
+   * Create manifest for document structure being imported. Page ids are not set.
+   *
+   * @param docStructure document structure of imported book, with content hashes computed and final page titles
+   * @param settings import settings affecting produced page content (DocBook version, section levels etc.)
+   * @param archive to read fingerprints of referenced local files from
+   * @return manifest
+   * @throws IOException if referenced local file is not found in archive
+   */
+  public static ImportManifest create(DocStructureItem docStructure, String settings, DocBookZipArchive archive)
+      throws IOException {
+    List<DocStructureItem> nodes = docStructure.getSubtree();
+    MessageDigest settingsDigest = newDigest();
+    update(settingsDigest, FORMAT_VERSION);
+    update(settingsDigest, settings);
+    ImportManifest ret = new ImportManifest(docStructure.getTitle(), toHex(settingsDigest.digest()));
+
+    for (DocStructureItem node : nodes) {
+      MessageDigest nodeDigest = newDigest();
+      update(nodeDigest, node.getContentHash());
+      update(nodeDigest, node.getConfluencePageTitle());
+      // rendering parameters derived from placement of node, see DocbookImporter#prepareNodeWIKIContent()
+      update(nodeDigest, Integer.toString(DocbookImporter.getSectionDepth(node)));
+      update(nodeDigest, Boolean.toString(node.getChilds().isEmpty()));
+      for (String linkend : node.getLinkends()) {
+        DocStructureItem target = docStructure.getNodeById(linkend);
+        update(nodeDigest, linkend);
+        update(nodeDigest, target != null && target != docStructure ? target.getConfluencePageTitle() : null);
+      }
+      for (String ref : node.getFilerefsLocal()) {
+        String fileHash = ret.fileHashes.get(ref);
+        if (fileHash == null) {
+          fileHash = computeFileHash(archive, ref);
+          ret.fileHashes.put(ref, fileHash);
+        }
+        update(nodeDigest, ref);
+        update(nodeDigest, fileHash);
+      }
+      ret.nodeHashes.put(node.getDocBookXPath(null), toHex(nodeDigest.digest()));
+      if (node.getTitle() != null) {
+        ret.nodeTitles.put(node.getDocBookXPath(null), node.getTitle());
+      }
+      if (node.getId() != null && !ret.idPaths.containsKey(node.getId())) {
+        ret.idPaths.put(node.getId(), node.getDocBookXPath(null));
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Compute fingerprint of local file referenced from book. Size and CRC-32 from archive are used, so file is not read.
+   *
+   * @param archive to read file info from
+   * @param fileref local file reference
+   * @return fingerprint of file content
+   * @throws IOException if file is not found in archive
+   */
+  public static String computeFileHash(DocBookZipArchive archive, String fileref) throws IOException {
+    return archive.getSize(fileref) + ":" + Long.toHexString(archive.getCrc(fileref));
+  }
+
+  /**
+   * @return title of imported book
+   */
+  public String getBookTitle() {
+    return bookTitle;
+  }
+
+  /**
+   * @return hash of import settings
+   */
+  public String getSettingsHash() {
+    return settingsHash;
+  }
+
+  /**
+   * Check if node hashes may be compared with other manifest.
+   *
+   * @param previous manifest of previous import, may be null
+   * @return true if import settings are the same as in previous manifest
+   */
+  public boolean isSameSettings(ImportManifest previous) {
+    return previous != null && settingsHash.equals(previous.settingsHash);
+  }
+
+  /**
+   * Get nodes whose page content has to be rendered again.
+   *
+   * @param docStructure this manifest is created for
+   * @param previous manifest of previous import with same settings, see {@link #isSameSettings(ImportManifest)}
+   * @param pageIds pages of previous import mapped to nodes of <code>docStructure</code>, see
+   *          {@link #mapPageIds(DocStructureItem)}
+   * @return nodes (without root one) without mapped page, or with hash different from hash of node the page was
+   *         imported for by previous import, in document order
+   */
+  public List<DocStructureItem> getChangedNodes(DocStructureItem docStructure, ImportManifest previous,
+      Map<DocStructureItem, Long> pageIds) {
+    Map<Long, String> previousPaths = new HashMap<Long, String>();
+    for (Map.Entry<String, Long> e : previous.pageIds.entrySet()) {
+      previousPaths.put(e.getValue(), e.getKey());
+    }
+    List<DocStructureItem> ret = new ArrayList<DocStructureItem>();
+    List<DocStructureItem> nodes = docStructure.getSubtree();
+    for (int i = 1; i < nodes.size(); i++) {
+      DocStructureItem node = nodes.get(i);
+      Long pageId = pageIds.get(node);
+      String previousPath = pageId != null ? previousPaths.get(pageId) : null;
+      if (previousPath == null
+          || !nodeHashes.get(node.getDocBookXPath(null)).equals(previous.nodeHashes.get(previousPath))) {
+        ret.add(node);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Map nodes of document structure to pages from this manifest, used to update pages of previous import. Node is
+   * mapped to page of node with the same DocBook id first. Node without id, or with id not known in manifest, is mapped
+   * to page of node with the same path and the same DocBook title in book, if that page is not mapped to other node by
+   * id. Other nodes are not mapped, so new pages are created for them.
+   *
+   * @param docStructure document structure to map, may differ from structure this manifest is created for
+   * @return id of page for each node which has page in this manifest, each page is mapped to one node at most
+   */
+  public Map<DocStructureItem, Long> mapPageIds(DocStructureItem docStructure) {
+    Map<DocStructureItem, Long> ret = new HashMap<DocStructureItem, Long>();
+    Set<Long> mappedPageIds = new HashSet<Long>();
+    for (Map.Entry<String, String> idPath : idPaths.entrySet()) {
+      DocStructureItem node = docStructure.getNodeById(idPath.getKey());
+      Long pageId = node != null ? pageIds.get(idPath.getValue()) : null;
+      if (pageId != null && mappedPageIds.add(pageId)) {
+        ret.put(node, pageId);
+      }
+    }
+    for (DocStructureItem node : docStructure.getSubtree()) {
+      if (!ret.containsKey(node)) {
+        String path = node.getDocBookXPath(null);
+        Long pageId = pageIds.get(path);
+        if (pageId != null && node.getTitle() != null && node.getTitle().equals(nodeTitles.get(path))
+            && mappedPageIds.add(pageId)) {
+          ret.put(node, pageId);
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Forget hash of node, so node is treated as changed by next import. Page id of node is kept.
+   *
+   * @param node to reset hash for
+   */
+  public void resetNodeHash(DocStructureItem node) {
+    nodeHashes.put(node.getDocBookXPath(null), UNKNOWN_NODE_HASH);
+  }
+
+  /**
+   * @param node to get page id for
+   * @return id of Confluence page node is imported into, null if not known
+   */
+  public Long getPageId(DocStructureItem node) {
+    return pageIds.get(node.getDocBookXPath(null));
+  }
+
+  /**
+   * @param node to set page id for
+   * @param pageId id of Confluence page node is imported into
+   */
+  public void setPageId(DocStructureItem node, long pageId) {
+    pageIds.put(node.getDocBookXPath(null), pageId);
+  }
+
+  /**
+   * @return ids of all Confluence pages in manifest
+   */
+  public Collection<Long> getPageIds() {
+    return pageIds.values();
+  }
+
+  /**
+   * @param fileref local file reference
+   * @return fingerprint of referenced file content, null if file is not in manifest
+   */
+  public String getFileHash(String fileref) {
+    return fileHashes.get(fileref);
+  }
+
+  /**
+   * Store manifest into text.
+   *
+   * @return manifest text which may be read by {@link #load(String)}
+   */
+  public String store() {
+    Properties p = new Properties();
+    p.setProperty(KEY_VERSION, FORMAT_VERSION);
+    if (bookTitle != null)
+      p.setProperty(KEY_BOOK_TITLE, bookTitle);
+    p.setProperty(KEY_SETTINGS_HASH, settingsHash);
+    for (Map.Entry<String, String> e : nodeHashes.entrySet()) {
+      Long pageId = pageIds.get(e.getKey());
+      p.setProperty(KEY_NODE_PREFIX + e.getKey(), e.getValue() + (pageId != null ? " " + pageId : ""));
+    }
+    for (Map.Entry<String, String> e : fileHashes.entrySet()) {
+      p.setProperty(KEY_FILE_PREFIX + e.getKey(), e.getValue());
+    }
+    for (Map.Entry<String, String> e : idPaths.entrySet()) {
+      p.setProperty(KEY_ID_PREFIX + e.getKey(), e.getValue());
+    }
+    for (Map.Entry<String, String> e : nodeTitles.entrySet()) {
+      p.setProperty(KEY_TITLE_PREFIX + e.getKey(), e.getValue());
+    }
+    StringWriter sw = new StringWriter();
+    try {
+      p.store(sw, null);
+    } catch (IOException e) {
+      // not thrown by StringWriter
+      throw new IllegalStateException(e);
+    }
+    return sw.toString();
+  }
+
+  /**
+   * Load manifest from text.
+   *
+   * @param text stored by {@link #store()}
+   * @return manifest
+   * @throws IllegalArgumentException if text is not manifest of supported format version
+   */
+  public static ImportManifest load(String text) {
+    Properties p = new Properties();
+    try {
+      p.load(new StringReader(text));
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Invalid import manifest: " + e.getMessage(), e);
+    }
+    if (!FORMAT_VERSION.equals(p.getProperty(KEY_VERSION)) || p.getProperty(KEY_SETTINGS_HASH) == null) {
+      throw new IllegalArgumentException("Unsupported import manifest version " + p.getProperty(KEY_VERSION));
+    }
+    ImportManifest ret = new ImportManifest(p.getProperty(KEY_BOOK_TITLE), p.getProperty(KEY_SETTINGS_HASH));
+    for (String key : p.stringPropertyNames()) {
+      String value = p.getProperty(key);
+      if (key.startsWith(KEY_NODE_PREFIX)) {
+        String path = key.substring(KEY_NODE_PREFIX.length());
+        int idx = value.indexOf(' ');
+        if (idx > -1) {
+          try {
+            ret.pageIds.put(path, Long.valueOf(value.substring(idx + 1)));
+          } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page id in import manifest for " + path);
+          }
+          value = value.substring(0, idx);
+        }
+        ret.nodeHashes.put(path, value);
+      } else if (key.startsWith(KEY_FILE_PREFIX)) {
+        ret.fileHashes.put(key.substring(KEY_FILE_PREFIX.length()), value);
+      } else if (key.startsWith(KEY_ID_PREFIX)) {
+        ret.idPaths.put(key.substring(KEY_ID_PREFIX.length()), value);
+      } else if (key.startsWith(KEY_TITLE_PREFIX)) {
+        ret.nodeTitles.put(key.substring(KEY_TITLE_PREFIX.length()), value);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return new digest used for all hashes in manifest
+   */
+  protected static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param data to encode
+   * @return hex encoded data
+   */
+  protected static String toHex(byte[] data) {
+    StringBuilder sb = new StringBuilder(data.length * 2);
+    for (byte b : data) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    if (value != null) {
+      try {
+        digest.update(value.getBytes(FileUtils.CHARSET_UTF_8));
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    digest.update((byte) 0);
+  }
+
+  @Override
+  public String toString() {
+    return "ImportManifest [bookTitle=" + bookTitle + ", settingsHash=" + settingsHash + ", nodes="
+        + nodeHashes.size() + ", pages=" + pageIds.size() + "]";
+  }
+
+}
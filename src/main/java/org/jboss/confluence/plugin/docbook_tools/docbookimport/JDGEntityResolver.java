@@ -25,13 +25,23 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.net.URLConnection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Logger;
 import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
@@ -43,8 +53,15 @@ import org.xml.sax.SAXException;
  * Our custom Entity resolver to handle:
  * <ul>
  * <li><code>/Common_Content/</code> placed resources.
+ * <li>DocBook DTDs and entity sets found in {@link DocBookCatalog} bundled with plugin, so they are never downloaded.
  * <li>Cache external (<code>http://</code> loaded) DocBook resources for better performance in memory (memCache) and on
- * filesystem (fsCache).
+ * filesystem (fsCache). Resources cached on filesystem may be revalidated by conditional HTTP request, see
+ * {@link #setRevalidationInterval(long)}. Concurrent requests for same resource not cached yet share one load.
+ * <li>Local <code>.xml</code> files (XIncluded parts of book) are normalized by {@link DocBookXMLNormalizer} while
+ * read, except of files XIncluded by <code>parse="text"</code> from files normalized by this resolver before (see
+ * {@link #normalizingInputSource(InputStream, String)}). Encoding declared by file is respected.
+ * <li>Local <code>.ent</code> files missing in folder of referencing file are loaded from parent folder. Resolved files
+ * are recorded in {@link LocalEntityTable} if given, so they are looked up and read only once per import.
  * <li>Calls wrapped resolver in other cases
  * </ul>
  * 
@@ -55,32 +72,59 @@ public class JDGEntityResolver implements EntityResolver {
   private static final Logger log = Logger.getLogger(JDGEntityResolver.class);
 
   /**
-   * Max number of entries in memCache.
+   * memCache structure - LRU type cache limited by size of content, shared by all imports
    */
-  private static final int MAX_CACHE_ENTRIES = 100;
+  private static final EntityMemCache memCache = new EntityMemCache();
 
   /**
-   * memCache structure - LRU type cache
+   * fsCache structure - LRU type cache limited by size of content, shared by all imports and JVMs using same temp area
    */
-  private static final Map<String, byte[]> memCache = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>(
-      MAX_CACHE_ENTRIES, .75F, true) {
-    protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
-      return size() > MAX_CACHE_ENTRIES;
-    }
-  });
+  private static final EntityFsCache fsCache = new EntityFsCache(
+      FileUtils.prepareDirectoryInTempArea("JDGEntityResolverFsCache"), EntityFsCache.DEFAULT_MAX_BYTES);
+
+  /**
+   * Interval of fsCache revalidation in milliseconds, 0 or less means never revalidated
+   */
+  private static volatile long revalidationInterval = 0;
+
+  /**
+   * Default value for {@link #getFetchTimeout()}.
+   */
+  public static final int DEFAULT_FETCH_TIMEOUT = 60 * 1000;
+
+  private static volatile int fetchTimeout = DEFAULT_FETCH_TIMEOUT;
 
   /**
-   * Directory for filesystem cache. Leave null to disable fsCache.
+   * Loads of external resources in progress, key is systemId. Used to share one load by concurrent requests.
    */
-  private static File fsCacheDir = FileUtils.prepareDirectoryInTempArea("JDGEntityResolverCache");
+  private static final ConcurrentMap<String, Load> inFlightLoads = new ConcurrentHashMap<String, Load>();
 
   /**
-   * Flag if memCache may be used or not
+   * Load of external resource shared by concurrent requests, see {@link #load(String)}.
    */
-  private static final boolean useMemCache = MAX_CACHE_ENTRIES > 0;
+  private static class Load extends FutureTask<byte[]> {
+
+    /**
+     * Time the load must be finished until, in milliseconds. Same for thread running load and threads waiting for it.
+     */
+    final long deadline;
+
+    Load(Callable<byte[]> callable, long deadline) {
+      super(callable);
+      this.deadline = deadline;
+    }
+  }
 
   private EntityResolver wrapped;
 
+  private LocalEntityTable localEntityTable;
+
+  /**
+   * System ids of files XIncluded by <code>parse="text"</code> found in files normalized by this resolver, in form
+   * returned by {@link DocBookXMLNormalizer#normalizeSystemId(String)}. They are served without normalization.
+   */
+  private final Set<String> textIncludes = new HashSet<String>();
+
   /**
    * Constructor.
    * 
@@ -91,6 +135,86 @@ public class JDGEntityResolver implements EntityResolver {
     this.wrapped = wrapped;
   }
 
+  /**
+   * Constructor.
+   * 
+   * @param wrapped resolver to be wrapped. Called if
+   * @param localEntityTable to record resolved local <code>.ent</code> files into, shared by all resolvers of one
+   *          import. May be null.
+   */
+  public JDGEntityResolver(EntityResolver wrapped, LocalEntityTable localEntityTable) {
+    this(wrapped);
+    this.localEntityTable = localEntityTable;
+  }
+
+  /**
+   * Get memCache shared by all resolvers, to configure its limits or read its statistics.
+   * 
+   * @return memCache
+   */
+  public static EntityMemCache getMemCache() {
+    return memCache;
+  }
+
+  /**
+   * Get fsCache shared by all resolvers, to configure its limit or read its statistics.
+   * 
+   * @return fsCache
+   */
+  public static EntityFsCache getFsCache() {
+    return fsCache;
+  }
+
+  /**
+   * @return interval of fsCache revalidation in milliseconds, 0 or less means never revalidated
+   */
+  public static long getRevalidationInterval() {
+    return revalidationInterval;
+  }
+
+  /**
+   * Set interval of fsCache revalidation. Resource cached on filesystem longer than this interval is revalidated by
+   * conditional HTTP request to its URL when used. Cached resource is used if it is not modified or if revalidation
+   * fails.
+   * 
+   * @param revalidationInterval in milliseconds, 0 or less means never revalidated
+   */
+  public static void setRevalidationInterval(long revalidationInterval) {
+    JDGEntityResolver.revalidationInterval = revalidationInterval;
+  }
+
+  /**
+   * @return overall timeout of external resource load (download included) in milliseconds. Requests waiting for load
+   *         started by other thread share its deadline.
+   */
+  public static int getFetchTimeout() {
+    return fetchTimeout;
+  }
+
+  /**
+   * Set timeout of external resource download, see {@link #getFetchTimeout()}.
+   * 
+   * @param fetchTimeout in milliseconds, must be positive
+   */
+  public static void setFetchTimeout(int fetchTimeout) {
+    if (fetchTimeout <= 0)
+      throw new IllegalArgumentException("fetchTimeout must be positive");
+    JDGEntityResolver.fetchTimeout = fetchTimeout;
+  }
+
+  /**
+   * Create SAX input source normalizing DocBook xml file by {@link DocBookXMLNormalizer} while it is parsed. Files
+   * XIncluded by <code>parse="text"</code> from this file are then resolved by this resolver without normalization.
+   * 
+   * @param in to read file from. Closed when reader of returned source is closed.
+   * @param systemId of file
+   * @return source with normalized content
+   * @throws IOException if encoding of file is not supported
+   */
+  public InputSource normalizingInputSource(InputStream in, String systemId) throws IOException {
+    return DocBookXMLNormalizer.normalizingInputSource(in, systemId, textIncludes);
+  }
+
   @Override
   public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
     if (systemId.contains("Common_Content/")) {
@@ -104,74 +228,32 @@ public class JDGEntityResolver implements EntityResolver {
 
     if (systemId != null) {
 
-      if (useMemCache && memCache.containsKey(systemId)) {
-        log.debug("MemCache hit for external resource: " + systemId);
-        InputSource is = new InputSource(new ByteArrayInputStream(memCache.get(systemId)));
-        is.setSystemId(systemId);
-        return is;
+      InputSource local = DocBookCatalog.getDefault().resolveEntity(publicId, systemId);
+      if (local != null) {
+        return local;
       }
 
       if (systemId.toLowerCase().startsWith("http://")) {
 
-        byte[] res_is = null;
-
-        String fsCacheKey = generateFsCacheKey(systemId);
-        res_is = getFromFSCache(fsCacheKey);
-
+        byte[] res_is = memCache.get(systemId);
         if (res_is != null) {
-          log.debug("FsCache hit for external resource: " + systemId);
-          if (useMemCache) {
-            memCache.put(systemId, res_is);
-            log.debug("MemCached fsCache loaded external resource: " + systemId);
-          }
-        } else {
-          InputStream is = null;
-          try {
-            URL url = new URL(systemId);
-            is = url.openStream();
-
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-
-            int count;
-            byte buf[] = new byte[2048];
-            while ((count = is.read(buf, 0, 2048)) != -1) {
-              os.write(buf, 0, count);
-            }
-
-            res_is = os.toByteArray();
-            writeToFSCache(fsCacheKey, new ByteArrayInputStream(res_is));
-
-            if (useMemCache) {
-              memCache.put(systemId, res_is);
-              log.debug("MemCached external resource: " + systemId);
-            }
-          } catch (Exception e) {
-            String msg = "Error retrieving external resource from URL " + systemId + " with message: " + e.getMessage();
-            log.warn(msg);
-            throw new IOException(msg);
-          } finally {
-            if (is != null) {
-              is.close();
-            }
-          }
+          log.debug("MemCache hit for external resource: " + systemId);
+          InputSource is = new InputSource(new ByteArrayInputStream(res_is));
+          is.setSystemId(systemId);
+          return is;
         }
 
-        if (res_is != null) {
-          InputSource cis = new InputSource(new ByteArrayInputStream(res_is));
-          cis.setSystemId(systemId);
-          return cis;
-        }
-      } else if (systemId.toLowerCase().startsWith("file:") && systemId.toLowerCase().endsWith(".ent")) {
-        log.debug("File for .ent resource required, go to check existence: " + systemId);
-        File f = new File(systemId.replaceFirst("file:", ""));
-        if (!f.exists()) {
-          File newf = new File(f.getParentFile().getParentFile(), f.getName());
-          log.debug("File for .ent resource do not exists (" + systemId + "), try to load it from parent folder: "
-              + newf.getAbsolutePath());
-          if (newf.exists()) {
-            return new InputSource(new BufferedInputStream(new FileInputStream(newf)));
-          }
+        res_is = load(systemId);
+        InputSource cis = new InputSource(new ByteArrayInputStream(res_is));
+        cis.setSystemId(systemId);
+        return cis;
+      } else if (systemId.toLowerCase().endsWith(".ent")) {
+        if (localEntityTable != null) {
+          return resolveRecordedLocalEntity(publicId, systemId);
         }
+        return resolveLocalEntity(publicId, systemId);
+      } else if (systemId.toLowerCase().endsWith(".xml") && !systemId.toLowerCase().startsWith("https://")) {
+        return resolveLocalXml(publicId, systemId);
       }
     }
 
@@ -182,31 +264,221 @@ public class JDGEntityResolver implements EntityResolver {
     return null;
   }
 
-  private byte[] getFromFSCache(String fsCacheKey) throws IOException {
-    if (fsCacheDir != null) {
-      File f = new File(fsCacheDir, fsCacheKey);
-      if (f.exists() && f.canRead()) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        FileUtils.copyFile(new FileInputStream(f), bos);
-        return bos.toByteArray();
+  /**
+   * Resolve local <code>.ent</code> file. File missing in folder of referencing file is loaded from parent folder,
+   * wrapped resolver is called in other cases.
+   */
+  private InputSource resolveLocalEntity(String publicId, String systemId) throws SAXException, IOException {
+    if (systemId.toLowerCase().startsWith("file:")) {
+      log.debug("File for .ent resource required, go to check existence: " + systemId);
+      File f = new File(systemId.replaceFirst("file:", ""));
+      if (!f.exists()) {
+        File newf = new File(f.getParentFile().getParentFile(), f.getName());
+        log.debug("File for .ent resource do not exists (" + systemId + "), try to load it from parent folder: "
+            + newf.getAbsolutePath());
+        if (newf.exists()) {
+          return new InputSource(new BufferedInputStream(new FileInputStream(newf)));
+        }
       }
     }
+    if (wrapped != null) {
+      return wrapped.resolveEntity(publicId, systemId);
+    }
     return null;
   }
 
-  private void writeToFSCache(String fsCacheKey, InputStream is) {
-    if (fsCacheDir != null) {
-      File f = new File(fsCacheDir, fsCacheKey);
+  /**
+   * Resolve local <code>.xml</code> file (eg. XIncluded part of book) by wrapped resolver or from its URL, and
+   * normalize it by {@link DocBookXMLNormalizer} while it is read. Files XIncluded as text are not normalized.
+   */
+  private InputSource resolveLocalXml(String publicId, String systemId) throws SAXException, IOException {
+    InputSource resolved = wrapped != null ? wrapped.resolveEntity(publicId, systemId) : null;
+    if (textIncludes.contains(DocBookXMLNormalizer.normalizeSystemId(systemId))) {
+      log.debug("Local .xml resource XIncluded as text, not normalized: " + systemId);
+      return resolved;
+    }
+    String resolvedSystemId = resolved != null && resolved.getSystemId() != null ? resolved.getSystemId() : systemId;
+    InputSource ret;
+    if (resolved != null && resolved.getCharacterStream() != null) {
+      ret = new InputSource(DocBookXMLNormalizer.normalizingReader(resolved.getCharacterStream(), resolvedSystemId,
+          textIncludes));
+    } else {
+      InputStream is = resolved != null ? resolved.getByteStream() : null;
+      if (is == null) {
+        is = new URL(resolvedSystemId).openStream();
+      }
+      ret = normalizingInputSource(is, resolvedSystemId);
+    }
+    ret.setPublicId(publicId);
+    ret.setSystemId(resolvedSystemId);
+    return ret;
+  }
+
+  /**
+   * Resolve local <code>.ent</code> file by {@link #resolveLocalEntity(String, String)} only first time, then serve it
+   * from {@link #localEntityTable}.
+   */
+  private InputSource resolveRecordedLocalEntity(String publicId, String systemId) throws SAXException, IOException {
+    byte[] content = localEntityTable.get(systemId);
+    if (content == null) {
+      if (localEntityTable.isNotFound(systemId)) {
+        throw new FileNotFoundException("Entity file not found: " + systemId);
+      }
+      InputStream is;
+      try {
+        InputSource resolved = resolveLocalEntity(publicId, systemId);
+        is = resolved != null ? resolved.getByteStream() : null;
+        if (is == null) {
+          is = new URL(resolved != null && resolved.getSystemId() != null ? resolved.getSystemId() : systemId)
+              .openStream();
+        }
+      } catch (FileNotFoundException e) {
+        localEntityTable.putNotFound(systemId);
+        throw e;
+      }
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      FileUtils.copyFile(is, bos);
+      content = bos.toByteArray();
+      localEntityTable.put(systemId, content);
+      log.debug("Local .ent resource resolved and recorded for import: " + systemId);
+    }
+    InputSource ret = new InputSource(new ByteArrayInputStream(content));
+    ret.setPublicId(publicId);
+    ret.setSystemId(systemId);
+    return ret;
+  }
+
+  /**
+   * Load external resource from fsCache or download it, and put it into memCache. Concurrent calls for same resource
+   * share one load started by first of them. Load has deadline {@link #getFetchTimeout()} after its start, others wait
+   * for it until the same deadline.
+   * 
+   * @param systemId URL of resource
+   * @return content of resource
+   * @throws IOException if resource can't be loaded
+   */
+  private byte[] load(final String systemId) throws IOException {
+    final long deadline = System.currentTimeMillis() + fetchTimeout;
+    Load task = new Load(new Callable<byte[]>() {
+
+      @Override
+      public byte[] call() throws Exception {
+        byte[] ret;
+        EntityFsCache.Entry cached = fsCache.get(systemId);
+        if (cached != null && !isRevalidationNecessary(cached)) {
+          log.debug("FsCache hit for external resource: " + systemId);
+          ret = cached.getContent();
+        } else {
+          ret = download(systemId, cached, deadline);
+        }
+        memCache.put(systemId, ret);
+        log.debug("MemCached external resource: " + systemId);
+        return ret;
+      }
+    }, deadline);
+
+    Load inFlight = inFlightLoads.putIfAbsent(systemId, task);
+    if (inFlight == null) {
       try {
-        FileUtils.copyFile(is, new FileOutputStream(f));
-      } catch (Exception e) {
-        log.warn("Error writing external resource to FSCache" + e.getMessage());
+        task.run();
+      } finally {
+        inFlightLoads.remove(systemId, task);
+      }
+      inFlight = task;
+    } else {
+      log.debug("Waiting for load of external resource started by other thread: " + systemId);
+    }
+
+    try {
+      return inFlight.get(Math.max(1, inFlight.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException("Error loading external resource " + systemId + " due: " + e.getCause().getMessage(),
+          e.getCause());
+    } catch (TimeoutException e) {
+      String msg = "Timeout waiting for external resource " + systemId + " loaded by other thread";
+      log.warn(msg);
+      throw new IOException(msg);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for external resource " + systemId);
+    }
+  }
+
+  private static boolean isRevalidationNecessary(EntityFsCache.Entry cached) {
+    return revalidationInterval > 0 && cached.getValidated() < System.currentTimeMillis() - revalidationInterval;
+  }
+
+  /**
+   * Download external resource and store it into fsCache. Conditional HTTP request is used if resource is already
+   * cached. Connect and read timeouts are limited by time remaining to deadline, which is checked while content is
+   * read too, so slowly sent content doesn't prolong download.
+   * 
+   * @param systemId URL of resource
+   * @param cached resource from fsCache to be revalidated, null if not cached
+   * @param deadline time download must be finished until, in milliseconds
+   * @return content of resource
+   * @throws IOException if resource can't be downloaded and it is not cached
+   */
+  private byte[] download(String systemId, EntityFsCache.Entry cached, long deadline) throws IOException {
+    InputStream is = null;
+    try {
+      URLConnection conn = new URL(systemId).openConnection();
+      conn.setConnectTimeout(getRemainingTime(deadline));
+      conn.setReadTimeout(getRemainingTime(deadline));
+      if (cached != null) {
+        if (cached.getEtag() != null)
+          conn.setRequestProperty("If-None-Match", cached.getEtag());
+        if (cached.getLastModified() != null)
+          conn.setRequestProperty("If-Modified-Since", cached.getLastModified());
+      }
+      if (cached != null && conn instanceof HttpURLConnection
+          && ((HttpURLConnection) conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        log.debug("FsCache revalidated external resource: " + systemId);
+        fsCache.markValidated(systemId, cached);
+        return cached.getContent();
+      }
+      is = conn.getInputStream();
+
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+      int count;
+      byte buf[] = new byte[2048];
+      while ((count = is.read(buf, 0, 2048)) != -1) {
+        os.write(buf, 0, count);
+        getRemainingTime(deadline);
+      }
+
+      byte[] ret = os.toByteArray();
+      fsCache.put(systemId, ret, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+      return ret;
+    } catch (Exception e) {
+      String msg = "Error retrieving external resource from URL " + systemId + " with message: " + e.getMessage();
+      if (cached != null) {
+        log.warn(msg + ", cached content used");
+        return cached.getContent();
+      }
+      log.warn(msg);
+      throw new IOException(msg);
+    } finally {
+      if (is != null) {
+        is.close();
       }
     }
   }
 
-  private String generateFsCacheKey(String systemId) {
-    return systemId.replaceAll("\\W", "_");
+  /**
+   * @param deadline time in milliseconds
+   * @return milliseconds remaining to deadline, positive
+   * @throws SocketTimeoutException if deadline has passed
+   */
+  private static int getRemainingTime(long deadline) throws SocketTimeoutException {
+    long ret = deadline - System.currentTimeMillis();
+    if (ret <= 0) {
+      throw new SocketTimeoutException("Download takes longer than " + fetchTimeout + "ms");
+    }
+    return (int) Math.min(ret, Integer.MAX_VALUE);
   }
 
 }
@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Table of local entity files (<code>.ent</code>) resolved during one import, so each file is looked up and read only
+ * once even if it is referenced from many files of book or book is parsed more times. Unresolvable entity files are
+ * recorded too. Table is thread safe.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see JDGEntityResolver
+ * @see DocBookSource#getLocalEntityTable()
+ */
+public class LocalEntityTable {
+
+  private static final byte[] NOT_FOUND = new byte[0];
+
+  private final ConcurrentMap<String, byte[]> table = new ConcurrentHashMap<String, byte[]>();
+
+  /**
+   * Get content of resolved entity file.
+   * 
+   * @param systemId of entity
+   * @return content of entity file, null if entity is not resolved yet or if it was not found (see
+   *         {@link #isNotFound(String)})
+   */
+  public byte[] get(String systemId) {
+    byte[] ret = table.get(systemId);
+    return ret == NOT_FOUND ? null : ret;
+  }
+
+  /**
+   * @param systemId of entity
+   * @return true if entity file was resolved and not found
+   */
+  public boolean isNotFound(String systemId) {
+    return table.get(systemId) == NOT_FOUND;
+  }
+
+  /**
+   * Record content of resolved entity file.
+   * 
+   * @param systemId of entity
+   * @param content of entity file
+   */
+  public void put(String systemId, byte[] content) {
+    table.put(systemId, content);
+  }
+
+  /**
+   * Record that entity file was not found.
+   * 
+   * @param systemId of entity
+   */
+  public void putNotFound(String systemId) {
+    table.put(systemId, NOT_FOUND);
+  }
+
+  /**
+   * @return number of recorded entities, including not found ones
+   */
+  public int getSize() {
+    return table.size();
+  }
+
+}
@@ -21,6 +21,8 @@
 package org.jboss.confluence.plugin.docbook_tools.utils;
 
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 
 import com.atlassian.confluence.pages.PageManager;
@@ -80,7 +82,17 @@ public class ConfluenceUtils {
   public static void handlePageTitleUniqueness(ConfluencePageTitleUniqEnabled nodeToProcess, String titlePrefixBase,
       String spaceKey, PageManagerWrapper pageManager) {
     Set<String> documentTitles = new HashSet<String>();
-    handlePageTitleUniqueness(nodeToProcess, titlePrefixBase, spaceKey, documentTitles, pageManager);
+    // nodes are processed in document order (node before its children) without recursion, so deep trees are handled
+    LinkedList<ConfluencePageTitleUniqEnabled> stack = new LinkedList<ConfluencePageTitleUniqEnabled>();
+    stack.push(nodeToProcess);
+    while (!stack.isEmpty()) {
+      ConfluencePageTitleUniqEnabled node = stack.pop();
+      handlePageTitleUniqueness(node, titlePrefixBase, spaceKey, documentTitles, pageManager);
+      List<? extends ConfluencePageTitleUniqEnabled> childs = node.getChilds();
+      for (int i = childs.size() - 1; i >= 0; i--) {
+        stack.push(childs.get(i));
+      }
+    }
   }
 
   private static void handlePageTitleUniqueness(ConfluencePageTitleUniqEnabled nodeToProcess, String titlePrefixBase,
@@ -113,12 +125,6 @@ public class ConfluenceUtils {
       }
     }
     documentTitles.add(nodeToProcess.getConfluencePageTitle());
-
-    // process all children
-    for (ConfluencePageTitleUniqEnabled child : nodeToProcess.getChilds()) {
-      handlePageTitleUniqueness(child, titlePrefixBase, spaceKey, documentTitles, pageManager);
-    }
-
   }
 
 }
@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.file.Path;
 import java.util.Properties;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -227,7 +228,7 @@ public class FileUtils {
       ZipEntry entry;
       while ((entry = zis.getNextEntry()) != null) {
         // write the files to the disk
-        File f = new File(outfolder, entry.getName());
+        File f = resolveZipEntryPath(outfolder.toPath(), entry.getName()).toFile();
         if (entry.isDirectory()) {
           f.mkdirs();
         } else {
@@ -251,6 +252,23 @@ public class FileUtils {
     }
   }
 
+  /**
+   * Get path to extract zip entry into.
+   * 
+   * @param outfolder folder zip file is extracted into
+   * @param entryName name of zip entry
+   * @return path for entry
+   * @throws IOException if entry name points out of <code>outfolder</code>
+   */
+  private static Path resolveZipEntryPath(Path outfolder, String entryName) throws IOException {
+    Path base = outfolder.toAbsolutePath().normalize();
+    Path ret = base.resolve(entryName).normalize();
+    if (!ret.startsWith(base)) {
+      throw new IOException("Zip entry name points out of target folder: " + entryName);
+    }
+    return ret;
+  }
+
   /**
    * Zip content of given dir into given stream.
    * 
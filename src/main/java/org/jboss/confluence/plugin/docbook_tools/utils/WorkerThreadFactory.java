@@ -0,0 +1,79 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory for plugin worker pools. Threads are daemons named by given prefix and sequence number, and they have
+ * given class loader set as context class loader, so JAXP lookups and other context class loader based code running
+ * in them find plugin classes.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class WorkerThreadFactory implements ThreadFactory {
+
+  private final String namePrefix;
+
+  private final ClassLoader contextClassLoader;
+
+  private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+  /**
+   * @param namePrefix prefix of thread names, sequence number is appended to it
+   * @param contextClassLoader context class loader for created threads
+   */
+  public WorkerThreadFactory(String namePrefix, ClassLoader contextClassLoader) {
+    this.namePrefix = namePrefix;
+    this.contextClassLoader = contextClassLoader;
+  }
+
+  @Override
+  public Thread newThread(Runnable r) {
+    Thread th = new WorkerThread(this, r, namePrefix + " " + threadNumber.getAndIncrement());
+    th.setDaemon(true);
+    th.setContextClassLoader(contextClassLoader);
+    return th;
+  }
+
+  /**
+   * Check if given thread has been created by this factory. Useful to run nested work directly instead of submitting
+   * it into the same pool, which may deadlock.
+   * 
+   * @param thread to check
+   * @return true if thread has been created by this factory
+   */
+  public boolean isOwnThread(Thread thread) {
+    return thread instanceof WorkerThread && ((WorkerThread) thread).factory == this;
+  }
+
+  private static class WorkerThread extends Thread {
+
+    private final WorkerThreadFactory factory;
+
+    WorkerThread(WorkerThreadFactory factory, Runnable r, String name) {
+      super(r, name);
+      this.factory = factory;
+    }
+  }
+
+}
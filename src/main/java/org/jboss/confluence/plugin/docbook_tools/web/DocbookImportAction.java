@@ -21,13 +21,16 @@
 package org.jboss.confluence.plugin.docbook_tools.web;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.activation.MimetypesFileTypeMap;
@@ -35,16 +38,19 @@ import javax.activation.MimetypesFileTypeMap;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jboss.confluence.plugin.docbook_tools.docbookimport.DocBookSource;
 import org.jboss.confluence.plugin.docbook_tools.docbookimport.DocBookVersion;
+import org.jboss.confluence.plugin.docbook_tools.docbookimport.DocBookZipArchive;
 import org.jboss.confluence.plugin.docbook_tools.docbookimport.DocStructureItem;
 import org.jboss.confluence.plugin.docbook_tools.docbookimport.DocbookImporter;
+import org.jboss.confluence.plugin.docbook_tools.docbookimport.ImportManifest;
 import org.jboss.confluence.plugin.docbook_tools.utils.ConfluenceUtils;
-import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
 import org.springframework.web.util.HtmlUtils;
 
 import com.atlassian.confluence.content.render.xhtml.DefaultConversionContext;
 import com.atlassian.confluence.core.BodyContent;
 import com.atlassian.confluence.core.BodyType;
+import com.atlassian.confluence.core.ContentPropertyManager;
 import com.atlassian.confluence.labels.Label;
 import com.atlassian.confluence.labels.LabelManager;
 import com.atlassian.confluence.labels.Labelable;
@@ -66,12 +72,24 @@ import com.opensymphony.webwork.dispatcher.multipart.MultiPartRequestWrapper;
  */
 public class DocbookImportAction extends PageAvareActionBase {
 
+	/**
+	 * Name of content property of imported book root page with {@link ImportManifest} of import.
+	 */
+	public static final String MANIFEST_PROPERTY = "docbook-import-manifest";
+
+	/**
+	 * Prefix of temporary title of page renamed during update of previous import, page id is appended to it.
+	 */
+	private static final String TEMPORARY_TITLE_PREFIX = "DocBook import rename ";
+
 	private Log logger;
 
 	private PageManager pageManager;
 
 	private LabelManager labelManager;
 
+	private ContentPropertyManager contentPropertyManager;
+
 	private DocbookImporter importer;
 
 	private String titlePrefixBase;
@@ -79,6 +97,8 @@ public class DocbookImportAction extends PageAvareActionBase {
 	private String docbookver;
 
 	private String allSectionLevels;
+
+	private String incremental;
 	
 	private final XhtmlContent xhtmlContent;
 
@@ -100,6 +120,7 @@ public class DocbookImportAction extends PageAvareActionBase {
 		logger.debug("constructor called");
 		pageManager = (PageManager) ContainerManager.getComponent("pageManager");
 		labelManager = (LabelManager) ContainerManager.getComponent("labelManager");
+		contentPropertyManager = (ContentPropertyManager) ContainerManager.getComponent("contentPropertyManager");
 		xhtmlContent = (XhtmlContent) ContainerManager.getComponent("xhtmlContent");
 	}
 
@@ -147,6 +168,32 @@ public class DocbookImportAction extends PageAvareActionBase {
 		this.docbookver = docbookver;
 	}
 
+	/**
+	 * Resolve DocBook version to be used for import. Version selected in form overrides detected one, detected version is
+	 * used if nothing is selected.
+	 * 
+	 * @param detectedVersion version detected from root element of main DocBook file
+	 * @return version to be used for import
+	 */
+	protected DocBookVersion resolveDocBookVersion(DocBookVersion detectedVersion) {
+		String ver = StringUtils.trimToNull(docbookver);
+		DocBookVersion ret = detectedVersion;
+		if ("5".equals(ver)) {
+			ret = DocBookVersion.DOCBOOK_5_0;
+		} else if ("4".equals(ver)) {
+			ret = DocBookVersion.DOCBOOK_4_3;
+		}
+		if (ret == null) {
+			ret = DocBookVersion.DOCBOOK_4_3;
+		}
+		if (detectedVersion != null && ret != detectedVersion) {
+			logger.warn("DocBook version " + ret + " selected in form overrides detected version " + detectedVersion);
+		} else {
+			logger.debug("DocBook version used for import: " + ret);
+		}
+		return ret;
+	}
+
 	/**
 	 * @return the allSectionLevels
 	 */
@@ -161,6 +208,27 @@ public class DocbookImportAction extends PageAvareActionBase {
 		this.allSectionLevels = allSectionLevels;
 	}
 
+	/**
+	 * Form parameter.
+	 * 
+	 * @return the incremental
+	 */
+	public String getIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Form parameter. If true then previous import of same book under the same page is updated, only pages of changed
+	 * nodes are imported again as new page versions. Mapping of pages to nodes by DocBook id with page renames, moves
+	 * and recreation of deleted pages is part of the same update deliberately, because pages can't be renamed or moved
+	 * without being updated in place. Whole book is imported as new pages if no previous import is found.
+	 * 
+	 * @param incremental the incremental to set
+	 */
+	public void setIncremental(String incremental) {
+		this.incremental = incremental;
+	}
+
 	/**
 	 * Called to show import form page.
 	 * 
@@ -206,52 +274,79 @@ public class DocbookImportAction extends PageAvareActionBase {
 			if (!fn[0].endsWith(".zip")) {
 				addActionError("Uploaded file must be .zip");
 			} else {
-				File workingDir = null;
+				DocBookZipArchive archive = null;
 				try {
 					importer = new DocbookImporter();
 
-					workingDir = FileUtils.prepareWorkingDirectory("import-src-");
-					FileUtils.unzip(FileUtils.openFileInputStream(files[0]), workingDir);
-					File docBookFileToImport = importer.findMainDocBookBookFile(workingDir);
+					// all files are read directly from uploaded archive, it is not extracted
+					archive = new DocBookZipArchive(files[0]);
+					String docBookFileToImport = importer.findMainDocBookBookFile(archive);
 					if (docBookFileToImport == null) {
 						addActionError("No main DocBook file containing <book> root element found.");
 					} else {
-						logger.debug("Main DocBook file to process: " + docBookFileToImport.getName());
+						logger.debug("Main DocBook file to process: " + docBookFileToImport);
 
-						DocBookVersion docbookVersion = DocBookVersion.DOCBOOK_4_3;
-						if ("5".equals(StringUtils.trimToNull(docbookver))) {
-							docbookVersion = DocBookVersion.DOCBOOK_5_0;
-						}
+						DocBookVersion docbookVersion = resolveDocBookVersion(importer.getDocBookBookVersion(archive,
+								docBookFileToImport));
 
 						boolean allSectionLevelsBool = Boolean.parseBoolean(allSectionLevels);
 
-						DocStructureItem docToImport = importer.getDocStructure(new FileInputStream(docBookFileToImport),
-								docBookFileToImport.toURI().toString(), docbookVersion, allSectionLevelsBool);
-
-						if (validateReferencedLocalFilesExists(docToImport, workingDir)) {
-
-							ConfluenceUtils.handlePageTitleUniqueness(docToImport, titlePrefixBase, getSpace().getKey(),
-									new ConfluenceUtils.PageManagerWrapper() {
+						// content is normalized while book is parsed, so files are not rewritten
+						DocBookSource docBookSource = importer.prepareDocBookSource(new DocBookSource(archive,
+								docBookFileToImport));
 
-										@Override
-										public boolean pageExists(String spaceKey, String title) {
-											return pageManager.getPage(spaceKey, title) != null;
-										}
+						DocStructureItem docToImport = importer.getDocStructure(docBookSource, docbookVersion,
+								allSectionLevelsBool);
 
-									});
-
-							importer.normalizeAllDocBookXMLFilesContent(workingDir);
+						if (validateReferencedLocalFilesExists(docToImport, archive)) {
 
 							Page importRootPage = getPage();
+							String importSettings = docbookVersion + ";" + allSectionLevelsBool + ";"
+									+ getTitlePrefixBase();
+
+							PreviousImport previousImport = null;
+							Map<DocStructureItem, Long> previousPageIds = Collections.emptyMap();
+							if (Boolean.parseBoolean(incremental)) {
+								previousImport = findPreviousImport(docToImport, importRootPage);
+								if (previousImport == null) {
+									addActionMessage("No previous import of the book found under this page, "
+											+ "whole book is imported.");
+								} else {
+									previousPageIds = retainExistingPages(previousImport.manifest
+											.mapPageIds(docToImport));
+									// document root page of previous import is always updated
+									Long documentRootPageId = previousImport.documentRootPage.getId();
+									previousPageIds.values().removeAll(Collections.singleton(documentRootPageId));
+									previousPageIds.put(docToImport, documentRootPageId);
+								}
+							}
+
+							handlePageTitleUniqueness(docToImport, previousPageIds.values());
+							ImportManifest manifest = ImportManifest.create(docToImport, importSettings, archive);
+
+							if (previousImport != null) {
+								updatePreviousImport(docBookSource, docToImport, docbookVersion, allSectionLevelsBool,
+										manifest, previousImport, previousPageIds, archive);
+								return "success";
+							}
+
+							// content of all pages by one transformation, page titles used in links are final now
+							Map<DocStructureItem, String> wikiContents = importer.prepareAllNodesWIKIContent(docBookSource,
+									docToImport, docbookVersion, allSectionLevelsBool);
+
 							Page importRootPageOrig = (Page) importRootPage.clone();
 
 							Page documentRootPage = importDocumentRoot(docToImport, importRootPage);
 
-							importSubpages(docBookFileToImport, docToImport, documentRootPage, workingDir, docbookVersion);
+							importSubpages(wikiContents, docToImport, documentRootPage, archive, manifest);
 
 							pageManager.saveContentEntity(documentRootPage, null);
 							pageManager.saveContentEntity(importRootPage, importRootPageOrig, null);
 
+							manifest.setPageId(docToImport, documentRootPage.getId());
+							contentPropertyManager.setTextProperty(documentRootPage, MANIFEST_PROPERTY,
+									manifest.store());
+
 							addActionMessage("Imported successfuly.");
 
 							return "success";
@@ -261,8 +356,12 @@ public class DocbookImportAction extends PageAvareActionBase {
 					logger.error("Error during DocBook file import: " + e.getMessage(), e);
 					addActionError("Error during DocBook file import: " + HtmlUtils.htmlEscape(e.getMessage()));
 				} finally {
-					if (!logger.isDebugEnabled()) {
-						FileUtils.deleteDirectoryRecursively(workingDir);
+					if (archive != null) {
+						try {
+							archive.close();
+						} catch (IOException e) {
+							logger.warn("Error closing uploaded DocBook archive: " + e.getMessage());
+						}
 					}
 				}
 			}
@@ -289,6 +388,260 @@ public class DocbookImportAction extends PageAvareActionBase {
 		return true;
 	}
 
+	/**
+	 * Previous import of book found under the current page.
+	 */
+	private static class PreviousImport {
+		final Page documentRootPage;
+		final ImportManifest manifest;
+
+		PreviousImport(Page documentRootPage, ImportManifest manifest) {
+			this.documentRootPage = documentRootPage;
+			this.manifest = manifest;
+		}
+	}
+
+	/**
+	 * Find the latest previous import of same book (by book title) under given page.
+	 * 
+	 * @param docToImport info about document being imported
+	 * @param importRootPage page document is imported under
+	 * @return previous import or null if not found
+	 */
+	private PreviousImport findPreviousImport(DocStructureItem docToImport, Page importRootPage) {
+		PreviousImport ret = null;
+		for (Page child : importRootPage.getChildren()) {
+			String text = contentPropertyManager.getTextProperty(child, MANIFEST_PROPERTY);
+			if (text == null)
+				continue;
+			try {
+				ImportManifest manifest = ImportManifest.load(text);
+				if (StringUtils.equals(docToImport.getTitle(), manifest.getBookTitle())
+						&& (ret == null || child.getLastModificationDate().after(
+								ret.documentRootPage.getLastModificationDate()))) {
+					ret = new PreviousImport(child, manifest);
+				}
+			} catch (IllegalArgumentException e) {
+				logger.warn("Import manifest of page " + child.getId() + " ignored: " + e.getMessage());
+			}
+		}
+		if (ret == null) {
+			logger.info("No previous import of '" + docToImport.getTitle() + "' found, whole document is imported");
+		} else {
+			logger.debug("Previous import found: " + ret.manifest);
+		}
+		return ret;
+	}
+
+	/**
+	 * Remove nodes whose page of previous import doesn't exist anymore, is in trash or is not the current version, so
+	 * pages are created for them again.
+	 * 
+	 * @param pageIds pages of previous import mapped to nodes
+	 * @return mapping of nodes to existing current pages only
+	 */
+	private Map<DocStructureItem, Long> retainExistingPages(Map<DocStructureItem, Long> pageIds) {
+		Map<DocStructureItem, Long> ret = new HashMap<DocStructureItem, Long>();
+		for (Map.Entry<DocStructureItem, Long> e : pageIds.entrySet()) {
+			if (isExistingPage(pageManager.getPage(e.getValue()))) {
+				ret.put(e.getKey(), e.getValue());
+			} else {
+				logger.info("Page " + e.getValue() + " of previous import doesn't exist anymore, it is created again");
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @param page to check
+	 * @return true if page is not null, is not in trash and is current version
+	 */
+	private static boolean isExistingPage(Page page) {
+		return page != null && !page.isDeleted() && page.isLatestVersion();
+	}
+
+	/**
+	 * Prepare unique page titles for document. Pages updated by import don't collide with titles.
+	 * 
+	 * @param docToImport info about document being imported
+	 * @param pageIds ids of pages updated by import
+	 */
+	private void handlePageTitleUniqueness(DocStructureItem docToImport, Collection<Long> pageIds) {
+		final Set<Long> updatedPageIds = new HashSet<Long>(pageIds);
+		ConfluenceUtils.handlePageTitleUniqueness(docToImport, titlePrefixBase, getSpace().getKey(),
+				new ConfluenceUtils.PageManagerWrapper() {
+
+					@Override
+					public boolean pageExists(String spaceKey, String title) {
+						Page page = pageManager.getPage(spaceKey, title);
+						return page != null && !updatedPageIds.contains(page.getId());
+					}
+
+				});
+	}
+
+	/**
+	 * Update pages of previous import of the same book in place. Nodes are mapped to pages of previous import by DocBook
+	 * id (see {@link ImportManifest#mapPageIds(DocStructureItem)}), page is saved as new version only if its content,
+	 * title or placement differs. Pages are created for new nodes and for nodes whose page was deleted. Pages of nodes
+	 * removed from book are kept and reported. If import settings are the same as in previous import then only nodes
+	 * whose page content depends on something changed since it are rendered (see {@link ImportManifest}), other pages
+	 * are only moved if their placement changed. Title of document root page is updated too. Manifest of previous import
+	 * is replaced by new one.
+	 * 
+	 * @param docBookSource book being imported
+	 * @param docToImport info about document being imported
+	 * @param docbookVersion version of docbook to process
+	 * @param allSectionLevels flag used to obtain <code>docToImport</code>
+	 * @param manifest of this import
+	 * @param previousImport to be updated
+	 * @param previousPageIds existing pages of previous import mapped to nodes of <code>docToImport</code>, document
+	 *          root page included
+	 * @param archive to load referenced images from
+	 * @throws Exception
+	 */
+	private void updatePreviousImport(DocBookSource docBookSource, DocStructureItem docToImport,
+			DocBookVersion docbookVersion, boolean allSectionLevels, ImportManifest manifest,
+			PreviousImport previousImport, Map<DocStructureItem, Long> previousPageIds, DocBookZipArchive archive)
+			throws Exception {
+		List<DocStructureItem> allNodes = docToImport.getSubtree().subList(1, docToImport.getSubtree().size());
+		List<DocStructureItem> nodes;
+		if (manifest.isSameSettings(previousImport.manifest)) {
+			nodes = manifest.getChangedNodes(docToImport, previousImport.manifest, previousPageIds);
+		} else {
+			logger.info("Import settings changed since previous import, all pages are rendered");
+			nodes = allNodes;
+		}
+		Set<DocStructureItem> changedNodes = new HashSet<DocStructureItem>(nodes);
+		for (Map.Entry<DocStructureItem, Long> e : previousPageIds.entrySet()) {
+			manifest.setPageId(e.getKey(), e.getValue());
+		}
+		logger.info("Update of previous import of '" + docToImport.getTitle() + "', nodes to render: " + nodes.size());
+
+		int created = 0;
+		int updated = 0;
+		int processed = 0;
+		try {
+			Map<DocStructureItem, String> wikiContents = Collections.emptyMap();
+			if (!nodes.isEmpty()) {
+				wikiContents = importer.prepareNodesWIKIContent(docBookSource, docToImport, nodes, docbookVersion,
+						allSectionLevels);
+			}
+
+			List<DocStructureItem> renamedNodes = new ArrayList<DocStructureItem>(nodes);
+			renamedNodes.add(docToImport);
+			releaseTitlesForUpdate(renamedNodes, previousPageIds);
+
+			Page documentRootPage = previousImport.documentRootPage;
+			if (!docToImport.getConfluencePageTitle().equals(documentRootPage.getTitle())) {
+				Page pageOrig = (Page) documentRootPage.clone();
+				documentRootPage.setTitle(docToImport.getConfluencePageTitle());
+				pageManager.saveContentEntity(documentRootPage, pageOrig, null);
+				updated++;
+			}
+
+			// nodes are in document order, so parent page is always imported before its childs
+			for (DocStructureItem node : allNodes) {
+				Long parentPageId = manifest.getPageId(node.getParent());
+				Page parentPage = parentPageId != null ? pageManager.getPage(parentPageId) : null;
+				if (!isExistingPage(parentPage)) {
+					logger.warn("Page of parent of node " + node.getDocBookXPath(null)
+							+ " not found, page is placed under document root page");
+					parentPage = documentRootPage;
+				}
+				int position = node.getParent().getChilds().indexOf(node);
+				Long pageId = previousPageIds.get(node);
+				Page page = pageId != null ? pageManager.getPage(pageId) : null;
+				boolean changed = changedNodes.contains(node);
+				if (page == null) {
+					page = preparePageObjectBase(node, parentPage);
+					page.setPosition(position);
+					setPageBodyContent(page, wikiContents.get(node));
+					importPageAttachments(node, archive, page, null);
+					pageManager.saveContentEntity(page, null);
+					manifest.setPageId(node, page.getId());
+					created++;
+				} else {
+					if (page.getParent() == null || page.getParent().getId() != parentPage.getId()) {
+						pageManager.movePageAsChild(page, parentPage);
+					}
+					String bodyContent = page.getBodyAsString();
+					if (changed) {
+						importPageAttachments(node, archive, page, previousImport.manifest);
+						bodyContent = convertWikiToStorage(page, wikiContents.get(node));
+					}
+					String title = node.getConfluencePageTitle();
+					if (!bodyContent.equals(page.getBodyAsString()) || !title.equals(page.getTitle())
+							|| page.getPosition() == null || page.getPosition() != position) {
+						Page pageOrig = (Page) page.clone();
+						page.setTitle(title);
+						page.setPosition(position);
+						page.setBodyAsString(bodyContent);
+						pageManager.saveContentEntity(page, pageOrig, null);
+						updated++;
+					}
+				}
+				if (changed) {
+					importPageLabels(node, page);
+				}
+				processed++;
+			}
+		} catch (Exception e) {
+			// pages created and updated so far are kept in manifest, remaining nodes are rendered again next time
+			for (DocStructureItem node : allNodes.subList(processed, allNodes.size())) {
+				if (changedNodes.contains(node))
+					manifest.resetNodeHash(node);
+			}
+			contentPropertyManager.setTextProperty(previousImport.documentRootPage, MANIFEST_PROPERTY, manifest.store());
+			throw e;
+		}
+
+		contentPropertyManager.setTextProperty(previousImport.documentRootPage, MANIFEST_PROPERTY, manifest.store());
+
+		Set<Long> removedPageIds = new HashSet<Long>(previousImport.manifest.getPageIds());
+		removedPageIds.removeAll(manifest.getPageIds());
+		List<String> removedPageTitles = new ArrayList<String>();
+		for (Long removedPageId : removedPageIds) {
+			Page page = pageManager.getPage(removedPageId);
+			if (isExistingPage(page)) {
+				removedPageTitles.add(page.getTitle());
+			}
+		}
+		Collections.sort(removedPageTitles);
+		if (!removedPageTitles.isEmpty()) {
+			logger.info("Pages of nodes removed from document are kept: " + removedPageTitles);
+		}
+		addActionMessage("Previous import updated successfuly, " + updated + " pages updated, " + created
+				+ " pages created" + (removedPageTitles.isEmpty() ? "." : ", " + removedPageTitles.size()
+						+ " pages of nodes removed from document are kept: "
+						+ HtmlUtils.htmlEscape(StringUtils.join(removedPageTitles, ", ")) + "."));
+	}
+
+	/**
+	 * First phase of page renames during update of previous import. Existing page whose current title is going to be
+	 * used by other page of this import is renamed to temporary unique title, so chained or swapped renames don't fail
+	 * on duplicate page title. Final titles are set when pages are updated.
+	 * 
+	 * @param nodes to be imported
+	 * @param previousPageIds existing pages of previous import mapped to nodes
+	 */
+	private void releaseTitlesForUpdate(List<DocStructureItem> nodes, Map<DocStructureItem, Long> previousPageIds) {
+		Set<String> newTitles = new HashSet<String>();
+		for (DocStructureItem node : nodes) {
+			newTitles.add(node.getConfluencePageTitle());
+		}
+		for (DocStructureItem node : nodes) {
+			Long pageId = previousPageIds.get(node);
+			Page page = pageId != null ? pageManager.getPage(pageId) : null;
+			if (page != null && !page.getTitle().equals(node.getConfluencePageTitle())
+					&& newTitles.contains(page.getTitle())) {
+				Page pageOrig = (Page) page.clone();
+				page.setTitle(TEMPORARY_TITLE_PREFIX + page.getId());
+				pageManager.saveContentEntity(page, pageOrig, null);
+			}
+		}
+	}
+
 	/**
 	 * Import document root into {@link Page}. Both returned object and <code>importRootPage</code> must be persisted
 	 * later using {@link PageManager}!
@@ -331,41 +684,71 @@ public class DocbookImportAction extends PageAvareActionBase {
 	/**
 	 * Import childs of given DocStructureItem (chapters or sections) as subpages for given rootPage.
 	 * 
-	 * @param docBookFileToImport DocBook xml <code>book</code> file used to import.
+	 * @param wikiContents WIKI content of all nodes to import, see
+	 *          {@link DocbookImporter#prepareAllNodesWIKIContent(DocBookSource, DocStructureItem, DocBookVersion, boolean)}
 	 * @param docToImport info about node to read childs from
 	 * @param rootPage root node page to add childs as subpages to
-	 * @param workDir to load referenced images from
+	 * @param archive to load referenced images from
+	 * @param manifest to set ids of imported pages into
 	 * @throws Exception
 	 */
-	private void importSubpages(File docBookFileToImport, DocStructureItem docToImport, Page rootPage, File workDir,
-			DocBookVersion docbookVersion) throws Exception {
+	private void importSubpages(Map<DocStructureItem, String> wikiContents, DocStructureItem docToImport, Page rootPage,
+			DocBookZipArchive archive, ImportManifest manifest) throws Exception {
 		int chapterPosition = 0;
 		for (DocStructureItem chapterInfo : docToImport.getChilds()) {
 			Page chapterPage = preparePageObjectBase(chapterInfo, rootPage);
 			chapterPage.setPosition(chapterPosition++);
 			
-			String wikiContent = importer.prepareNodeWIKIContent(docBookFileToImport, chapterInfo, docbookVersion);
-			List<RuntimeException> conversionErrors = new ArrayList<>();
-            BodyContent bc = new BodyContent(chapterPage, xhtmlContent.convertWikiToStorage(wikiContent, new DefaultConversionContext( chapterPage.toPageContext()), conversionErrors ), BodyType.XHTML);
-            if(!conversionErrors.isEmpty()){
-                logger.warn("Errors from wiki content conversion during DocBook import: " + conversionErrors);
-            }
-			chapterPage.setBodyContent(bc);
-			importPageAttachments(chapterInfo, workDir, chapterPage);
+			setPageBodyContent(chapterPage, wikiContents.get(chapterInfo));
+			importPageAttachments(chapterInfo, archive, chapterPage, null);
 
 			// import subpages recursively
-			importSubpages(docBookFileToImport, chapterInfo, chapterPage, workDir, docbookVersion);
+			importSubpages(wikiContents, chapterInfo, chapterPage, archive, manifest);
 
 			pageManager.saveContentEntity(chapterPage, null);
+			manifest.setPageId(chapterInfo, chapterPage.getId());
+
+			importPageLabels(chapterInfo, chapterPage);
+		}
+	}
 
-			Set<String> labels = chapterInfo.getLabels();
-			if (labels != null && !labels.isEmpty()) {
-				for (String lb : labels) {
+	private void setPageBodyContent(Page page, String wikiContent) {
+		page.setBodyContent(new BodyContent(page, convertWikiToStorage(page, wikiContent), BodyType.XHTML));
+	}
+
+	private String convertWikiToStorage(Page page, String wikiContent) {
+		List<RuntimeException> conversionErrors = new ArrayList<>();
+		String ret = xhtmlContent.convertWikiToStorage(wikiContent, new DefaultConversionContext(page.toPageContext()),
+				conversionErrors);
+		if (!conversionErrors.isEmpty()) {
+			logger.warn("Errors from wiki content conversion during DocBook import: " + conversionErrors);
+		}
+		return ret;
+	}
+
+	/**
+	 * Add labels of node to page. Labels the page already has are not added again, other labels of page are kept.
+	 * 
+	 * @param chapterInfo to add labels of
+	 * @param chapterPage to add labels to
+	 */
+	private void importPageLabels(DocStructureItem chapterInfo, Page chapterPage) {
+		Set<String> labels = chapterInfo.getLabels();
+		if (labels != null && !labels.isEmpty()) {
+			Set<String> existingLabels = new HashSet<String>();
+			List<Label> pageLabels = chapterPage.getLabels();
+			if (pageLabels != null) {
+				for (Label label : pageLabels) {
+					if (Namespace.GLOBAL.equals(label.getNamespace()))
+						existingLabels.add(label.getName());
+				}
+			}
+			for (String lb : labels) {
+				if (!existingLabels.contains(lb)) {
 					Label label = new Label(lb, Namespace.GLOBAL);
 					labelManager.addLabel((Labelable) chapterPage, label);
 				}
 			}
-
 		}
 	}
 
@@ -373,11 +756,14 @@ public class DocbookImportAction extends PageAvareActionBase {
 	 * Import attachments for Page.
 	 * 
 	 * @param chapterInfo to import attachments for
-	 * @param workDir to read attachments from
+	 * @param archive to read attachments from
 	 * @param chapterPage to add attachments to
+	 * @param previousManifest manifest of previous import if existing page is updated, null for new page. Attachment
+	 *          with unchanged file is kept then, changed file is saved as new attachment version.
 	 * @throws Exception
 	 */
-	private void importPageAttachments(DocStructureItem chapterInfo, File workDir, Page chapterPage) throws Exception {
+	private void importPageAttachments(DocStructureItem chapterInfo, DocBookZipArchive archive, Page chapterPage,
+			ImportManifest previousManifest) throws Exception {
 		List<String> localRefs = chapterInfo.getFilerefsLocal();
 		if (localRefs != null && !localRefs.isEmpty()) {
 			AttachmentManager attachmentManager = pageManager.getAttachmentManager();
@@ -385,29 +771,43 @@ public class DocbookImportAction extends PageAvareActionBase {
 			for (String ref : localRefs) {
 				if (!uniqueName.contains(ref)) {
 					uniqueName.add(ref);
-					File af = new File(workDir, ref);
-					Attachment attachment = new Attachment();
-					attachment.setFileName(importer.getFilenameFromFilerefLocal(ref));
-					attachment.setFileSize(af.length());
-					attachment.setContent(chapterPage);
-					attachment.setContentType(mtftm.getContentType(af));
-					InputStream is = new FileInputStream(af);
+					String fileName = importer.getFilenameFromFilerefLocal(ref);
+					Attachment previousVersion = null;
+					Attachment attachment = null;
+					if (previousManifest != null) {
+						attachment = attachmentManager.getAttachment(chapterPage, fileName);
+					}
+					if (attachment != null) {
+						String previousHash = previousManifest.getFileHash(ref);
+						if (previousHash != null && previousHash.equals(ImportManifest.computeFileHash(archive, ref))) {
+							continue;
+						}
+						previousVersion = (Attachment) attachment.clone();
+					} else {
+						attachment = new Attachment();
+						attachment.setFileName(fileName);
+						attachment.setContent(chapterPage);
+					}
+					attachment.setFileSize(archive.getSize(ref));
+					attachment.setContentType(mtftm.getContentType(ref));
+					InputStream is = archive.openInputStream(ref);
 					try {
-						attachmentManager.saveAttachment(attachment, null, is);
+						attachmentManager.saveAttachment(attachment, previousVersion, is);
 					} finally {
 						if (is != null) {
 							is.close();
 						}
 					}
-					chapterPage.addAttachment(attachment);
+					if (previousVersion == null)
+						chapterPage.addAttachment(attachment);
 				}
 			}
 		}
 	}
 
-	private boolean validateReferencedLocalFilesExists(DocStructureItem docToImport, File directory) {
+	private boolean validateReferencedLocalFilesExists(DocStructureItem docToImport, DocBookZipArchive archive) {
 		List<String> messages = new ArrayList<String>();
-		importer.validateImageFilesExists(docToImport, directory, messages);
+		importer.validateImageFilesExists(docToImport, archive, messages);
 
 		if (messages.isEmpty()) {
 			return true;
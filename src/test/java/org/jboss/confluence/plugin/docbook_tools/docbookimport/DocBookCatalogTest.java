@@ -0,0 +1,137 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+/**
+ * Unit test for {@link DocBookCatalog}
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class DocBookCatalogTest {
+
+  @Test
+  public void resolve_default() throws Exception {
+    DocBookCatalog tested = DocBookCatalog.getDefault();
+    Assert.assertSame(tested, DocBookCatalog.getDefault());
+
+    URL entities = tested.resolve("-//OASIS//DTD DocBook XML V4.3//EN",
+        "http://www.oasis-open.org/docbook/xml/4.3/docbookx.dtd");
+    Assert.assertNotNull(entities);
+    Assert.assertTrue(entities.toString().endsWith("/catalog/docbook-entities.ent"));
+
+    // by system id only
+    Assert.assertEquals(entities, tested.resolve(null, "http://www.oasis-open.org/docbook/xml/4.5/docbookx.dtd"));
+    Assert.assertEquals(entities, tested.resolve(null, "http://www.docbook.org/xml/5.0/dtd/docbook.dtd"));
+    // by public id only, whitespaces normalized
+    Assert.assertEquals(entities, tested.resolve(" -//OASIS//DTD  DocBook XML V4.2//EN", "docbookx.dtd"));
+    Assert.assertEquals(entities,
+        tested.resolve("ISO 8879:1986//ENTITIES Added Latin 1//EN//XML", "http://example.com/iso-lat1.ent"));
+
+    Assert.assertNull(tested.resolve(null, null));
+    Assert.assertNull(tested.resolve("-//W3C//DTD XHTML 1.0 Strict//EN", "http://www.w3.org/TR/xhtml1/DTD/strict.dtd"));
+    Assert.assertNull(tested.resolve(null, "http://www.oasis-open.org/docbook/xml/4.3/other.dtd"));
+  }
+
+  @Test
+  public void resolve_customCatalog() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("DocBookCatalogTest");
+    try {
+      File catalog = new File(dir, "catalog.xml");
+      FileOutputStream fos = new FileOutputStream(catalog);
+      fos.write(("<catalog xmlns='urn:oasis:names:tc:entity:xmlns:xml:catalog'>"
+          + "<group><public publicId='-//TEST//EN' uri='test.dtd'/></group>"
+          + "<system systemId='http://example.com/test.dtd' uri='sub/test.dtd'/>"
+          + "<uri name='http://example.com/ignored.xml' uri='ignored.xml'/></catalog>").getBytes("UTF-8"));
+      fos.close();
+
+      DocBookCatalog tested = new DocBookCatalog(catalog.toURI().toURL());
+      Assert.assertEquals(new File(dir, "test.dtd").toURI().toURL(), tested.resolve("-//TEST//EN", null));
+      Assert.assertEquals(new File(dir, "sub/test.dtd").toURI().toURL(),
+          tested.resolve("-//TEST//EN", "http://example.com/test.dtd"));
+      Assert.assertNull(tested.resolve(null, "http://example.com/ignored.xml"));
+      Assert.assertNull(tested.resolveEntity("-//OTHER//EN", null));
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test
+  public void resolveEntity_localCopy() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("DocBookCatalogTest");
+    try {
+      File catalog = new File(dir, "catalog.xml");
+      FileOutputStream fos = new FileOutputStream(catalog);
+      fos.write(("<catalog xmlns='urn:oasis:names:tc:entity:xmlns:xml:catalog'>"
+          + "<public publicId='-//TEST//EN' uri='test.dtd'/></catalog>").getBytes("UTF-8"));
+      fos.close();
+      File dtd = new File(dir, "test.dtd");
+      fos = new FileOutputStream(dtd);
+      fos.write("<!ENTITY a 'b'>".getBytes("UTF-8"));
+      fos.close();
+
+      DocBookCatalog tested = new DocBookCatalog(catalog.toURI().toURL());
+      InputSource is = tested.resolveEntity("-//TEST//EN", "test.dtd");
+      Assert.assertEquals(dtd.toURI().toURL().toString(), is.getSystemId());
+      Assert.assertEquals("-//TEST//EN", is.getPublicId());
+      Assert.assertEquals("<!ENTITY a 'b'>", FileUtils.readFileAsString(is.getByteStream()));
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test
+  public void parseOffline() throws Exception {
+    String xml = "<?xml version='1.0'?>\n<!DOCTYPE book PUBLIC \"-//OASIS//DTD DocBook XML V4.3//EN\" "
+        + "\"http://www.oasis-open.org/docbook/xml/4.3/docbookx.dtd\">\n"
+        + "<book><para>a&nbsp;b&mdash;c&agr;&nvlt;&AMP;&trade;</para></book>";
+
+    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    DocumentBuilder db = dbf.newDocumentBuilder();
+    // wrapped resolver fails for everything not resolved from catalog
+    db.setEntityResolver(new JDGEntityResolver(new EntityResolver() {
+
+      @Override
+      public InputSource resolveEntity(String publicId, String systemId) {
+        throw new IllegalStateException("Entity not resolved from catalog: " + systemId);
+      }
+    }));
+    InputSource is = new InputSource(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    is.setSystemId("file:/test/book.xml");
+    Document doc = db.parse(is);
+    Assert.assertEquals("a\u00A0b\u2014c\u03B1<\u20D2&\u2122", doc.getDocumentElement().getTextContent());
+  }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+/**
+ * Unit test for {@link DocBookXMLNormalizer}. Normalizations itself are tested in
+ * {@link DocbookImporter_CommonTest#normalizeDocBookXMLFileContent_String()}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class DocBookXMLNormalizerTest {
+
+  @Test
+  public void normalize_bufferBoundaries() throws IOException {
+    // reader returning one character per read, so CR LF and tags are split between reads
+    final Reader in = new StringReader("<para id=\"p1\">\r\n  text\r\n</ para>\r\r\n<entry>\rx\r</entry>");
+    Reader slowIn = new Reader() {
+
+      @Override
+      public int read(char[] cbuf, int off, int len) throws IOException {
+        return in.read(cbuf, off, Math.min(len, 1));
+      }
+
+      @Override
+      public void close() throws IOException {
+        in.close();
+      }
+    };
+    StringWriter out = new StringWriter();
+    DocBookXMLNormalizer.normalize(slowIn, out);
+    Assert.assertEquals("<para>text</para>\n\n<entry>x</entry>", out.toString());
+  }
+
+  @Test
+  public void normalize_longContent() throws IOException {
+    StringBuilder content = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      content.append("<para role=\"r").append(i).append("\">\n");
+      expected.append("<para>");
+      for (int j = 0; j < i % 20; j++) {
+        content.append("      ");
+      }
+      content.append("text ").append(i).append("\r\n    </para>\n  <programlisting>code</ programlisting>\n\n  ");
+      expected.append("text ").append(i).append("</para>\n  <programlisting>code</programlisting>");
+    }
+    StringWriter out = new StringWriter();
+    DocBookXMLNormalizer.normalize(new StringReader(content.toString()), out);
+    Assert.assertEquals(expected.toString(), out.toString());
+  }
+
+  @Test
+  public void normalizingInputSource() throws IOException {
+    StringBuilder content = new StringBuilder("\uFEFF<book>");
+    for (int i = 0; i < 1000; i++) {
+      content.append("<para>\r\n  \u010de\u0161tina ").append(i).append("\r\n</ para>\n<entry>\n x</ entry>\n");
+    }
+    content.append("</book>");
+    StringWriter expected = new StringWriter();
+    DocBookXMLNormalizer.normalize(new StringReader(content.substring(1)), expected);
+
+    InputSource is = DocBookXMLNormalizer.normalizingInputSource(new ByteArrayInputStream(content.toString().getBytes(
+        FileUtils.CHARSET_UTF_8)), "file:/book.xml");
+    Assert.assertEquals("file:/book.xml", is.getSystemId());
+    Reader reader = is.getCharacterStream();
+    StringBuilder out = new StringBuilder();
+    char[] buf = new char[7];
+    int n;
+    while ((n = reader.read(buf, 0, buf.length)) != -1) {
+      out.append(buf, 0, n);
+    }
+    reader.close();
+    Assert.assertEquals(expected.toString(), out.toString());
+  }
+
+  @Test
+  public void normalizingInputSource_declaredEncoding() throws IOException {
+    String content = "<?xml version='1.0' encoding='ISO-8859-2'?>\n<para>\n  \u010de\u0161tina\n</para>";
+    Reader reader = DocBookXMLNormalizer.normalizingInputSource(
+        new ByteArrayInputStream(content.getBytes("ISO-8859-2")), null).getCharacterStream();
+    Assert.assertEquals("<?xml version='1.0' encoding='ISO-8859-2'?>\n<para>\u010de\u0161tina</para>", read(reader));
+
+    content = "<?xml version=\"1.0\"?><para>\u010de\u0161tina</para>";
+    reader = DocBookXMLNormalizer.normalizingInputSource(new ByteArrayInputStream(content.getBytes("UTF-16")), null)
+        .getCharacterStream();
+    Assert.assertEquals(content, read(reader));
+    reader = DocBookXMLNormalizer.normalizingInputSource(new ByteArrayInputStream(content.getBytes("UTF-16LE")), null)
+        .getCharacterStream();
+    Assert.assertEquals(content, read(reader));
+  }
+
+  @Test
+  public void normalizingInputSource_textIncludes() throws IOException {
+    String content = "<chapter><programlisting><xi:include parse=\"text\"\n href=\"../code/a.xml\"/></programlisting>"
+        + "<xi:include href=\"b.xml\"/><include href='c.xml' parse='text'/>"
+        + "<xi:include href=\"http://example.com/d.xml\" parse=\"text\"/></chapter>";
+    List<String> textIncludes = new ArrayList<String>();
+    Reader reader = DocBookXMLNormalizer.normalizingInputSource(
+        new ByteArrayInputStream(content.getBytes(FileUtils.CHARSET_UTF_8)), "jar:file:/tmp/a.zip!/chapters/ch.xml",
+        textIncludes).getCharacterStream();
+    Assert.assertEquals(content, read(reader));
+    Assert.assertEquals(Arrays.asList("jar:file:/tmp/a.zip!/code/a.xml", "jar:file:/tmp/a.zip!/chapters/c.xml",
+        "http://example.com/d.xml"), textIncludes);
+  }
+
+  @Test
+  public void normalizeSystemId() {
+    Assert.assertEquals("file:/tmp/a/c.xml", DocBookXMLNormalizer.normalizeSystemId("file:///tmp/a/./b/../c.xml"));
+    Assert.assertEquals("jar:file:/tmp/a.zip!/c.xml",
+        DocBookXMLNormalizer.normalizeSystemId("jar:file:/tmp/a.zip!/a/b/../../c.xml"));
+    Assert.assertEquals("jar:file:/tmp/a.zip!/../c.xml",
+        DocBookXMLNormalizer.normalizeSystemId("jar:file:/tmp/a.zip!/../c.xml"));
+    Assert.assertEquals("file:/tmp/c.xml", DocBookXMLNormalizer.resolveSystemId("file:/tmp/a/b.xml", "../c.xml"));
+    Assert.assertEquals("jar:file:/tmp/a.zip!/c.xml",
+        DocBookXMLNormalizer.resolveSystemId("jar:file:/tmp/a.zip!/a/b.xml", "/c.xml"));
+    Assert.assertEquals("file:/c.xml", DocBookXMLNormalizer.resolveSystemId("file:/tmp/a/b.xml", "/c.xml"));
+  }
+
+  private static String read(Reader reader) throws IOException {
+    StringBuilder out = new StringBuilder();
+    char[] buf = new char[7];
+    int n;
+    while ((n = reader.read(buf, 0, buf.length)) != -1) {
+      out.append(buf, 0, n);
+    }
+    reader.close();
+    return out.toString();
+  }
+
+  @Test
+  public void normalize_tooLongAttributes() throws IOException {
+    StringBuilder attr = new StringBuilder();
+    for (int i = 0; i < DocBookXMLNormalizer.MAX_LOOKAHEAD; i++) {
+      attr.append('a');
+    }
+    String content = "<para role=\"" + attr + "\">\ntext</para>";
+    StringWriter out = new StringWriter();
+    DocBookXMLNormalizer.normalize(new StringReader(content), out);
+    Assert.assertEquals(content, out.toString());
+  }
+
+  @Test
+  public void normalize_tooLongWhitespaces() throws IOException {
+    StringBuilder ws = new StringBuilder();
+    for (int i = 0; i < DocBookXMLNormalizer.MAX_LOOKAHEAD; i++) {
+      ws.append(' ');
+    }
+    // long run is kept as is, including the tag before it
+    String content = "<para role=\"a\">\n" + ws + ws + "\ntext\n" + ws + ws + "</para>";
+    StringWriter out = new StringWriter();
+    DocBookXMLNormalizer.normalize(new StringReader(content), out);
+    Assert.assertEquals(content, out.toString());
+
+    // run exactly at limit is still normalized
+    content = "<para role=\"a\">\n" + ws.substring(1) + "text\n" + ws.substring(1) + "</para>";
+    out = new StringWriter();
+    DocBookXMLNormalizer.normalize(new StringReader(content), out);
+    Assert.assertEquals("<para>text</para>", out.toString());
+  }
+
+  @Test
+  public void normalizeDocBookXMLFileContent_File() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("normalizertest");
+    try {
+      File file = new File(dir, "book.xml");
+      FileUtils.writeStringContentToFile(file, "<book><para>\r\n  \u010de\u0161tina\r\n</para></book>");
+      new DocbookImporter().normalizeDocBookXMLFileContent(file);
+      Assert.assertEquals("<book><para>\u010de\u0161tina</para></book>",
+          FileUtils.readFileAsString(FileUtils.openFileInputStream(file)));
+      // no temporary file left
+      Assert.assertEquals(1, dir.list().length);
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+/**
+ * Unit test for {@link DocBookZipArchive}
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class DocBookZipArchiveTest {
+
+  private File prepareZipFile(File dir, String... entries) throws Exception {
+    File file = new File(dir, "upload.zip");
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      for (String name : entries) {
+        zos.putNextEntry(new ZipEntry(name));
+        if (!name.endsWith("/")) {
+          zos.write(("content of " + name).getBytes(FileUtils.CHARSET_UTF_8));
+        }
+        zos.closeEntry();
+      }
+    } finally {
+      zos.close();
+    }
+    return file;
+  }
+
+  @Test
+  public void entries() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("ziparchivetest");
+    try {
+      DocBookZipArchive archive = new DocBookZipArchive(prepareZipFile(dir, "book.xml", "other.txt", "chapters/",
+          "chapters/ch 1.xml", "images/img.png"));
+      try {
+        Assert.assertEquals(2, archive.getRootFileNames().size());
+        Assert.assertTrue(archive.getRootFileNames().contains("book.xml"));
+        Assert.assertTrue(archive.getRootFileNames().contains("other.txt"));
+
+        Assert.assertTrue(archive.exists("images/img.png"));
+        Assert.assertTrue(archive.exists("./chapters/../images/img.png"));
+        Assert.assertFalse(archive.exists("chapters"));
+        Assert.assertFalse(archive.exists("../upload.zip"));
+        Assert.assertFalse(archive.exists("images/unknown.png"));
+        Assert.assertEquals("content of images/img.png".length(), archive.getSize("images/img.png"));
+        CRC32 crc = new CRC32();
+        crc.update("content of images/img.png".getBytes(FileUtils.CHARSET_UTF_8));
+        Assert.assertEquals(crc.getValue(), archive.getCrc("./images/img.png"));
+        Assert.assertEquals("content of images/img.png",
+            FileUtils.readFileAsString(archive.openInputStream("images/img.png")));
+
+        String systemId = archive.getSystemId("chapters/ch 1.xml");
+        Assert.assertEquals("jar:" + new File(dir, "upload.zip").toURI() + "!/chapters/ch%201.xml", systemId);
+        Assert.assertEquals("chapters/ch 1.xml", archive.getEntryName(systemId));
+        Assert.assertNull(archive.getEntryName("file:/chapters/ch1.xml"));
+      } finally {
+        archive.close();
+      }
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test
+  public void limits() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("ziparchivetest");
+    try {
+      File file = prepareZipFile(dir, "a.xml", "b.xml", "c.xml");
+      // each entry is 16 bytes long
+      try {
+        new DocBookZipArchive(file, DocBookZipArchive.DEFAULT_MAX_TOTAL_SIZE, 2);
+        Assert.fail("IOException expected");
+      } catch (IOException e) {
+        Assert.assertEquals("Zip file contains 3 entries, max 2 allowed", e.getMessage());
+      }
+      try {
+        new DocBookZipArchive(file, 47, DocBookZipArchive.DEFAULT_MAX_ENTRIES);
+        Assert.fail("IOException expected");
+      } catch (IOException e) {
+        Assert.assertEquals("Zip file content size 48 exceeds limit 47", e.getMessage());
+      }
+      new DocBookZipArchive(file, 48, 3).close();
+
+      // declared size of entry in central directory is lower than real size
+      byte[] content = readFile(file);
+      for (int i = 0; i < content.length - 4; i++) {
+        if (content[i] == 0x50 && content[i + 1] == 0x4b && content[i + 2] == 0x01 && content[i + 3] == 0x02) {
+          content[i + 24] = 4;
+        }
+      }
+      FileOutputStream fos = new FileOutputStream(file);
+      try {
+        fos.write(content);
+      } finally {
+        fos.close();
+      }
+      DocBookZipArchive archive = new DocBookZipArchive(file);
+      try {
+        Assert.assertEquals(4, archive.getSize("a.xml"));
+        FileUtils.readFileAsString(archive.openInputStream("a.xml"));
+        Assert.fail("IOException expected");
+      } catch (IOException e) {
+        Assert.assertEquals("Zip file entry a.xml is bigger than its declared size 4", e.getMessage());
+      } finally {
+        archive.close();
+      }
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    FileUtils.copyFile(FileUtils.openFileInputStream(file), bos);
+    return bos.toByteArray();
+  }
+
+  @Test
+  public void resolvers() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("ziparchivetest");
+    try {
+      DocBookZipArchive archive = new DocBookZipArchive(prepareZipFile(dir, "book.xml", "chapters/ch1.xml",
+          "Book.ent"));
+      try {
+        InputSource is = archive.resolveEntity(null, archive.getSystemId("chapters/ch1.xml"));
+        Assert.assertEquals("content of chapters/ch1.xml", FileUtils.readFileAsString(is.getByteStream()));
+        // .ent file is searched in parent folder
+        is = archive.resolveEntity(null, archive.getSystemId("chapters/Book.ent"));
+        Assert.assertEquals("content of Book.ent", FileUtils.readFileAsString(is.getByteStream()));
+        Assert.assertNull(archive.resolveEntity(null, "http://www.oasis-open.org/docbook/xml/4.5/docbookx.dtd"));
+
+        StreamSource ss = (StreamSource) archive.resolve("../book.xml", archive.getSystemId("chapters/ch1.xml"));
+        Assert.assertEquals(archive.getSystemId("book.xml"), ss.getSystemId());
+        Assert.assertEquals("content of book.xml", FileUtils.readFileAsString(ss.getInputStream()));
+        Assert.assertNull(archive.resolve("http://www.jboss.org/a.xml", archive.getSystemId("book.xml")));
+      } finally {
+        archive.close();
+      }
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+/**
+ * Unit test for {@link DocStructureBuilder}
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class DocStructureBuilderTest {
+
+  private static final String BOOK_5_0 = "<book xmlns='http://docbook.org/ns/docbook' version='5.0'>"
+      + "<info><title>Info title</title></info><title> Book <emphasis>title</emphasis> </title>"
+      + "<appendix xml:id='a1' id='a1old'><title>Appendix</title><para><imagedata fileref='images/a.png'/></para></appendix>"
+      + "<chapter xml:id='c1'><title>Chapter 1</title><title>Other title</title>"
+      + "<mediaobject><imagedata fileref='images/c1.png'><x fileref='images/ignored.png'/></imagedata></mediaobject>"
+      + "<section xml:id='s1' remap='label1'><title>Section 1</title><para><imagedata fileref='http://my.org/i.png'/></para>"
+      + "<para>See <xref linkend='s11'/>, <link linkend='c1'>chapter</link> and <xref linkend='s11'/></para>"
+      + "<section xml:id='s11'><title>Section 1.1</title><para><imagedata fileref='images/s11.png'/></para></section>"
+      + "</section>"
+      + "<simplesect><section><title>Section in simplesect</title></section></simplesect>"
+      + "</chapter></book>";
+
+  private static final String BOOK_4_3 = "<book><bookinfo><title>Book</title></bookinfo><info><title> title</title></info>"
+      + "<title>ignored</title><chapter id='c1'><title>Chapter 1</title>"
+      + "<section id='s1'><title>Section 1</title></section></chapter></book>";
+
+  @Test
+  public void build_DocBook_5_0_onesectionlevel() throws Exception {
+    DocStructureItem book = build(BOOK_5_0, DocBookVersion.DOCBOOK_5_0, false);
+    Assert.assertEquals(DocStructureItem.TYPE_BOOK, book.getType());
+    Assert.assertEquals("Book title", book.getTitle());
+    Assert.assertEquals(2, book.getChilds().size());
+
+    // appendixes are placed after chapters
+    DocStructureItem chapter = book.getChilds().get(0);
+    Assert.assertEquals(DocStructureItem.TYPE_CHAPTER, chapter.getType());
+    Assert.assertEquals("c1", chapter.getId());
+    Assert.assertEquals("Chapter 1", chapter.getTitle());
+    Assert.assertEquals(1, chapter.getFilerefsLocal().size());
+    Assert.assertEquals("images/c1.png", chapter.getFilerefsLocal().get(0));
+    Assert.assertEquals(1, chapter.getChilds().size());
+
+    DocStructureItem section = chapter.getChilds().get(0);
+    Assert.assertEquals(DocStructureItem.TYPE_SECTION, section.getType());
+    Assert.assertEquals("s1", section.getId());
+    Assert.assertEquals("Section 1", section.getTitle());
+    Assert.assertTrue(section.getLabels().contains("label1"));
+    Assert.assertEquals(1, section.getFilerefsExternal().size());
+    // filerefs from subsections not imported as pages belong to section
+    Assert.assertEquals(1, section.getFilerefsLocal().size());
+    Assert.assertEquals(0, section.getChilds().size());
+    Assert.assertEquals(Arrays.asList("s11", "c1"), section.getLinkends());
+    Assert.assertEquals(0, chapter.getLinkends().size());
+
+    DocStructureItem appendix = book.getChilds().get(1);
+    Assert.assertEquals(DocStructureItem.TYPE_APPENDIX, appendix.getType());
+    Assert.assertEquals("a1", appendix.getId());
+    Assert.assertEquals("Appendix", appendix.getTitle());
+    Assert.assertEquals("images/a.png", appendix.getFilerefsLocal().get(0));
+  }
+
+  @Test
+  public void build_DocBook_5_0_allsectionlevels() throws Exception {
+    DocStructureItem book = build(BOOK_5_0, DocBookVersion.DOCBOOK_5_0, true);
+    DocStructureItem chapter = book.getChilds().get(0);
+    Assert.assertEquals(2, chapter.getChilds().size());
+    Assert.assertEquals("Section in simplesect", chapter.getChilds().get(1).getTitle());
+
+    DocStructureItem section = chapter.getChilds().get(0);
+    Assert.assertEquals(0, section.getFilerefsLocal().size());
+    Assert.assertEquals(1, section.getChilds().size());
+    Assert.assertEquals("s11", section.getChilds().get(0).getId());
+    Assert.assertEquals(Arrays.asList("s11", "c1"), section.getLinkends());
+    Assert.assertEquals("images/s11.png", section.getChilds().get(0).getFilerefsLocal().get(0));
+  }
+
+  @Test
+  public void build_DocBook_4_3() throws Exception {
+    DocStructureItem book = build(BOOK_4_3, DocBookVersion.DOCBOOK_4_3, false);
+    Assert.assertEquals("Book title", book.getTitle());
+    Assert.assertEquals("book/chapter[1]/section[1]", book.getChilds().get(0).getChilds().get(0).getDocBookXPath(null));
+    Assert.assertEquals("c1", book.getChilds().get(0).getId());
+
+    // namespaced DocBook 5 is not DocBook 4.3 book
+    try {
+      build(BOOK_5_0, DocBookVersion.DOCBOOK_4_3, false);
+      Assert.fail("IllegalStateException must be thrown");
+    } catch (IllegalStateException e) {
+      // OK
+    }
+  }
+
+  @Test
+  public void build_contentHash() throws Exception {
+    DocStructureItem book = build(BOOK_4_3, DocBookVersion.DOCBOOK_4_3, false);
+    DocStructureItem chapter = book.getChilds().get(0);
+    DocStructureItem section = chapter.getChilds().get(0);
+    Assert.assertNotNull(book.getContentHash());
+    Assert.assertNotNull(chapter.getContentHash());
+    Assert.assertNotNull(section.getContentHash());
+    Assert.assertFalse(chapter.getContentHash().equals(section.getContentHash()));
+
+    // same content gives same hashes
+    DocStructureItem book2 = build(BOOK_4_3, DocBookVersion.DOCBOOK_4_3, false);
+    Assert.assertEquals(chapter.getContentHash(), book2.getChilds().get(0).getContentHash());
+    Assert.assertEquals(section.getContentHash(), book2.getChilds().get(0).getChilds().get(0).getContentHash());
+
+    // change in section changes hash of section only
+    book2 = build(BOOK_4_3.replace("Section 1", "Section one"), DocBookVersion.DOCBOOK_4_3, false);
+    Assert.assertEquals(chapter.getContentHash(), book2.getChilds().get(0).getContentHash());
+    Assert.assertFalse(section.getContentHash().equals(book2.getChilds().get(0).getChilds().get(0).getContentHash()));
+
+    // change of attribute in chapter changes hash of chapter only
+    book2 = build(BOOK_4_3.replace("<chapter id='c1'>", "<chapter id='c1' role='x'>"), DocBookVersion.DOCBOOK_4_3,
+        false);
+    Assert.assertFalse(chapter.getContentHash().equals(book2.getChilds().get(0).getContentHash()));
+    Assert.assertEquals(section.getContentHash(), book2.getChilds().get(0).getChilds().get(0).getContentHash());
+
+    // content of not imported subsection and ignored elements belongs to nearest node
+    DocStructureItem book5 = build(BOOK_5_0, DocBookVersion.DOCBOOK_5_0, false);
+    DocStructureItem book5changed = build(BOOK_5_0.replace("images/ignored.png", "images/other.png"),
+        DocBookVersion.DOCBOOK_5_0, false);
+    Assert.assertFalse(book5.getChilds().get(0).getContentHash()
+        .equals(book5changed.getChilds().get(0).getContentHash()));
+    book5changed = build(BOOK_5_0.replace("Section 1.1", "Section 1.one"), DocBookVersion.DOCBOOK_5_0, false);
+    Assert.assertEquals(book5.getChilds().get(0).getContentHash(), book5changed.getChilds().get(0).getContentHash());
+    Assert.assertFalse(book5.getChilds().get(0).getChilds().get(0).getContentHash()
+        .equals(book5changed.getChilds().get(0).getChilds().get(0).getContentHash()));
+  }
+
+  private DocStructureItem build(String xml, DocBookVersion version, boolean allSectionLevels) throws Exception {
+    SAXParserFactory spf = SAXParserFactory.newInstance();
+    spf.setNamespaceAware(true);
+    DocStructureBuilder tested = new DocStructureBuilder(version, allSectionLevels);
+    spf.newSAXParser().parse(new InputSource(new StringReader(xml)), tested);
+    return tested.getDocStructure();
+  }
+
+}
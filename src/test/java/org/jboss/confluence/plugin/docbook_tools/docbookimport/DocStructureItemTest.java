@@ -20,6 +20,8 @@
  */
 package org.jboss.confluence.plugin.docbook_tools.docbookimport;
 
+import java.util.Arrays;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -288,6 +290,211 @@ public class DocStructureItemTest {
 
 	}
 
+	@Test
+	public void freeze() {
+		DocStructureItem book = new DocStructureItem(DocStructureItem.TYPE_BOOK);
+		DocStructureItem chapter1 = new DocStructureItem(DocStructureItem.TYPE_CHAPTER);
+		book.addChild(chapter1);
+		DocStructureItem appendix1 = new DocStructureItem(DocStructureItem.TYPE_APPENDIX);
+		book.addChild(appendix1);
+		DocStructureItem chapter2 = new DocStructureItem(DocStructureItem.TYPE_CHAPTER);
+		book.addChild(chapter2);
+		DocStructureItem section21 = new DocStructureItem(DocStructureItem.TYPE_SECTION);
+		chapter2.addChild(section21);
+		DocStructureItem section22 = new DocStructureItem(DocStructureItem.TYPE_SECTION);
+		chapter2.addChild(section22);
+
+		try {
+			chapter2.freeze();
+			Assert.fail("IllegalStateException expected");
+		} catch (IllegalStateException e) {
+			// OK
+		}
+		Assert.assertFalse(book.isFrozen());
+
+		book.freeze();
+		Assert.assertTrue(book.isFrozen());
+		Assert.assertTrue(section22.isFrozen());
+		// second call is ignored
+		book.freeze();
+
+		Assert.assertEquals("book", book.getDocBookXPath(null));
+		Assert.assertEquals("d:book/d:appendix[1]", appendix1.getDocBookXPath("d:"));
+		Assert.assertEquals("book/chapter[2]", chapter2.getDocBookXPath(""));
+		Assert.assertEquals("book/chapter[2]/section[2]", section22.getDocBookXPath(null));
+		Assert.assertEquals("d:book/d:chapter[2]/d:section[1]", section21.getDocBookXPath("d:"));
+		// prefix not precomputed
+		Assert.assertEquals("x:book/x:chapter[2]/x:section[2]", section22.getDocBookXPath("x:"));
+
+		Assert.assertEquals(0, book.getChildTypeIndex(chapter1));
+		Assert.assertEquals(0, book.getChildTypeIndex(appendix1));
+		Assert.assertEquals(1, book.getChildTypeIndex(chapter2));
+		Assert.assertEquals(1, chapter2.getChildTypeIndex(section22));
+		Assert.assertEquals(-1, book.getChildTypeIndex(section22));
+		Assert.assertEquals(-1, book.getChildTypeIndex(new DocStructureItem(DocStructureItem.TYPE_CHAPTER)));
+
+		Assert.assertSame(book, book.getRoot());
+		Assert.assertSame(book, section22.getRoot());
+
+		// structure can't be changed
+		try {
+			chapter2.addChild(new DocStructureItem(DocStructureItem.TYPE_SECTION));
+			Assert.fail("IllegalStateException expected");
+		} catch (IllegalStateException e) {
+			// OK
+		}
+		try {
+			chapter2.getChilds().add(new DocStructureItem(DocStructureItem.TYPE_SECTION));
+			Assert.fail("UnsupportedOperationException expected");
+		} catch (UnsupportedOperationException e) {
+			// OK
+		}
+		try {
+			chapter2.setType(DocStructureItem.TYPE_APPENDIX);
+			Assert.fail("IllegalStateException expected");
+		} catch (IllegalStateException e) {
+			// OK
+		}
+		Assert.assertEquals(2, chapter2.getChilds().size());
+
+		// other informations can be changed
+		section22.setTitle("Section 2.2");
+		section22.setConfluencePageTitlePrefix("P");
+		Assert.assertEquals("P-Section 2.2", section22.getConfluencePageTitle());
+	}
+
+	@Test
+	public void freeze_memory() {
+		// deep tree must not overflow small stack
+		final DocStructureItem deep = new DocStructureItem(DocStructureItem.TYPE_BOOK);
+		DocStructureItem node = deep;
+		for (int i = 0; i < 2000; i++) {
+			DocStructureItem child = new DocStructureItem(DocStructureItem.TYPE_SECTION);
+			node.addChild(child);
+			node = child;
+		}
+		final Throwable[] error = new Throwable[1];
+		Thread thread = new Thread(null, new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					deep.freeze();
+				} catch (Throwable e) {
+					error[0] = e;
+				}
+			}
+		}, "freeze", 64 * 1024);
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		Assert.assertNull(error[0]);
+		Assert.assertTrue(deep.isFrozen());
+		Assert.assertSame(deep, node.getRoot());
+		Assert.assertEquals(2001, deep.getSubtree().size());
+
+		// heap added by freeze is mainly one XPath string per node
+		DocStructureItem book = new DocStructureItem(DocStructureItem.TYPE_BOOK);
+		for (int c = 0; c < 100; c++) {
+			DocStructureItem chapter = new DocStructureItem(DocStructureItem.TYPE_CHAPTER);
+			book.addChild(chapter);
+			for (int s = 0; s < 100; s++) {
+				DocStructureItem section = new DocStructureItem(DocStructureItem.TYPE_SECTION);
+				chapter.addChild(section);
+				for (int ss = 0; ss < 10; ss++) {
+					section.addChild(new DocStructureItem(DocStructureItem.TYPE_SECTION));
+				}
+			}
+		}
+		int nodesCount = book.getSubtree().size();
+		long before = usedMemory();
+		book.freeze();
+		long perNode = (usedMemory() - before) / nodesCount;
+		Assert.assertTrue("Heap per node added by freeze: " + perNode, perNode < 200);
+		Assert.assertEquals("book/chapter[100]/section[100]/section[10]", book.getSubtree().get(nodesCount - 1)
+				.getDocBookXPath(null));
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	@Test
+	public void getSubtree() {
+		DocStructureItem book = new DocStructureItem(DocStructureItem.TYPE_BOOK);
+		DocStructureItem chapter1 = new DocStructureItem(DocStructureItem.TYPE_CHAPTER);
+		book.addChild(chapter1);
+		DocStructureItem section11 = new DocStructureItem(DocStructureItem.TYPE_SECTION);
+		chapter1.addChild(section11);
+		DocStructureItem section111 = new DocStructureItem(DocStructureItem.TYPE_SECTION);
+		section11.addChild(section111);
+		DocStructureItem chapter2 = new DocStructureItem(DocStructureItem.TYPE_CHAPTER);
+		book.addChild(chapter2);
+		DocStructureItem section21 = new DocStructureItem(DocStructureItem.TYPE_SECTION);
+		chapter2.addChild(section21);
+
+		// not frozen tree
+		Assert.assertEquals(Arrays.asList(book, chapter1, section11, section111, chapter2, section21),
+				book.getSubtree());
+		Assert.assertEquals(Arrays.asList(chapter1, section11, section111), chapter1.getSubtree());
+		Assert.assertEquals(Arrays.asList(section21), section21.getSubtree());
+
+		// frozen tree
+		book.freeze();
+		Assert.assertEquals(Arrays.asList(book, chapter1, section11, section111, chapter2, section21),
+				book.getSubtree());
+		Assert.assertEquals(Arrays.asList(chapter1, section11, section111), chapter1.getSubtree());
+		Assert.assertEquals(Arrays.asList(section111), section111.getSubtree());
+		Assert.assertEquals(Arrays.asList(chapter2, section21), chapter2.getSubtree());
+		try {
+			book.getSubtree().set(0, chapter2);
+			Assert.fail("UnsupportedOperationException expected");
+		} catch (UnsupportedOperationException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void getNodeById() {
+		DocStructureItem book = new DocStructureItem(DocStructureItem.TYPE_BOOK, "b", "Book");
+		DocStructureItem chapter1 = new DocStructureItem(DocStructureItem.TYPE_CHAPTER, "c1", "Chapter 1");
+		book.addChild(chapter1);
+		DocStructureItem section11 = new DocStructureItem(DocStructureItem.TYPE_SECTION, "dup", "Section 1.1");
+		chapter1.addChild(section11);
+		DocStructureItem chapter2 = new DocStructureItem(DocStructureItem.TYPE_CHAPTER, null, "Chapter 2");
+		book.addChild(chapter2);
+		DocStructureItem section21 = new DocStructureItem(DocStructureItem.TYPE_SECTION, "dup", "Section 2.1");
+		chapter2.addChild(section21);
+
+		for (int i = 0; i < 2; i++) {
+			if (i == 1)
+				book.freeze();
+			Assert.assertSame(book, book.getNodeById("b"));
+			Assert.assertSame(chapter1, book.getNodeById("c1"));
+			// first node wins for duplicated id
+			Assert.assertSame(section11, book.getNodeById("dup"));
+			Assert.assertSame(section21, chapter2.getNodeById("dup"));
+			Assert.assertNull(chapter2.getNodeById("c1"));
+			Assert.assertNull(chapter1.getNodeById("b"));
+			Assert.assertNull(book.getNodeById("unknown"));
+			Assert.assertNull(book.getNodeById(null));
+		}
+
+		try {
+			chapter1.setId("c2");
+			Assert.fail("IllegalStateException expected");
+		} catch (IllegalStateException e) {
+			// OK
+		}
+	}
+
 	@Test
 	public void getConfluencePageTitle() {
 		DocStructureItem tested = new DocStructureItem(DocStructureItem.TYPE_BOOK);
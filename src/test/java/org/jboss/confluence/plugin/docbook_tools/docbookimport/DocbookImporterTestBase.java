@@ -78,6 +78,18 @@ public abstract class DocbookImporterTestBase {
     return dir;
   }
 
+  /**
+   * Open given ZIP file as uploaded archive to be used as input for tests.
+   * 
+   * @param filename subpath to ZIP file with content for tests. Relative to {@link #TEST_RESOURCES_BASE_FOLDER} value
+   *          {@value #TEST_RESOURCES_BASE_FOLDER}.
+   * 
+   * @return opened archive, must be closed by test
+   */
+  protected DocBookZipArchive openTestSourceArchive(String filename) throws Exception {
+    return new DocBookZipArchive(new File(getTestResourceFileURL(filename).toURI()));
+  }
+
   /**
    * Search for child DocStructureItem in given root by index, and then assert it exists with given values.
    * 
@@ -20,8 +20,12 @@
  */
 package org.jboss.confluence.plugin.docbook_tools.docbookimport;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.Map;
+
+import javax.xml.transform.Templates;
 
 import org.apache.log4j.Logger;
 import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
@@ -126,6 +130,64 @@ public class DocbookImporter_CommonTest extends DocbookImporterTestBase {
 
 	}
 
+	@Test
+	public void getXsltTemplates() throws Exception {
+		DocbookImporter tested = new DocbookImporter();
+
+		Templates t43 = tested.getXsltTemplates(DocbookImporter.XSLT_NODE_WIKI_CONTENT, DocBookVersion.DOCBOOK_4_3);
+		Assert.assertNotNull(t43);
+		Assert.assertSame(t43, tested.getXsltTemplates(DocbookImporter.XSLT_NODE_WIKI_CONTENT, DocBookVersion.DOCBOOK_4_3));
+		Assert.assertSame(t43,
+				new DocbookImporter().getXsltTemplates(DocbookImporter.XSLT_NODE_WIKI_CONTENT, DocBookVersion.DOCBOOK_4_3));
+
+		Templates t50 = tested.getXsltTemplates(DocbookImporter.XSLT_NODE_WIKI_CONTENT, DocBookVersion.DOCBOOK_5_0);
+		Assert.assertNotNull(t50);
+		Assert.assertNotSame(t43, t50);
+		Assert.assertNotSame(t43, tested.getXsltTemplates(DocbookImporter.XSLT_BOOK_WIKI_CONTENT, DocBookVersion.DOCBOOK_4_3));
+	}
+
+	@Test
+	public void sniffDocBookBookVersion() throws Exception {
+		DocbookImporter tested = new DocbookImporter();
+
+		Assert.assertEquals(DocBookVersion.DOCBOOK_4_3, sniff(tested,
+				"<?xml version='1.0'?>\n<!DOCTYPE book PUBLIC \"-//OASIS//DTD DocBook XML V4.3//EN\" "
+						+ "\"http://www.oasis-open.org/docbook/xml/4.3/docbookx.dtd\" [\n<!ENTITY % BOOK_ENTITIES "
+						+ "SYSTEM \"Book.ent\">\n%BOOK_ENTITIES;\n]>\n<book><title>&PRODUCT;</title></book>"));
+		Assert.assertEquals(DocBookVersion.DOCBOOK_5_0, sniff(tested,
+				"<!-- <chapter> --><d:book xmlns:d=\"http://docbook.org/ns/docbook\" version=\"5.0\"><title/>"));
+		Assert.assertEquals(DocBookVersion.DOCBOOK_5_0, sniff(tested, "<book xmlns=\"http://docbook.org/ns/docbook\">"));
+
+		// book mentioned in comment or content only, or in foreign namespace
+		Assert.assertNull(sniff(tested, "<!-- <book> --><chapter><para>&lt;book</para></chapter>"));
+		Assert.assertNull(sniff(tested, "<chapter><!-- </book> --></chapter>"));
+		Assert.assertNull(sniff(tested, "<book xmlns=\"urn:other\"></book>"));
+		// broken or no xml
+		Assert.assertNull(sniff(tested, "<book"));
+		Assert.assertNull(sniff(tested, "plain text <book></book>"));
+		Assert.assertNull(sniff(tested, ""));
+	}
+
+	private static DocBookVersion sniff(DocbookImporter tested, String xml) throws Exception {
+		return tested.sniffDocBookBookVersion(new ByteArrayInputStream(xml.getBytes("UTF-8")), "file:/test.xml");
+	}
+
+	@Test
+	public void getSectionDepth() {
+		DocStructureItem book = new DocStructureItem(DocStructureItem.TYPE_BOOK);
+		DocStructureItem chapter = new DocStructureItem(DocStructureItem.TYPE_CHAPTER);
+		book.addChild(chapter);
+		DocStructureItem section1 = new DocStructureItem(DocStructureItem.TYPE_SECTION);
+		chapter.addChild(section1);
+		DocStructureItem section11 = new DocStructureItem(DocStructureItem.TYPE_SECTION);
+		section1.addChild(section11);
+
+		Assert.assertEquals(0, DocbookImporter.getSectionDepth(book));
+		Assert.assertEquals(0, DocbookImporter.getSectionDepth(chapter));
+		Assert.assertEquals(1, DocbookImporter.getSectionDepth(section1));
+		Assert.assertEquals(2, DocbookImporter.getSectionDepth(section11));
+	}
+
 	@Test
 	public void getFilenameFromFilerefLocal() {
 		DocbookImporter tested = new DocbookImporter();
@@ -211,4 +273,54 @@ public class DocbookImporter_CommonTest extends DocbookImporterTestBase {
 
 	}
 
+	@Test
+	public void patchWIKIContentInternalCrossReferences() {
+		DocStructureItem book = new DocStructureItem(DocStructureItem.TYPE_BOOK);
+		DocStructureItem chapter1 = new DocStructureItem(DocStructureItem.TYPE_CHAPTER, "ch1", "Chapter 1");
+		book.addChild(chapter1);
+		DocStructureItem section11 = new DocStructureItem(DocStructureItem.TYPE_SECTION, "s11", "Section 1.1");
+		chapter1.addChild(section11);
+		// duplicated id, first one wins
+		book.addChild(new DocStructureItem(DocStructureItem.TYPE_CHAPTER, "s11", "Chapter 2"));
+		book.addChild(new DocStructureItem(DocStructureItem.TYPE_CHAPTER, null, "Chapter 3"));
+
+		Map<String, String> index = DocbookImporter.prepareIdToTitleIndex(book);
+		Assert.assertEquals(2, index.size());
+		Assert.assertEquals("Chapter 1", index.get("ch1"));
+		Assert.assertEquals("Section 1.1", index.get("s11"));
+
+		Assert.assertEquals("no links", DocbookImporter.patchWIKIContentInternalCrossReferences("no links", index));
+		Assert.assertEquals("[Chapter 1] [label|Section 1.1]\n[unknown] [a|b|Chapter 1] |Section 1.1] [ s11]",
+				DocbookImporter.patchWIKIContentInternalCrossReferences(
+						"[ch1] [label|s11]\n[unknown] [a|b|ch1] |s11] [ s11]", index));
+		// only last labeled link to same id is patched on one line, same as former regexp based implementation
+		Assert.assertEquals("[a|ch1] [b|Chapter 1] [Chapter 1]\n[c|Chapter 1]",
+				DocbookImporter.patchWIKIContentInternalCrossReferences("[a|ch1] [b|ch1] [ch1]\n[c|ch1]", index));
+	}
+
+	@Test
+	public void patchWIKIContentImageReferences() {
+		DocbookImporter tested = new DocbookImporter();
+		DocStructureItem chapter = new DocStructureItem(DocStructureItem.TYPE_CHAPTER);
+		chapter.addFileref("images/a.png");
+		chapter.addFileref("b.png");
+		chapter.addFileref("http://www.jboss.org/c.png");
+
+		Map<String, String> index = tested.prepareFilerefToFilenameIndex(chapter);
+		Assert.assertEquals(2, index.size());
+		Assert.assertEquals("a.png", index.get("images/a.png"));
+		Assert.assertEquals("b.png", index.get("b.png"));
+
+		Assert.assertEquals("no images", DocbookImporter.patchWIKIContentImageReferences("no images", index));
+		// all images on one line are patched, even same one more times
+		Assert.assertEquals("!a.png|thumbnail! text !a.png! !b.png!a.png!\n!http://www.jboss.org/c.png!",
+				DocbookImporter.patchWIKIContentImageReferences(
+						"!images/a.png|thumbnail! text !images/a.png! !b.png!images/a.png!\n!http://www.jboss.org/c.png!",
+						index));
+		// not closed images are not patched
+		Assert.assertEquals("!images/a.png|thumbnail\n!a.png!\n!images/a.png",
+				DocbookImporter.patchWIKIContentImageReferences("!images/a.png|thumbnail\n!images/a.png!\n!images/a.png",
+						index));
+	}
+
 }
@@ -188,6 +188,7 @@ public class DocbookImporter_DocBook_4_3_Test extends DocbookImporterTestBase {
 
       Assert.assertNotNull(ret);
       Assert.assertEquals("Tree_Cache_Guide.xml", ret.getName());
+      Assert.assertEquals(DocBookVersion.DOCBOOK_4_3, tested.getDocBookBookVersion(ret));
 
     } finally {
       FileUtils.deleteDirectoryRecursively(srcdir);
@@ -531,8 +532,6 @@ public class DocbookImporter_DocBook_4_3_Test extends DocbookImporterTestBase {
 
       DocbookImporter tested = new DocbookImporter();
 
-      tested.normalizeAllDocBookXMLFilesContent(srcdir);
-
       DocStructureItem docToImport = tested.getDocStructure(new FileInputStream(inFile), inFile.toURI().toString(),
           TESTED_DOCBOOK_VERSION, false);
       log.debug(docToImport);
@@ -23,9 +23,19 @@ package org.jboss.confluence.plugin.docbook_tools.docbookimport;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.log4j.Logger;
 import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
@@ -165,6 +175,7 @@ public class DocbookImporter_DocBook_5_0_Test extends DocbookImporterTestBase {
 
       Assert.assertNotNull(ret);
       Assert.assertEquals("Tree_Cache_Guide.xml", ret.getName());
+      Assert.assertEquals(DocBookVersion.DOCBOOK_5_0, tested.getDocBookBookVersion(ret));
 
     } finally {
       FileUtils.deleteDirectoryRecursively(srcdir);
@@ -204,6 +215,165 @@ public class DocbookImporter_DocBook_5_0_Test extends DocbookImporterTestBase {
     }
   }
 
+  @Test
+  public void importFromArchive() throws Exception {
+    File srcdir = prepareTestSourceDirectory("docbook-5.0-ok.zip");
+    DocBookZipArchive archive = openTestSourceArchive("docbook-5.0-ok.zip");
+    DocBookZipArchive archive2 = openTestSourceArchive("docbook-5.0-badimagereferences.zip");
+    try {
+      DocbookImporter tested = new DocbookImporter();
+
+      String mainEntry = tested.findMainDocBookBookFile(archive);
+      Assert.assertEquals("Tree_Cache_Guide.xml", mainEntry);
+
+      DocBookSource fileSource = tested.prepareDocBookSource(new File(srcdir, mainEntry));
+      DocStructureItem fileStructure = tested.getDocStructure(fileSource, TESTED_DOCBOOK_VERSION, true);
+      Map<DocStructureItem, String> fileContents = tested.prepareAllNodesWIKIContent(fileSource, fileStructure,
+          TESTED_DOCBOOK_VERSION, true);
+
+      for (long maxInMemoryBookSize : new long[] { 0, DocbookImporter.DEFAULT_MAX_IN_MEMORY_BOOK_SIZE }) {
+        tested.setMaxInMemoryBookSize(maxInMemoryBookSize);
+        DocBookSource source = tested.prepareDocBookSource(new DocBookSource(archive, mainEntry));
+        Assert.assertEquals(maxInMemoryBookSize > 0, source.isInMemory());
+        Assert.assertEquals(archive.getSystemId(mainEntry), source.getSystemId());
+
+        DocStructureItem structure = tested.getDocStructure(source, TESTED_DOCBOOK_VERSION, true);
+        Assert.assertEquals(fileStructure.toString(), structure.toString());
+        Map<DocStructureItem, String> contents = tested.prepareAllNodesWIKIContent(source, structure,
+            TESTED_DOCBOOK_VERSION, true);
+        importFromArchiveAssert(fileStructure, fileContents, structure, contents);
+
+        List<String> messages = new ArrayList<String>();
+        tested.validateImageFilesExists(structure, archive, messages);
+        Assert.assertTrue(messages.isEmpty());
+      }
+
+      DocBookSource source = tested.prepareDocBookSource(new DocBookSource(archive2, mainEntry));
+      DocStructureItem structure = tested.getDocStructure(source, TESTED_DOCBOOK_VERSION, false);
+      List<String> messages = new ArrayList<String>();
+      tested.validateImageFilesExists(structure, archive2, messages);
+      Assert.assertEquals(1, messages.size());
+    } finally {
+      archive.close();
+      archive2.close();
+      FileUtils.deleteDirectoryRecursively(srcdir);
+    }
+  }
+
+  @Test
+  public void importFromArchive_malformedClosingTags() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("docbook50test");
+    File file = new File(dir, "upload.zip");
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      zos.putNextEntry(new ZipEntry("book.xml"));
+      zos.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n"
+          + "<book xmlns=\"http://docbook.org/ns/docbook\" xmlns:xi=\"http://www.w3.org/2001/XInclude\" "
+          + "version=\"5.0\">\r\n<info><title>Book</title></info>\r\n"
+          + "<preface><title>Preface</title><para>\r\n  Preface text\r\n</ para></preface>\r\n"
+          + "<xi:include href=\"chapters/ch1.xml\"/>\r\n</book>").getBytes(FileUtils.CHARSET_UTF_8));
+      zos.closeEntry();
+      zos.putNextEntry(new ZipEntry("chapters/ch1.xml"));
+      zos.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<chapter xmlns=\"http://docbook.org/ns/docbook\" "
+          + "xml:id=\"ch1\"><title>Chapter 1</title>\n<para>\n  Chapter text\n</ para>\n"
+          + "<programlisting>code</ programlisting>\n</chapter>").getBytes(FileUtils.CHARSET_UTF_8));
+      zos.closeEntry();
+    } finally {
+      zos.close();
+    }
+    DocBookZipArchive archive = new DocBookZipArchive(file);
+    try {
+      DocbookImporter tested = new DocbookImporter();
+      for (long maxInMemoryBookSize : new long[] { 0, DocbookImporter.DEFAULT_MAX_IN_MEMORY_BOOK_SIZE }) {
+        tested.setMaxInMemoryBookSize(maxInMemoryBookSize);
+        DocBookSource source = tested.prepareDocBookSource(new DocBookSource(archive, "book.xml"));
+        DocStructureItem structure = tested.getDocStructure(source, TESTED_DOCBOOK_VERSION, false);
+        Assert.assertEquals(1, structure.getChilds().size());
+        DocStructureItem chapter = structure.getChilds().get(0);
+        Assert.assertEquals("Chapter 1", chapter.getTitle());
+        Map<DocStructureItem, String> contents = tested.prepareAllNodesWIKIContent(source, structure,
+            TESTED_DOCBOOK_VERSION, false);
+        Assert.assertEquals("Chapter text\n\n{code}code{code}\n", contents.get(chapter));
+        Assert.assertTrue(tested.prepareNodeWIKIContent(source, structure, TESTED_DOCBOOK_VERSION).contains(
+            "Preface text"));
+      }
+    } finally {
+      archive.close();
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test
+  public void importTextIncludeAndDeclaredEncoding() throws Exception {
+    Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    files.put("book.xml", ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<book xmlns=\"http://docbook.org/ns/docbook\" xmlns:xi=\"http://www.w3.org/2001/XInclude\" "
+        + "version=\"5.0\">\n<info><title>Book</title></info>\n<xi:include href=\"chapters/ch1.xml\"/>\n</book>")
+        .getBytes(FileUtils.CHARSET_UTF_8));
+    files.put("chapters/ch1.xml", ("<?xml version=\"1.0\" encoding=\"ISO-8859-2\"?>\n"
+        + "<chapter xmlns=\"http://docbook.org/ns/docbook\" xmlns:xi=\"http://www.w3.org/2001/XInclude\" "
+        + "xml:id=\"ch1\"><title>Chapter \u010c</title>\n<para>\n  \u010de\u0161tina\n</ para>\n"
+        + "<programlisting><xi:include parse=\"text\" href=\"../listings/code.xml\"/></programlisting>\n</chapter>")
+        .getBytes("ISO-8859-2"));
+    files.put("listings/code.xml", "<para role=\"x\">\n  code\n</ para>".getBytes(FileUtils.CHARSET_UTF_8));
+
+    File dir = FileUtils.prepareWorkingDirectory("docbook50test");
+    File zip = new File(dir, "upload.zip");
+    File srcdir = new File(dir, "src");
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip));
+    try {
+      for (Map.Entry<String, byte[]> e : files.entrySet()) {
+        zos.putNextEntry(new ZipEntry(e.getKey()));
+        zos.write(e.getValue());
+        zos.closeEntry();
+        File f = new File(srcdir, e.getKey());
+        f.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+          fos.write(e.getValue());
+        } finally {
+          fos.close();
+        }
+      }
+    } finally {
+      zos.close();
+    }
+    DocBookZipArchive archive = new DocBookZipArchive(zip);
+    try {
+      DocbookImporter tested = new DocbookImporter();
+      for (long maxInMemoryBookSize : new long[] { 0, DocbookImporter.DEFAULT_MAX_IN_MEMORY_BOOK_SIZE }) {
+        tested.setMaxInMemoryBookSize(maxInMemoryBookSize);
+        for (DocBookSource book : new DocBookSource[] { new DocBookSource(archive, "book.xml"),
+            new DocBookSource(new File(srcdir, "book.xml")) }) {
+          DocBookSource source = tested.prepareDocBookSource(book);
+          DocStructureItem structure = tested.getDocStructure(source, TESTED_DOCBOOK_VERSION, false);
+          DocStructureItem chapter = structure.getChilds().get(0);
+          Assert.assertEquals("Chapter \u010c", chapter.getTitle());
+          Map<DocStructureItem, String> contents = tested.prepareAllNodesWIKIContent(source, structure,
+              TESTED_DOCBOOK_VERSION, false);
+          // text include is not normalized
+          Assert.assertEquals("\u010de\u0161tina\n\n{code}<para role=\"x\">\n  code\n</ para>{code}\n",
+              contents.get(chapter));
+        }
+      }
+    } finally {
+      archive.close();
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  private void importFromArchiveAssert(DocStructureItem expectedNode, Map<DocStructureItem, String> expectedContents,
+      DocStructureItem node, Map<DocStructureItem, String> contents) {
+    if (node.getChilds() != null) {
+      for (int i = 0; i < node.getChilds().size(); i++) {
+        DocStructureItem expectedChild = expectedNode.getChilds().get(i);
+        DocStructureItem child = node.getChilds().get(i);
+        Assert.assertEquals(expectedContents.get(expectedChild), contents.get(child));
+        importFromArchiveAssert(expectedChild, expectedContents, child, contents);
+      }
+    }
+  }
+
   @Test
   public void prepareChapterWIKIContent_chapterIndexingAndNoTitleTest() throws Exception {
 
@@ -529,8 +699,6 @@ public class DocbookImporter_DocBook_5_0_Test extends DocbookImporterTestBase {
     try {
       DocbookImporter tested = new DocbookImporter();
 
-      tested.normalizeAllDocBookXMLFilesContent(srcdir);
-
       DocStructureItem docToImport = tested.getDocStructure(new FileInputStream(inFile), inFile.toURI().toString(),
           TESTED_DOCBOOK_VERSION, false);
       log.debug(docToImport);
@@ -544,6 +712,216 @@ public class DocbookImporter_DocBook_5_0_Test extends DocbookImporterTestBase {
     }
   }
 
+  @Test
+  public void prepareDocBookSource() throws Exception {
+    File srcdir = prepareTestSourceDirectory("docbook-5.0-ok.zip");
+    try {
+      File inFile = new File(srcdir, "Tree_Cache_Guide.xml");
+      DocbookImporter tested = new DocbookImporter();
+      DocBookSource inMemory = tested.prepareDocBookSource(inFile);
+      Assert.assertTrue(inMemory.isInMemory());
+      Assert.assertEquals(inFile.toURI().toString(), inMemory.getSystemId());
+
+      tested.setMaxInMemoryBookSize(1000);
+      DocBookSource reparsed = tested.prepareDocBookSource(inFile);
+      Assert.assertFalse(reparsed.isInMemory());
+
+      DocStructureItem docToImport = tested.getDocStructure(inMemory, TESTED_DOCBOOK_VERSION, true);
+      Assert.assertEquals(13, docToImport.getChilds().size());
+      for (DocStructureItem chapterInfo : docToImport.getChilds()) {
+        Assert.assertEquals(tested.prepareNodeWIKIContent(reparsed, chapterInfo, TESTED_DOCBOOK_VERSION),
+            tested.prepareNodeWIKIContent(inMemory, chapterInfo, TESTED_DOCBOOK_VERSION));
+      }
+    } finally {
+      FileUtils.deleteDirectoryRecursively(srcdir);
+    }
+  }
+
+  @Test
+  public void prepareAllNodesWIKIContent() throws Exception {
+    File srcdir = prepareTestSourceDirectory("docbook-5.0-ok.zip");
+    try {
+      File inFile = new File(srcdir, "Tree_Cache_Guide.xml");
+      DocbookImporter tested = new DocbookImporter();
+      DocBookSource source = tested.prepareDocBookSource(inFile);
+
+      for (int conversionParallelism : new int[] { 1, 4 }) {
+        tested.setConversionParallelism(conversionParallelism);
+        for (boolean allSectionLevels : new boolean[] { false, true }) {
+          DocStructureItem docToImport = tested.getDocStructure(source, TESTED_DOCBOOK_VERSION, allSectionLevels);
+          Map<DocStructureItem, String> wikiContents = tested.prepareAllNodesWIKIContent(source, docToImport,
+              TESTED_DOCBOOK_VERSION, allSectionLevels);
+          prepareAllNodesWIKIContentAssert(tested, source, docToImport, wikiContents);
+        }
+      }
+    } finally {
+      FileUtils.deleteDirectoryRecursively(srcdir);
+    }
+  }
+
+  @Test
+  public void prepareAllNodesWIKIContent_concurrent() throws Exception {
+    File srcdir = FileUtils.prepareWorkingDirectory("testsource-");
+    try {
+      File inFile = new File(srcdir, "Large_Book.xml");
+      writeLargeBook(inFile, 120, 5);
+      final DocbookImporter tested = new DocbookImporter();
+      tested.setConversionParallelism(1);
+      tested.setMaxInMemoryBookSize(0);
+      DocBookSource reparsed = tested.prepareDocBookSource(inFile);
+      final DocStructureItem docToImport = tested.getDocStructure(reparsed, TESTED_DOCBOOK_VERSION, true);
+      Assert.assertEquals(120, docToImport.getChilds().size());
+      Map<DocStructureItem, String> expected = tested.prepareAllNodesWIKIContent(reparsed, docToImport,
+          TESTED_DOCBOOK_VERSION, true);
+      Assert.assertEquals(120 * 6, expected.size());
+
+      tested.setConversionParallelism(8);
+      tested.setMaxInMemoryBookSize(DocbookImporter.DEFAULT_MAX_IN_MEMORY_BOOK_SIZE);
+      final DocBookSource inMemory = tested.prepareDocBookSource(inFile);
+      Assert.assertTrue(inMemory.isInMemory());
+      Assert.assertFalse(inMemory.getDocument().getClass().getName().contains("Deferred"));
+
+      // more imports of same book running at once, each of them transforms its parts concurrently
+      ExecutorService callers = Executors.newFixedThreadPool(4);
+      try {
+        List<Future<Map<DocStructureItem, String>>> results = new ArrayList<Future<Map<DocStructureItem, String>>>();
+        for (int i = 0; i < 4; i++) {
+          results.add(callers.submit(new Callable<Map<DocStructureItem, String>>() {
+
+            @Override
+            public Map<DocStructureItem, String> call() throws Exception {
+              return tested.prepareAllNodesWIKIContent(inMemory, docToImport, TESTED_DOCBOOK_VERSION, true);
+            }
+          }));
+        }
+        for (Future<Map<DocStructureItem, String>> result : results) {
+          Assert.assertEquals(expected, result.get());
+        }
+      } finally {
+        callers.shutdownNow();
+      }
+    } finally {
+      FileUtils.deleteDirectoryRecursively(srcdir);
+    }
+  }
+
+  @Test
+  public void prepareAllNodesWIKIContent_busyPool() throws Exception {
+    File srcdir = FileUtils.prepareWorkingDirectory("testsource-");
+    try {
+      File inFile = new File(srcdir, "Large_Book.xml");
+      writeLargeBook(inFile, 40, 5);
+      final DocbookImporter tested = new DocbookImporter();
+      tested.setConversionParallelism(1);
+      final DocBookSource source = tested.prepareDocBookSource(inFile);
+      final DocStructureItem docToImport = tested.getDocStructure(source, TESTED_DOCBOOK_VERSION, true);
+      Map<DocStructureItem, String> expected = tested.prepareAllNodesWIKIContent(source, docToImport,
+          TESTED_DOCBOOK_VERSION, true);
+
+      // more transformations than pool and its queue can hold, some of them are run by calling threads
+      int callersCount = DocbookImporter.XSLT_POOL_SIZE + DocbookImporter.XSLT_QUEUE_SIZE + 4;
+      Callable<Map<DocStructureItem, String>> call = new Callable<Map<DocStructureItem, String>>() {
+
+        @Override
+        public Map<DocStructureItem, String> call() throws Exception {
+          return tested.prepareAllNodesWIKIContent(source, docToImport, TESTED_DOCBOOK_VERSION, true);
+        }
+      };
+      ExecutorService callers = Executors.newFixedThreadPool(callersCount);
+      try {
+        List<Future<Map<DocStructureItem, String>>> results = new ArrayList<Future<Map<DocStructureItem, String>>>();
+        for (int i = 0; i < callersCount; i++) {
+          results.add(callers.submit(call));
+        }
+        for (Future<Map<DocStructureItem, String>> result : results) {
+          Assert.assertEquals(expected, result.get());
+        }
+
+        // timeout is applied to transformations waiting in queue and run by calling threads too
+        tested.setXsltTimeout(1);
+        results.clear();
+        for (int i = 0; i < callersCount; i++) {
+          results.add(callers.submit(call));
+        }
+        for (Future<Map<DocStructureItem, String>> result : results) {
+          try {
+            result.get();
+            Assert.fail("Exception expected");
+          } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("longer than 1ms"));
+          }
+        }
+      } finally {
+        callers.shutdownNow();
+      }
+    } finally {
+      FileUtils.deleteDirectoryRecursively(srcdir);
+    }
+  }
+
+  private void writeLargeBook(File file, int chaptersCount, int sectionsCount) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    sb.append("<book xmlns=\"http://docbook.org/ns/docbook\" version=\"5.0\">\n");
+    sb.append("<info><title>Large book</title></info>\n");
+    for (int c = 0; c < chaptersCount; c++) {
+      sb.append("<chapter xml:id=\"ch").append(c).append("\"><title>Chapter ").append(c).append("</title>\n");
+      sb.append("<para>Chapter <emphasis>").append(c).append("</emphasis> text, see <link linkend=\"ch")
+          .append((c + 1) % chaptersCount).append("\">next chapter</link>.</para>\n");
+      for (int s = 0; s < sectionsCount; s++) {
+        sb.append("<section xml:id=\"ch").append(c).append("s").append(s).append("\"><title>Section ").append(c)
+            .append(".").append(s).append("</title>\n");
+        sb.append("<para>Section text with <code>code</code> and list:</para>\n");
+        sb.append("<itemizedlist><listitem><para>first item</para></listitem>"
+            + "<listitem><para>second item</para></listitem></itemizedlist>\n");
+        sb.append("<programlisting>int i = ").append(s).append(";</programlisting>\n");
+        sb.append("</section>\n");
+      }
+      sb.append("</chapter>\n");
+    }
+    sb.append("</book>\n");
+    FileUtils.writeStringContentToFile(file, sb.toString());
+  }
+
+  @Test
+  public void prepareNodesWIKIContent() throws Exception {
+    File srcdir = prepareTestSourceDirectory("docbook-5.0-ok.zip");
+    try {
+      File inFile = new File(srcdir, "Tree_Cache_Guide.xml");
+      DocbookImporter tested = new DocbookImporter();
+      DocBookSource source = tested.prepareDocBookSource(inFile);
+      DocStructureItem docToImport = tested.getDocStructure(source, TESTED_DOCBOOK_VERSION, true);
+      Map<DocStructureItem, String> allContents = tested.prepareAllNodesWIKIContent(source, docToImport,
+          TESTED_DOCBOOK_VERSION, true);
+
+      List<DocStructureItem> allNodes = docToImport.getSubtree().subList(1, docToImport.getSubtree().size());
+      // one node is rendered separately
+      List<DocStructureItem> nodes = allNodes.subList(allNodes.size() - 1, allNodes.size());
+      Map<DocStructureItem, String> contents = tested.prepareNodesWIKIContent(source, docToImport, nodes,
+          TESTED_DOCBOOK_VERSION, true);
+      Assert.assertEquals(1, contents.size());
+      Assert.assertEquals(allContents.get(nodes.get(0)), contents.get(nodes.get(0)));
+
+      // all nodes are rendered by book transformation
+      contents = tested.prepareNodesWIKIContent(source, docToImport, allNodes.subList(1, allNodes.size()),
+          TESTED_DOCBOOK_VERSION, true);
+      Assert.assertEquals(allNodes.size() - 1, contents.size());
+      Assert.assertFalse(contents.containsKey(allNodes.get(0)));
+      Assert.assertEquals(allContents.get(allNodes.get(1)), contents.get(allNodes.get(1)));
+    } finally {
+      FileUtils.deleteDirectoryRecursively(srcdir);
+    }
+  }
+
+  private void prepareAllNodesWIKIContentAssert(DocbookImporter tested, DocBookSource source,
+      DocStructureItem docToImport, Map<DocStructureItem, String> wikiContents) throws Exception {
+    for (DocStructureItem chapterInfo : docToImport.getChilds()) {
+      Assert.assertEquals(tested.prepareNodeWIKIContent(source, chapterInfo, TESTED_DOCBOOK_VERSION),
+          wikiContents.get(chapterInfo));
+      prepareAllNodesWIKIContentAssert(tested, source, chapterInfo, wikiContents);
+    }
+  }
+
   protected void completeParsingTestStruct(DocbookImporter tested, DocStructureItem docToImport, File inFile)
       throws Exception {
     if (docToImport.getChilds() != null) {
@@ -0,0 +1,226 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link EntityFsCache}
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class EntityFsCacheTest {
+
+  private static final String SID_A = "http://example.com/a.dtd";
+  private static final String SID_B = "http://example.com/b.dtd";
+  private static final String SID_C = "http://example.com/c.dtd";
+
+  @Test
+  public void getPut() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("EntityFsCacheTest");
+    try {
+      EntityFsCache tested = new EntityFsCache(dir, 1000);
+      Assert.assertNull(tested.get(SID_A));
+      Assert.assertEquals(1, tested.getMissCount());
+
+      tested.put(SID_A, "content a".getBytes("UTF-8"), "\"etag-a\"", "Mon, 01 Jan 2001 00:00:00 GMT");
+      EntityFsCache.Entry e = tested.get(SID_A);
+      Assert.assertEquals("content a", new String(e.getContent(), "UTF-8"));
+      Assert.assertEquals("\"etag-a\"", e.getEtag());
+      Assert.assertEquals("Mon, 01 Jan 2001 00:00:00 GMT", e.getLastModified());
+      Assert.assertTrue(e.getValidated() > 0);
+      Assert.assertEquals(1, tested.getHitCount());
+      Assert.assertEquals(1, tested.getSize());
+      Assert.assertEquals(9, tested.getTotalBytes());
+
+      // files are named by hash, no temporary files left
+      String key = EntityFsCache.generateKey(SID_A);
+      Assert.assertEquals(64, key.length());
+      Assert.assertTrue(new File(dir, key + EntityFsCache.CONTENT_SUFFIX).exists());
+      Assert.assertTrue(new File(dir, key + EntityFsCache.META_SUFFIX).exists());
+      Assert.assertEquals(2, dir.listFiles().length);
+
+      // replace without validators
+      tested.put(SID_A, "a".getBytes("UTF-8"), null, null);
+      e = tested.get(SID_A);
+      Assert.assertEquals("a", new String(e.getContent(), "UTF-8"));
+      Assert.assertNull(e.getEtag());
+      Assert.assertNull(e.getLastModified());
+      Assert.assertEquals(1, tested.getTotalBytes());
+
+      // content bigger than limit is not cached
+      tested.put(SID_B, new byte[1001], null, null);
+      Assert.assertNull(tested.get(SID_B));
+
+      tested.clear();
+      Assert.assertNull(tested.get(SID_A));
+      Assert.assertEquals(0, tested.getSize());
+      Assert.assertEquals(0, dir.listFiles().length);
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test
+  public void sharedDirectory() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("EntityFsCacheTest");
+    try {
+      EntityFsCache tested1 = new EntityFsCache(dir, 1000);
+      tested1.put(SID_A, "content a".getBytes("UTF-8"), null, null);
+
+      // other cache instance (eg. other JVM) sees content written before and after it is created
+      EntityFsCache tested2 = new EntityFsCache(dir, 1000);
+      Assert.assertEquals(1, tested2.getSize());
+      Assert.assertEquals("content a", new String(tested2.get(SID_A).getContent(), "UTF-8"));
+      tested1.put(SID_B, "content b".getBytes("UTF-8"), null, null);
+      Assert.assertEquals("content b", new String(tested2.get(SID_B).getContent(), "UTF-8"));
+      Assert.assertEquals(2, tested2.getSize());
+
+      // content not matching its metadata is not used
+      String key = EntityFsCache.generateKey(SID_A);
+      FileOutputStream fos = new FileOutputStream(new File(dir, key + EntityFsCache.CONTENT_SUFFIX));
+      fos.write("broken".getBytes("UTF-8"));
+      fos.close();
+      Assert.assertNull(tested1.get(SID_A));
+      Assert.assertNull(tested2.get(SID_A));
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test
+  public void obsoleteDirDeleted() throws Exception {
+    File parent = FileUtils.prepareWorkingDirectory("EntityFsCacheTest");
+    try {
+      File obsoleteDir = new File(parent, EntityFsCache.OBSOLETE_DIR_NAME);
+      obsoleteDir.mkdirs();
+      FileOutputStream fos = new FileOutputStream(new File(obsoleteDir, "old"));
+      fos.write("old content".getBytes("UTF-8"));
+      fos.close();
+      File other = new File(parent, "other");
+      other.mkdirs();
+
+      EntityFsCache tested = new EntityFsCache(new File(parent, "cache"), 1000);
+      Assert.assertFalse(obsoleteDir.exists());
+      Assert.assertTrue(other.isDirectory());
+      Assert.assertEquals(0, tested.getSize());
+
+      // nothing to delete for next cache
+      new EntityFsCache(new File(parent, "cache"), 1000);
+      Assert.assertTrue(other.isDirectory());
+    } finally {
+      FileUtils.deleteDirectoryRecursively(parent);
+    }
+  }
+
+  @Test
+  public void evictionLRU() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("EntityFsCacheTest");
+    try {
+      EntityFsCache tested = new EntityFsCache(dir, 100);
+      tested.put(SID_A, new byte[40], null, null);
+      tested.put(SID_B, new byte[40], null, null);
+      // last access time is stored as file modification time, so make it obviously different
+      new File(dir, EntityFsCache.generateKey(SID_A) + EntityFsCache.CONTENT_SUFFIX).setLastModified(
+          System.currentTimeMillis() - 20000);
+      new File(dir, EntityFsCache.generateKey(SID_B) + EntityFsCache.CONTENT_SUFFIX).setLastModified(
+          System.currentTimeMillis() - 10000);
+      tested.put(SID_C, new byte[40], null, null);
+
+      Assert.assertNull(tested.get(SID_A));
+      Assert.assertNotNull(tested.get(SID_B));
+      Assert.assertNotNull(tested.get(SID_C));
+      Assert.assertEquals(1, tested.getEvictionCount());
+      Assert.assertEquals(80, tested.getTotalBytes());
+      Assert.assertEquals(4, dir.listFiles().length);
+
+      tested.setMaxBytes(50);
+      Assert.assertEquals(1, tested.getSize());
+      Assert.assertEquals(2, tested.getEvictionCount());
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test
+  public void evictionBelowLimit() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("EntityFsCacheTest");
+    try {
+      EntityFsCache tested = new EntityFsCache(dir, 100);
+      for (int i = 0; i < 11; i++) {
+        tested.put(SID_A + i, new byte[10], null, null);
+      }
+      // cache is freed below limit, so next put fits without eviction
+      Assert.assertEquals(2, tested.getEvictionCount());
+      Assert.assertEquals(90, tested.getTotalBytes());
+      tested.put(SID_B, new byte[10], null, null);
+      Assert.assertEquals(2, tested.getEvictionCount());
+      Assert.assertEquals(100, tested.getTotalBytes());
+      Assert.assertEquals(10, tested.getSize());
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test
+  public void markValidated() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("EntityFsCacheTest");
+    try {
+      EntityFsCache tested = new EntityFsCache(dir, 1000);
+      tested.put(SID_A, "content a".getBytes("UTF-8"), "\"etag-a\"", null);
+      EntityFsCache.Entry e = tested.get(SID_A);
+      Thread.sleep(5);
+      tested.markValidated(SID_A, e);
+      EntityFsCache.Entry e2 = tested.get(SID_A);
+      Assert.assertTrue(e2.getValidated() > e.getValidated());
+      Assert.assertEquals("\"etag-a\"", e2.getEtag());
+      Assert.assertEquals("content a", new String(e2.getContent(), "UTF-8"));
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test
+  public void loadIndex_tmpFilesCleanup() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("EntityFsCacheTest");
+    try {
+      File oldTmp = new File(dir, "x" + EntityFsCache.CONTENT_SUFFIX + "123" + EntityFsCache.TMP_SUFFIX);
+      oldTmp.createNewFile();
+      oldTmp.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000);
+      File newTmp = new File(dir, "y" + EntityFsCache.CONTENT_SUFFIX + "123" + EntityFsCache.TMP_SUFFIX);
+      newTmp.createNewFile();
+
+      EntityFsCache tested = new EntityFsCache(dir, 1000);
+      Assert.assertEquals(0, tested.getSize());
+      Assert.assertFalse(oldTmp.exists());
+      // may be written by other JVM just now
+      Assert.assertTrue(newTmp.exists());
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link EntityMemCache}
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class EntityMemCacheTest {
+
+  @Test
+  public void getPut() {
+    EntityMemCache tested = new EntityMemCache();
+    Assert.assertNull(tested.get("a"));
+    Assert.assertEquals(1, tested.getMissCount());
+
+    byte[] a = new byte[10];
+    tested.put("a", a);
+    Assert.assertSame(a, tested.get("a"));
+    Assert.assertEquals(1, tested.getHitCount());
+    Assert.assertEquals(1, tested.getSize());
+    Assert.assertEquals(10, tested.getTotalBytes());
+
+    // replace
+    byte[] a2 = new byte[5];
+    tested.put("a", a2);
+    Assert.assertSame(a2, tested.get("a"));
+    Assert.assertEquals(1, tested.getSize());
+    Assert.assertEquals(5, tested.getTotalBytes());
+
+    tested.put("b", null);
+    Assert.assertNull(tested.get("b"));
+
+    tested.clear();
+    Assert.assertNull(tested.get("a"));
+    Assert.assertEquals(0, tested.getSize());
+    Assert.assertEquals(0, tested.getTotalBytes());
+    Assert.assertEquals(2, tested.getHitCount());
+    Assert.assertEquals(3, tested.getMissCount());
+  }
+
+  @Test
+  public void evictionByBytes() throws Exception {
+    EntityMemCache tested = new EntityMemCache(100, 100);
+    tested.put("a", new byte[40]);
+    Thread.sleep(1);
+    tested.put("b", new byte[40]);
+    Thread.sleep(1);
+    // a is accessed so b is least recently used
+    tested.get("a");
+    tested.put("c", new byte[40]);
+    Assert.assertNotNull(tested.get("a"));
+    Assert.assertNull(tested.get("b"));
+    Assert.assertNotNull(tested.get("c"));
+    Assert.assertEquals(80, tested.getTotalBytes());
+    Assert.assertEquals(1, tested.getEvictionCount());
+
+    // content bigger than limit is not cached at all
+    tested.put("d", new byte[101]);
+    Assert.assertNull(tested.get("d"));
+    Assert.assertEquals(2, tested.getSize());
+
+    // lowered limit evicts immediately
+    tested.setMaxBytes(50);
+    Assert.assertEquals(1, tested.getSize());
+    Assert.assertEquals(40, tested.getTotalBytes());
+    Assert.assertEquals(2, tested.getEvictionCount());
+  }
+
+  @Test
+  public void evictionByEntries() throws Exception {
+    EntityMemCache tested = new EntityMemCache(1000, 2);
+    tested.put("a", new byte[1]);
+    Thread.sleep(1);
+    tested.put("b", new byte[1]);
+    Thread.sleep(1);
+    tested.put("c", new byte[1]);
+    Assert.assertNull(tested.get("a"));
+    Assert.assertEquals(2, tested.getSize());
+    Assert.assertEquals(2, tested.getTotalBytes());
+    Assert.assertEquals(1, tested.getEvictionCount());
+  }
+
+  @Test
+  public void disabled() {
+    EntityMemCache tested = new EntityMemCache(0, 100);
+    Assert.assertFalse(tested.isEnabled());
+    tested.put("a", new byte[0]);
+    Assert.assertNull(tested.get("a"));
+
+    tested = new EntityMemCache(100, 0);
+    Assert.assertFalse(tested.isEnabled());
+    tested.put("a", new byte[1]);
+    Assert.assertNull(tested.get("a"));
+  }
+
+  @Test
+  public void concurrentAccess() throws Exception {
+    final EntityMemCache tested = new EntityMemCache(500, 1000);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int t = 0; t < 8; t++) {
+        final int seed = t;
+        futures.add(executor.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws Exception {
+            for (int i = 0; i < 2000; i++) {
+              String key = "k" + ((i * 7 + seed) % 50);
+              if (tested.get(key) == null)
+                tested.put(key, new byte[(i % 20) + 1]);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> f : futures) {
+        f.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    Assert.assertEquals(8 * 2000, tested.getHitCount() + tested.getMissCount());
+    Assert.assertTrue(tested.getTotalBytes() <= 500);
+    long total = 0;
+    for (int i = 0; i < 50; i++) {
+      byte[] c = tested.get("k" + i);
+      if (c != null)
+        total += c.length;
+    }
+    Assert.assertEquals(total, tested.getTotalBytes());
+  }
+
+}
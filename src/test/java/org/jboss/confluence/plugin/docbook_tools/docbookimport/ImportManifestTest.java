@@ -0,0 +1,278 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ImportManifest}
+ *
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class ImportManifestTest {
+
+  private DocBookZipArchive prepareArchive(File dir, String name, String imageContent) throws Exception {
+    File file = new File(dir, name);
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      zos.putNextEntry(new ZipEntry("images/a.png"));
+      zos.write(imageContent.getBytes(FileUtils.CHARSET_UTF_8));
+      zos.closeEntry();
+      zos.putNextEntry(new ZipEntry("images/b.png"));
+      zos.write("b".getBytes(FileUtils.CHARSET_UTF_8));
+      zos.closeEntry();
+    } finally {
+      zos.close();
+    }
+    return new DocBookZipArchive(file);
+  }
+
+  private DocStructureItem prepareStructure(String section1Hash) {
+    return prepareStructure(section1Hash, "Section 2", false);
+  }
+
+  private DocStructureItem prepareStructure(String section1Hash, String section2Title, boolean chapterAdded) {
+    DocStructureItem book = new DocStructureItem(DocStructureItem.TYPE_BOOK, null, "Book");
+    book.setContentHash("b");
+    if (chapterAdded) {
+      DocStructureItem chapter0 = new DocStructureItem(DocStructureItem.TYPE_CHAPTER, "c0", "Chapter 0");
+      chapter0.setContentHash("c0");
+      book.addChild(chapter0);
+    }
+    DocStructureItem chapter = new DocStructureItem(DocStructureItem.TYPE_CHAPTER, "c1", "Chapter 1");
+    chapter.setContentHash("c");
+    chapter.addFileref("images/a.png");
+    chapter.addLinkend("s2");
+    book.addChild(chapter);
+    DocStructureItem section1 = new DocStructureItem(DocStructureItem.TYPE_SECTION, "s1", "Section 1");
+    section1.setContentHash(section1Hash);
+    section1.addFileref("images/b.png");
+    chapter.addChild(section1);
+    DocStructureItem section2 = new DocStructureItem(DocStructureItem.TYPE_SECTION, "s2", section2Title);
+    section2.setContentHash("s2");
+    chapter.addChild(section2);
+    book.freeze();
+    return book;
+  }
+
+  private List<DocStructureItem> getChangedNodes(ImportManifest previous, DocStructureItem book, String settings,
+      DocBookZipArchive archive) throws Exception {
+    ImportManifest manifest = ImportManifest.create(book, settings, archive);
+    Assert.assertTrue(manifest.isSameSettings(previous));
+    return manifest.getChangedNodes(book, previous, previous.mapPageIds(book));
+  }
+
+  private void setPageIds(ImportManifest manifest, DocStructureItem book) {
+    List<DocStructureItem> nodes = book.getSubtree();
+    for (int i = 0; i < nodes.size(); i++) {
+      manifest.setPageId(nodes.get(i), 10 + i);
+    }
+  }
+
+  @Test
+  public void changedNodes() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("importmanifesttest");
+    DocBookZipArchive archive = prepareArchive(dir, "a.zip", "a");
+    DocBookZipArchive archiveChanged = prepareArchive(dir, "b.zip", "changed a");
+    try {
+      DocStructureItem book = prepareStructure("s1");
+      ImportManifest previous = ImportManifest.create(book, "5.0;true", archive);
+      Assert.assertEquals("Book", previous.getBookTitle());
+      Assert.assertEquals(ImportManifest.computeFileHash(archive, "images/a.png"),
+          previous.getFileHash("images/a.png"));
+      Assert.assertNull(previous.getPageId(book));
+      setPageIds(previous, book);
+
+      // nothing changed
+      Assert.assertEquals(Collections.emptyList(), getChangedNodes(previous, prepareStructure("s1"), "5.0;true",
+          archive));
+
+      // content of section changed
+      DocStructureItem book2 = prepareStructure("s1 changed");
+      DocStructureItem chapter2 = book2.getChilds().get(0);
+      Assert.assertEquals(Arrays.asList(chapter2.getChilds().get(0)), getChangedNodes(previous, book2, "5.0;true",
+          archive));
+
+      // referenced image changed
+      book2 = prepareStructure("s1");
+      Assert.assertEquals(Arrays.asList(book2.getChilds().get(0)), getChangedNodes(previous, book2, "5.0;true",
+          archiveChanged));
+
+      // title of section changed, chapter linking to it is changed too
+      book2 = prepareStructure("s1", "Section two", false);
+      chapter2 = book2.getChilds().get(0);
+      Assert.assertEquals(Arrays.asList(chapter2, chapter2.getChilds().get(1)), getChangedNodes(previous, book2,
+          "5.0;true", archive));
+
+      // page title prefix changed
+      book2 = prepareStructure("s1");
+      book2.getChilds().get(0).getChilds().get(0).setConfluencePageTitlePrefix("P");
+      Assert.assertEquals(Arrays.asList(book2.getChilds().get(0).getChilds().get(0)), getChangedNodes(previous, book2,
+          "5.0;true", archive));
+
+      // chapter added before other nodes, they moved to other paths but they are not changed
+      book2 = prepareStructure("s1", "Section 2", true);
+      Assert.assertEquals(Arrays.asList(book2.getChilds().get(0)), getChangedNodes(previous, book2, "5.0;true",
+          archive));
+
+      // node without page is imported again
+      book2 = prepareStructure("s1");
+      ImportManifest previous2 = ImportManifest.create(book, "5.0;true", archive);
+      previous2.setPageId(book.getChilds().get(0), 11);
+      Assert.assertEquals(book2.getChilds().get(0).getChilds(), getChangedNodes(previous2, book2, "5.0;true",
+          archive));
+
+      // node with reset hash is imported again, page id is kept
+      ImportManifest manifest = ImportManifest.create(book2, "5.0;true", archive);
+      setPageIds(manifest, book2);
+      manifest.resetNodeHash(book2.getChilds().get(0));
+      ImportManifest loaded = ImportManifest.load(manifest.store());
+      Assert.assertTrue(loaded.isSameSettings(previous));
+      Assert.assertEquals(Long.valueOf(11), loaded.getPageId(book2.getChilds().get(0)));
+      Assert.assertEquals(Arrays.asList(book2.getChilds().get(0)), getChangedNodes(loaded, book2, "5.0;true",
+          archive));
+
+      // settings changes
+      Assert.assertFalse(ImportManifest.create(book2, "5.0;false", archive).isSameSettings(previous));
+      Assert.assertFalse(manifest.isSameSettings(null));
+    } finally {
+      archive.close();
+      archiveChanged.close();
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test
+  public void mapPageIds() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("importmanifesttest");
+    DocBookZipArchive archive = prepareArchive(dir, "a.zip", "a");
+    try {
+      DocStructureItem book = prepareStructure("s1");
+      ImportManifest previous = ImportManifest.create(book, "5.0;true", archive);
+      DocStructureItem chapter = book.getChilds().get(0);
+      previous.setPageId(book, 10);
+      previous.setPageId(chapter, 11);
+      previous.setPageId(chapter.getChilds().get(0), 12);
+      previous.setPageId(chapter.getChilds().get(1), 13);
+
+      // section 2 moved before section 1 and got new id, new chapter added
+      DocStructureItem book2 = new DocStructureItem(DocStructureItem.TYPE_BOOK, null, "Book");
+      DocStructureItem chapter2 = new DocStructureItem(DocStructureItem.TYPE_CHAPTER, "c1", "Chapter 1");
+      book2.addChild(chapter2);
+      DocStructureItem section2 = new DocStructureItem(DocStructureItem.TYPE_SECTION, "s2new", "Section 2");
+      chapter2.addChild(section2);
+      DocStructureItem section1 = new DocStructureItem(DocStructureItem.TYPE_SECTION, "s1", "Section 1");
+      chapter2.addChild(section1);
+      DocStructureItem chapter3 = new DocStructureItem(DocStructureItem.TYPE_CHAPTER, "c3", "Chapter 3");
+      book2.addChild(chapter3);
+      book2.freeze();
+
+      Map<DocStructureItem, Long> mapping = previous.mapPageIds(book2);
+      Assert.assertEquals(Long.valueOf(10), mapping.get(book2));
+      Assert.assertEquals(Long.valueOf(11), mapping.get(chapter2));
+      Assert.assertEquals(Long.valueOf(12), mapping.get(section1));
+      // section 2 is on path of section 1 now, but page of section 1 is mapped by id already
+      Assert.assertNull(mapping.get(section2));
+      Assert.assertNull(mapping.get(chapter3));
+      Assert.assertEquals(3, mapping.size());
+
+      // ids removed, node on path of previous one is mapped only if title is the same
+      DocStructureItem book3 = new DocStructureItem(DocStructureItem.TYPE_BOOK, null, "Book");
+      DocStructureItem chapter31 = new DocStructureItem(DocStructureItem.TYPE_CHAPTER, null, "Chapter 1");
+      book3.addChild(chapter31);
+      DocStructureItem section31 = new DocStructureItem(DocStructureItem.TYPE_SECTION, null, "Section 1");
+      chapter31.addChild(section31);
+      DocStructureItem section32 = new DocStructureItem(DocStructureItem.TYPE_SECTION, "s3", "Section 3");
+      chapter31.addChild(section32);
+      book3.freeze();
+
+      mapping = ImportManifest.load(previous.store()).mapPageIds(book3);
+      Assert.assertEquals(Long.valueOf(10), mapping.get(book3));
+      Assert.assertEquals(Long.valueOf(11), mapping.get(chapter31));
+      Assert.assertEquals(Long.valueOf(12), mapping.get(section31));
+      Assert.assertNull(mapping.get(section32));
+      Assert.assertEquals(3, mapping.size());
+    } finally {
+      archive.close();
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test
+  public void storeAndLoad() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("importmanifesttest");
+    DocBookZipArchive archive = prepareArchive(dir, "a.zip", "a");
+    try {
+      DocStructureItem book = prepareStructure("s1");
+      ImportManifest manifest = ImportManifest.create(book, "5.0;true", archive);
+      manifest.setPageId(book, 10);
+      manifest.setPageId(book.getChilds().get(0), 11);
+
+      ImportManifest loaded = ImportManifest.load(manifest.store());
+      Assert.assertEquals(manifest.getBookTitle(), loaded.getBookTitle());
+      Assert.assertTrue(loaded.isSameSettings(manifest));
+      Assert.assertEquals(Long.valueOf(10), loaded.getPageId(book));
+      Assert.assertEquals(Long.valueOf(11), loaded.getPageId(book.getChilds().get(0)));
+      Assert.assertNull(loaded.getPageId(book.getChilds().get(0).getChilds().get(0)));
+      Assert.assertEquals(2, loaded.getPageIds().size());
+      Assert.assertEquals(manifest.mapPageIds(book), loaded.mapPageIds(book));
+
+      // node hashes are loaded, so no node is changed when each one has page
+      Map<DocStructureItem, Long> pageIds = new HashMap<DocStructureItem, Long>();
+      for (DocStructureItem node : book.getSubtree()) {
+        pageIds.put(node, 20L + pageIds.size());
+        loaded.setPageId(node, pageIds.get(node));
+      }
+      Assert.assertEquals(Collections.emptyList(), manifest.getChangedNodes(book, loaded, pageIds));
+      Assert.assertEquals(manifest.getFileHash("images/a.png"), loaded.getFileHash("images/a.png"));
+      Assert.assertEquals(manifest.getFileHash("images/b.png"), loaded.getFileHash("images/b.png"));
+
+      try {
+        ImportManifest.load("version=0\nsettingsHash=a");
+        Assert.fail("IllegalArgumentException expected");
+      } catch (IllegalArgumentException e) {
+        // OK
+      }
+      try {
+        ImportManifest.load("version=1\nsettingsHash=a\nnode.book=a b");
+        Assert.fail("IllegalArgumentException expected");
+      } catch (IllegalArgumentException e) {
+        // OK
+      }
+    } finally {
+      archive.close();
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+}
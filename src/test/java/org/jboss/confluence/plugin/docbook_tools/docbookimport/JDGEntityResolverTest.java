@@ -0,0 +1,256 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.docbookimport;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.confluence.plugin.docbook_tools.utils.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit test for {@link JDGEntityResolver}
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class JDGEntityResolverTest {
+
+  /**
+   * Start local HTTP server returning same content for all requests after given delay.
+   */
+  private static HttpServer startServer(final AtomicInteger requestsCount, final long delay) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        requestsCount.incrementAndGet();
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          // nothing to do
+        }
+        byte[] content = "<!ENTITY a 'b'>".getBytes(FileUtils.CHARSET_UTF_8);
+        exchange.sendResponseHeaders(200, content.length);
+        exchange.getResponseBody().write(content);
+        exchange.close();
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    return server;
+  }
+
+  /**
+   * Start local HTTP server sending content byte by byte, one byte per given interval.
+   */
+  private static HttpServer startSlowServer(final long interval) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] content = "<!ENTITY a 'b'>".getBytes(FileUtils.CHARSET_UTF_8);
+        exchange.sendResponseHeaders(200, content.length);
+        try {
+          for (byte b : content) {
+            exchange.getResponseBody().write(b);
+            exchange.getResponseBody().flush();
+            Thread.sleep(interval);
+          }
+        } catch (InterruptedException e) {
+          // nothing to do
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    return server;
+  }
+
+  private static void stopServer(HttpServer server) {
+    server.stop(0);
+    ((ExecutorService) server.getExecutor()).shutdownNow();
+  }
+
+  private static String uniqueUrl(HttpServer server) {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/test" + System.nanoTime() + ".ent";
+  }
+
+  @Test
+  public void resolveEntity_concurrentLoadShared() throws Exception {
+    AtomicInteger requestsCount = new AtomicInteger();
+    HttpServer server = startServer(requestsCount, 300);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final String url = uniqueUrl(server);
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<String>> futures = new ArrayList<Future<String>>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(new Callable<String>() {
+
+          @Override
+          public String call() throws Exception {
+            start.await();
+            return FileUtils.readFileAsString(new JDGEntityResolver(null).resolveEntity(null, url).getByteStream());
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<String> f : futures) {
+        Assert.assertEquals("<!ENTITY a 'b'>", f.get());
+      }
+      Assert.assertEquals(1, requestsCount.get());
+    } finally {
+      executor.shutdown();
+      stopServer(server);
+    }
+  }
+
+  @Test
+  public void resolveEntity_fetchTimeout() throws Exception {
+    AtomicInteger requestsCount = new AtomicInteger();
+    HttpServer server = startServer(requestsCount, 2000);
+    try {
+      JDGEntityResolver.setFetchTimeout(200);
+      long start = System.currentTimeMillis();
+      try {
+        new JDGEntityResolver(null).resolveEntity(null, uniqueUrl(server));
+        Assert.fail("IOException expected");
+      } catch (IOException e) {
+        // OK
+      }
+      Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+    } finally {
+      JDGEntityResolver.setFetchTimeout(JDGEntityResolver.DEFAULT_FETCH_TIMEOUT);
+      stopServer(server);
+    }
+  }
+
+  @Test
+  public void resolveEntity_fetchTimeoutOverall() throws Exception {
+    // each read is faster than timeout, but whole download is not
+    HttpServer server = startSlowServer(150);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      JDGEntityResolver.setFetchTimeout(500);
+      final String url = uniqueUrl(server);
+      long start = System.currentTimeMillis();
+      List<Future<InputSource>> futures = new ArrayList<Future<InputSource>>();
+      for (int i = 0; i < 2; i++) {
+        futures.add(executor.submit(new Callable<InputSource>() {
+
+          @Override
+          public InputSource call() throws Exception {
+            return new JDGEntityResolver(null).resolveEntity(null, url);
+          }
+        }));
+        // second request waits for load started by first one
+        Thread.sleep(200);
+      }
+      for (Future<InputSource> f : futures) {
+        try {
+          f.get();
+          Assert.fail("IOException expected");
+        } catch (ExecutionException e) {
+          Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 1200);
+      }
+    } finally {
+      JDGEntityResolver.setFetchTimeout(JDGEntityResolver.DEFAULT_FETCH_TIMEOUT);
+      executor.shutdown();
+      stopServer(server);
+    }
+  }
+
+  @Test
+  public void resolveEntity_localEntityRecorded() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("JDGEntityResolverTest");
+    try {
+      File ent = new File(dir, "Book.ent");
+      FileOutputStream fos = new FileOutputStream(ent);
+      fos.write("<!ENTITY PRODUCT 'JBoss'>".getBytes(FileUtils.CHARSET_UTF_8));
+      fos.close();
+      new File(dir, "chapters").mkdirs();
+      // missing in chapters folder so loaded from parent folder
+      String systemId = new File(dir, "chapters/Book.ent").toURI().toString();
+      String missingSystemId = new File(dir, "chapters/Missing.ent").toURI().toString();
+
+      LocalEntityTable table = new LocalEntityTable();
+      JDGEntityResolver tested = new JDGEntityResolver(null, table);
+      InputSource is = tested.resolveEntity(null, systemId);
+      Assert.assertEquals(systemId, is.getSystemId());
+      Assert.assertEquals("<!ENTITY PRODUCT 'JBoss'>", FileUtils.readFileAsString(is.getByteStream()));
+      try {
+        tested.resolveEntity(null, missingSystemId);
+        Assert.fail("FileNotFoundException expected");
+      } catch (FileNotFoundException e) {
+        // OK
+      }
+      Assert.assertEquals(2, table.getSize());
+      Assert.assertTrue(table.isNotFound(missingSystemId));
+
+      // other resolver of same import uses recorded content, file is not read again
+      Assert.assertTrue(ent.delete());
+      tested = new JDGEntityResolver(null, table);
+      Assert.assertEquals("<!ENTITY PRODUCT 'JBoss'>",
+          FileUtils.readFileAsString(tested.resolveEntity(null, systemId).getByteStream()));
+      try {
+        tested.resolveEntity(null, missingSystemId);
+        Assert.fail("FileNotFoundException expected");
+      } catch (FileNotFoundException e) {
+        // OK
+      }
+
+      // resolver without table looks for file every time
+      Assert.assertNull(new JDGEntityResolver(null).resolveEntity(null, systemId));
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void setFetchTimeout_invalid() {
+    JDGEntityResolver.setFetchTimeout(0);
+  }
+
+}
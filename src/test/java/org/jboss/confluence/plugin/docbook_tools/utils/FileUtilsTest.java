@@ -22,7 +22,13 @@ package org.jboss.confluence.plugin.docbook_tools.utils;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -57,4 +63,46 @@ public class FileUtilsTest {
 
   }
 
+  private File prepareZipFile(File dir, int count, int size, String... extraEntries) throws Exception {
+    File file = new File(dir, "test.zip");
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      byte[] content = new byte[size];
+      for (int i = 0; i < count; i++) {
+        zos.putNextEntry(new ZipEntry((i % 2 == 0 ? "a/" : "b/c/") + "f" + i + ".png"));
+        Arrays.fill(content, (byte) i);
+        zos.write(content);
+        zos.closeEntry();
+      }
+      for (String name : extraEntries) {
+        zos.putNextEntry(new ZipEntry(name));
+        zos.write(content);
+        zos.closeEntry();
+      }
+    } finally {
+      zos.close();
+    }
+    return file;
+  }
+
+  @Test
+  public void unzip_entryOutOfFolder() throws Exception {
+    File dir = FileUtils.prepareWorkingDirectory("unziptest");
+    try {
+      File out = new File(dir, "out");
+      for (String badName : new String[] { "../escaped.png", "a/../../escaped.png", "/tmp/escaped.png" }) {
+        File badZip = prepareZipFile(dir, 1, 10, badName);
+        try {
+          FileUtils.unzip(FileUtils.openFileInputStream(badZip), out);
+          Assert.fail("Exception must be thrown for " + badName);
+        } catch (IOException e) {
+          Assert.assertEquals("Zip entry name points out of target folder: " + badName, e.getMessage());
+        }
+      }
+      Assert.assertFalse(new File(dir, "escaped.png").exists());
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
 }
@@ -0,0 +1,55 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.confluence.plugin.docbook_tools.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link WorkerThreadFactory}
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class WorkerThreadFactoryTest {
+
+  @Test
+  public void newThread() {
+    ClassLoader cl = new ClassLoader() {
+    };
+    Runnable r = new Runnable() {
+      public void run() {
+      }
+    };
+    WorkerThreadFactory tested = new WorkerThreadFactory("Test worker", cl);
+
+    Thread th = tested.newThread(r);
+    Assert.assertEquals("Test worker 1", th.getName());
+    Assert.assertTrue(th.isDaemon());
+    Assert.assertSame(cl, th.getContextClassLoader());
+
+    Assert.assertEquals("Test worker 2", tested.newThread(r).getName());
+
+    Assert.assertTrue(tested.isOwnThread(th));
+    Assert.assertFalse(tested.isOwnThread(Thread.currentThread()));
+    Assert.assertFalse(new WorkerThreadFactory("Test worker", cl).isOwnThread(th));
+  }
+
+}